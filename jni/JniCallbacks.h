@@ -43,7 +43,6 @@ public:
 private:
   JavaVM* javaVM;
   const JniGlobalReference<jobject>::Ptr callbackObject;
-  const JniGlobalReference<jclass>::Ptr exceptionLoggerClass;
 };
 
 class JniEventCallback : public JniCallbackBase
@@ -72,9 +71,6 @@ class JniFilterChangeCallback : public JniCallbackBase
 public:
   JniFilterChangeCallback(JNIEnv* env, jobject callbackObject);
   void Callback(const std::string& arg, const AdblockPlus::JsValuePtr jsValue);
-
-private:
-  const JniGlobalReference<jclass>::Ptr jsValueClass;
 };
 
 class JniLogSystemCallback : public JniCallbackBase, public AdblockPlus::LogSystem
@@ -82,9 +78,6 @@ class JniLogSystemCallback : public JniCallbackBase, public AdblockPlus::LogSyst
 public:
   JniLogSystemCallback(JNIEnv* env, jobject callbackObject);
   void operator()(AdblockPlus::LogSystem::LogLevel logLevel, const std::string& message, const std::string& source);
-
-private:
-  const JniGlobalReference<jclass>::Ptr logLevelClass;
 };
 
 class JniShowNotificationCallback : public JniCallbackBase
@@ -92,9 +85,6 @@ class JniShowNotificationCallback : public JniCallbackBase
 public:
   JniShowNotificationCallback(JNIEnv* env, jobject callbackObject);
   void Callback(const AdblockPlus::NotificationPtr&);
-
-private:
-  const JniGlobalReference<jclass>::Ptr notificationClass;
 };
 
 class JniWebRequest : public JniCallbackBase, public AdblockPlus::WebRequest
@@ -105,9 +95,6 @@ public:
 
 private:
   jobject NewTuple(JNIEnv* env, const std::string& a, const std::string& b) const;
-
-  const JniGlobalReference<jclass>::Ptr tupleClass;
-  const JniGlobalReference<jclass>::Ptr serverResponseClass;
 };
 
 #endif /* JNICALLBACKS_H */
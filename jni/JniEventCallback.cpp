@@ -17,6 +17,8 @@
 
 #include "JniCallbacks.h"
 
+static jmethodID callbackMethod;
+
 static jlong JNICALL JniCtor(JNIEnv* env, jclass clazz, jobject callbackObject)
 {
   try
@@ -40,15 +42,10 @@ void JniEventCallback::Callback(AdblockPlus::JsValueList& params)
 {
   JNIEnvAcquire env(GetJavaVM());
 
-  jmethodID method = env->GetMethodID(
-      *JniLocalReference<jclass>(*env,
-          env->GetObjectClass(GetCallbackObject())),
-      "eventCallback", "(Ljava/util/List;)V");
-
-  if (method)
+  if (callbackMethod)
   {
     jobject jsList = JniJsValueListToArrayList(*env, params);
-    env->CallVoidMethod(GetCallbackObject(), method, jsList);
+    env->CallVoidMethod(GetCallbackObject(), callbackMethod, jsList);
   }
 }
 
@@ -61,5 +58,8 @@ static JNINativeMethod methods[] =
 extern "C" JNIEXPORT void JNICALL Java_org_adblockplus_libadblockplus_EventCallback_registerNatives(JNIEnv *env, jclass clazz)
 {
   env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
+
+  callbackMethod = env->GetMethodID(clazz, "eventCallback",
+      "(Ljava/util/List;)V");
 }
 
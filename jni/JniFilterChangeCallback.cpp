@@ -17,6 +17,8 @@
 
 #include "JniCallbacks.h"
 
+static jmethodID callbackMethod;
+
 static jlong JNICALL JniCtor(JNIEnv* env, jclass clazz, jobject callbackObject)
 {
   try
@@ -33,8 +35,7 @@ static void JNICALL JniDtor(JNIEnv* env, jclass clazz, jlong ptr)
 
 JniFilterChangeCallback::JniFilterChangeCallback(JNIEnv* env,
     jobject callbackObject)
-    : JniCallbackBase(env, callbackObject), jsValueClass(
-        new JniGlobalReference<jclass>(env, env->FindClass(PKG("JsValue"))))
+    : JniCallbackBase(env, callbackObject)
 {
 }
 
@@ -43,17 +44,12 @@ void JniFilterChangeCallback::Callback(const std::string& arg,
 {
   JNIEnvAcquire env(GetJavaVM());
 
-  jmethodID method = env->GetMethodID(
-      *JniLocalReference<jclass>(*env,
-          env->GetObjectClass(GetCallbackObject())),
-      "filterChangeCallback", "(Ljava/lang/String;" TYP("JsValue") ")V");
-
-  if (method)
+  if (callbackMethod)
   {
     JniLocalReference<jstring> jArg(*env, env->NewStringUTF(arg.c_str()));
     JniLocalReference<jobject> jJsValue(*env,
-        NewJniJsValue(*env, jsValue, jsValueClass->Get()));
-    env->CallVoidMethod(GetCallbackObject(), method, *jArg, *jJsValue);
+        NewJniJsValue(*env, jsValue));
+    env->CallVoidMethod(GetCallbackObject(), callbackMethod, *jArg, *jJsValue);
   }
 
   CheckAndLogJavaException(*env);
@@ -68,4 +64,7 @@ static JNINativeMethod methods[] =
 extern "C" JNIEXPORT void JNICALL Java_org_adblockplus_libadblockplus_FilterChangeCallback_registerNatives(JNIEnv *env, jclass clazz)
 {
   env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
+
+  callbackMethod = env->GetMethodID(clazz, "filterChangeCallback",
+      "(Ljava/lang/String;" TYP("JsValue") ")V");
 }
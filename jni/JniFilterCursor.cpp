@@ -0,0 +1,153 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <AdblockPlus.h>
+#include "Utils.h"
+
+// Evaluates to a function creating a cursor over the listed filters (i.e.
+// the filters of special subscriptions) or over the enabled filters of all
+// enabled subscriptions. The cursor is a function handing out the next filters on
+// every call, as a flat array of Filter.Type ordinals (keep in sync) and
+// texts. Filters are looked up by index, only the chunk being handed out is
+// ever converted.
+static const char* const FILTER_CURSOR_SOURCE =
+    "(function(listedOnly)\n"
+    "{\n"
+    "  var FilterStorage = require('filterStorage').FilterStorage;\n"
+    "  var SpecialSubscription = require('subscriptionClasses').SpecialSubscription;\n"
+    "  var filterClasses = require('filterClasses');\n"
+    "  var types = [filterClasses.BlockingFilter, filterClasses.WhitelistFilter,\n"
+    "               filterClasses.ElemHideFilter, filterClasses.ElemHideException,\n"
+    "               filterClasses.CommentFilter];\n"
+    "  var subscriptions = FilterStorage.subscriptions.filter(function(subscription)\n"
+    "  {\n"
+    "    return listedOnly ? subscription instanceof SpecialSubscription : !subscription.disabled;\n"
+    "  });\n"
+    "  var subscriptionIndex = 0;\n"
+    "  var filterIndex = 0;\n"
+    "  return function(count)\n"
+    "  {\n"
+    "    var result = [];\n"
+    "    while (result.length < count * 2 && subscriptionIndex < subscriptions.length)\n"
+    "    {\n"
+    "      var filters = subscriptions[subscriptionIndex].filters;\n"
+    "      if (filterIndex >= filters.length)\n"
+    "      {\n"
+    "        subscriptionIndex++;\n"
+    "        filterIndex = 0;\n"
+    "        continue;\n"
+    "      }\n"
+    "      var filter = filters[filterIndex++];\n"
+    "      if (!listedOnly && filter.disabled)\n"
+    "      {\n"
+    "        continue;\n"
+    "      }\n"
+    "      var type = types.length;\n"
+    "      for (var i = 0; i < types.length; i++)\n"
+    "      {\n"
+    "        if (filter instanceof types[i])\n"
+    "        {\n"
+    "          type = i;\n"
+    "          break;\n"
+    "        }\n"
+    "      }\n"
+    "      result.push(type, filter.text);\n"
+    "    }\n"
+    "    return result;\n"
+    "  };\n"
+    "})";
+
+struct FilterCursor
+{
+  AdblockPlus::JsEnginePtr jsEngine;
+  AdblockPlus::JsValuePtr next;
+};
+
+static jlong JNICALL JniCtor(JNIEnv* env, jclass clazz, jlong jsEnginePtr,
+    jboolean listedOnly)
+{
+  AdblockPlus::JsEnginePtr& jsEngine =
+      *JniLongToTypePtr<AdblockPlus::JsEnginePtr>(jsEnginePtr);
+
+  try
+  {
+    FilterCursor* cursor = new FilterCursor();
+    cursor->jsEngine = jsEngine;
+    AdblockPlus::JsValueList params;
+    params.push_back(jsEngine->NewValue(listedOnly == JNI_TRUE));
+    cursor->next = jsEngine->Evaluate(FILTER_CURSOR_SOURCE, "FilterCursor")
+        ->Call(params);
+    return JniPtrToLong(cursor);
+  }
+  CATCH_THROW_AND_RETURN(env, 0)
+}
+
+static void JNICALL JniDtor(JNIEnv* env, jclass clazz, jlong ptr)
+{
+  delete JniLongToTypePtr<FilterCursor>(ptr);
+}
+
+static jint JNICALL JniNext(JNIEnv* env, jclass clazz, jlong ptr,
+    jobjectArray jTexts, jbyteArray jTypes)
+{
+  FilterCursor* cursor = JniLongToTypePtr<FilterCursor>(ptr);
+
+  const jsize capacity = std::min(env->GetArrayLength(jTexts),
+      env->GetArrayLength(jTypes));
+  if (capacity <= 0)
+  {
+    return 0;
+  }
+
+  try
+  {
+    AdblockPlus::JsValueList params;
+    params.push_back(cursor->jsEngine->NewValue(static_cast<int64_t>(capacity)));
+    const AdblockPlus::JsValueList values = cursor->next->Call(params)->AsList();
+
+    const jsize count = static_cast<jsize>(std::min<size_t>(capacity,
+        values.size() / 2));
+    if (count <= 0)
+    {
+      return 0;
+    }
+
+    std::vector<jbyte> types(count);
+    for (jsize i = 0; i < count; i++)
+    {
+      types[i] = static_cast<jbyte>(values[2 * i]->AsInt());
+      JniLocalReference<jstring> text(env,
+          env->NewStringUTF(values[2 * i + 1]->AsString().c_str()));
+      env->SetObjectArrayElement(jTexts, i, *text);
+    }
+    env->SetByteArrayRegion(jTypes, 0, count, &types[0]);
+    return count;
+  }
+  CATCH_THROW_AND_RETURN(env, 0)
+}
+
+static JNINativeMethod methods[] =
+{
+  { (char*)"ctor", (char*)"(JZ)J", (void*)JniCtor },
+  { (char*)"next", (char*)"(J[Ljava/lang/String;[B)I", (void*)JniNext },
+  { (char*)"dtor", (char*)"(J)V", (void*)JniDtor }
+};
+
+extern "C" JNIEXPORT void JNICALL Java_org_adblockplus_libadblockplus_FilterCursor_registerNatives(JNIEnv *env, jclass clazz)
+{
+  env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
+}
@@ -18,6 +18,11 @@
 #include <AdblockPlus.h>
 #include "Utils.h"
 #include "JniCallbacks.h"
+#include "JniStats.h"
+
+// Content types by ordinal of FilterEngine.ContentType, filled in
+// registerNatives()
+static std::vector<AdblockPlus::FilterEngine::ContentType> contentTypes;
 
 static jobject SubscriptionsToArrayList(JNIEnv* env, std::vector<AdblockPlus::SubscriptionPtr>& subscriptions)
 {
@@ -34,12 +39,16 @@ static jobject SubscriptionsToArrayList(JNIEnv* env, std::vector<AdblockPlus::Su
 static AdblockPlus::FilterEngine::ContentType ConvertContentType(JNIEnv *env,
     jobject jContentType)
 {
-  JniLocalReference<jclass> contentTypeClass(env,
-      env->GetObjectClass(jContentType));
-  jmethodID nameMethod = env->GetMethodID(*contentTypeClass, "name",
-      "()Ljava/lang/String;");
+  const jint ordinal = env->CallIntMethod(jContentType,
+      JniGetCachedIds().enumOrdinal);
+  if (ordinal >= 0 && static_cast<size_t>(ordinal) < contentTypes.size())
+  {
+    return contentTypes[ordinal];
+  }
+
   JniLocalReference<jstring> jValue(env,
-      (jstring) env->CallObjectMethod(jContentType, nameMethod));
+      (jstring) env->CallObjectMethod(jContentType,
+          JniGetCachedIds().enumName));
   const std::string value = JniJavaToStdString(env, *jValue);
   return AdblockPlus::FilterEngine::StringToContentType(value);
 }
@@ -269,6 +278,7 @@ static void JNICALL JniForceUpdateCheck(JNIEnv* env, jclass clazz, jlong ptr, jl
 static jobject JNICALL JniGetElementHidingSelectors(JNIEnv* env, jclass clazz,
     jlong ptr, jstring jDomain)
 {
+  JniStatsTimer timer(JNI_STATS_GET_ELEMENT_HIDING_SELECTORS);
   AdblockPlus::FilterEngine* engine =
       JniLongToTypePtr<AdblockPlus::FilterEngine>(ptr);
 
@@ -276,8 +286,11 @@ static jobject JNICALL JniGetElementHidingSelectors(JNIEnv* env, jclass clazz,
 
   try
   {
-    std::vector<std::string> selectors = engine->GetElementHidingSelectors(
-        domain);
+    std::vector<std::string> selectors;
+    {
+      JniStatsCalleeTimer calleeTimer(JNI_STATS_GET_ELEMENT_HIDING_SELECTORS);
+      selectors = engine->GetElementHidingSelectors(domain);
+    }
 
     jobject list = NewJniArrayList(env);
 
@@ -295,6 +308,7 @@ static jobject JNICALL JniGetElementHidingSelectors(JNIEnv* env, jclass clazz,
 
 static jobject JNICALL JniMatches(JNIEnv* env, jclass clazz, jlong ptr, jstring jUrl, jobject jContentType, jstring jDocumentUrl)
 {
+  JniStatsTimer timer(JNI_STATS_MATCHES);
   AdblockPlus::FilterEngine* engine = JniLongToTypePtr<AdblockPlus::FilterEngine>(ptr);
 
   std::string url = JniJavaToStdString(env, jUrl);
@@ -304,7 +318,11 @@ static jobject JNICALL JniMatches(JNIEnv* env, jclass clazz, jlong ptr, jstring
 
   try
   {
-    AdblockPlus::FilterPtr filter = engine->Matches(url, contentType, documentUrl);
+    AdblockPlus::FilterPtr filter;
+    {
+      JniStatsCalleeTimer calleeTimer(JNI_STATS_MATCHES);
+      filter = engine->Matches(url, contentType, documentUrl);
+    }
 
     return NewJniFilter(env, filter);
   }
@@ -332,6 +350,7 @@ static void JavaStringArrayToStringVector(JNIEnv* env, jobjectArray jArray,
 static jobject JNICALL JniMatchesMany(JNIEnv* env, jclass clazz, jlong ptr,
     jstring jUrl, jobject jContentType, jobjectArray jDocumentUrls)
 {
+  JniStatsTimer timer(JNI_STATS_MATCHES_MANY);
   AdblockPlus::FilterEngine* engine =
       JniLongToTypePtr<AdblockPlus::FilterEngine>(ptr);
 
@@ -344,17 +363,162 @@ static jobject JNICALL JniMatchesMany(JNIEnv* env, jclass clazz, jlong ptr,
 
   try
   {
-    AdblockPlus::FilterPtr filter = engine->Matches(url, contentType,
-        documentUrls);
+    AdblockPlus::FilterPtr filter;
+    {
+      JniStatsCalleeTimer calleeTimer(JNI_STATS_MATCHES_MANY);
+      filter = engine->Matches(url, contentType, documentUrls);
+    }
 
     return NewJniFilter(env, filter);
   }
   CATCH_THROW_AND_RETURN(env, 0)
 }
 
+// Keep in sync with the MATCH_* constants in FilterEngine.java
+enum MatchVerdict
+{
+  MATCH_NONE = 0,
+  MATCH_BLOCKING = 1,
+  MATCH_EXCEPTION = 2,
+  MATCH_OTHER = 3,
+  MATCH_FLAG_DOMAIN_ANCHORED = 0x10
+};
+
+// The domain anchor only matters for requests without document URLs (see
+// NativeFilterMatcher.matches()), so the filter text is only fetched from the
+// JavaScript engine for those
+static jbyte FilterToVerdict(const AdblockPlus::FilterPtr& filter,
+    bool hasDocumentUrls)
+{
+  if (!filter)
+  {
+    return MATCH_NONE;
+  }
+
+  jbyte verdict;
+  switch (filter->GetType())
+  {
+  case AdblockPlus::Filter::TYPE_BLOCKING:
+    verdict = MATCH_BLOCKING;
+    break;
+  case AdblockPlus::Filter::TYPE_EXCEPTION:
+    return MATCH_EXCEPTION;
+  default:
+    verdict = MATCH_OTHER;
+    break;
+  }
+
+  if (!hasDocumentUrls
+      && filter->GetProperty("text")->AsString().find("||") != std::string::npos)
+  {
+    verdict |= MATCH_FLAG_DOMAIN_ANCHORED;
+  }
+
+  return verdict;
+}
+
+static jbyte JNICALL JniGetMatchVerdict(JNIEnv* env, jclass clazz, jlong ptr,
+    jobject jUrls, jintArray jUrlEnds, jint urlCount, jobject jContentType)
+{
+  JniStatsTimer timer(JNI_STATS_MATCHES_DIRECT);
+  AdblockPlus::FilterEngine* engine =
+      JniLongToTypePtr<AdblockPlus::FilterEngine>(ptr);
+
+  const char* urls = static_cast<const char*>(env->GetDirectBufferAddress(jUrls));
+  const jlong capacity = env->GetDirectBufferCapacity(jUrls);
+  if (!urls || capacity < 0 || urlCount < 1
+      || urlCount > env->GetArrayLength(jUrlEnds))
+  {
+    JniThrowException(env, "Invalid URL buffer");
+    return MATCH_NONE;
+  }
+
+  std::vector<jint> urlEnds(urlCount);
+  env->GetIntArrayRegion(jUrlEnds, 0, urlCount, &urlEnds[0]);
+
+  // The engine takes std::strings, but at least there is no conversion from
+  // UTF-16 and no Java objects are involved
+  std::vector<std::string> documentUrls;
+  documentUrls.reserve(urlCount - 1);
+  jint start = 0;
+  for (jint i = 0; i < urlCount; i++)
+  {
+    if (urlEnds[i] < start || urlEnds[i] > capacity)
+    {
+      JniThrowException(env, "URL range out of bounds");
+      return MATCH_NONE;
+    }
+    if (i > 0)
+    {
+      documentUrls.push_back(std::string(urls + start, urlEnds[i] - start));
+    }
+    start = urlEnds[i];
+  }
+  std::string url(urls, urlEnds[0]);
+
+  AdblockPlus::FilterEngine::ContentType contentType =
+      ConvertContentType(env, jContentType);
+
+  try
+  {
+    AdblockPlus::FilterPtr filter;
+    {
+      JniStatsCalleeTimer calleeTimer(JNI_STATS_MATCHES_DIRECT);
+      filter = engine->Matches(url, contentType, documentUrls);
+    }
+
+    return FilterToVerdict(filter, !documentUrls.empty());
+  }
+  CATCH_THROW_AND_RETURN(env, MATCH_NONE)
+}
+
+static jbyteArray JNICALL JniMatchesAll(JNIEnv* env, jclass clazz, jlong ptr,
+    jobjectArray jUrls, jobjectArray jContentTypes, jobjectArray jDocumentUrls)
+{
+  JniStatsTimer timer(JNI_STATS_MATCHES_ALL);
+  AdblockPlus::FilterEngine* engine =
+      JniLongToTypePtr<AdblockPlus::FilterEngine>(ptr);
+
+  std::vector<std::string> documentUrls;
+  JavaStringArrayToStringVector(env, jDocumentUrls, documentUrls);
+
+  const jsize count = env->GetArrayLength(jUrls);
+  std::vector<jbyte> verdicts(count, MATCH_NONE);
+
+  try
+  {
+    for (jsize i = 0; i < count; i++)
+    {
+      std::string url = JniJavaToStdString(env,
+          *JniLocalReference<jstring>(env,
+              static_cast<jstring>(env->GetObjectArrayElement(jUrls, i))));
+      AdblockPlus::FilterEngine::ContentType contentType =
+          ConvertContentType(env,
+              *JniLocalReference<jobject>(env,
+                  env->GetObjectArrayElement(jContentTypes, i)));
+
+      AdblockPlus::FilterPtr filter;
+      {
+        JniStatsCalleeTimer calleeTimer(JNI_STATS_MATCHES_ALL);
+        filter = engine->Matches(url, contentType, documentUrls);
+      }
+      verdicts[i] = FilterToVerdict(filter, !documentUrls.empty());
+    }
+
+    jbyteArray result = env->NewByteArray(count);
+    if (count > 0)
+    {
+      env->SetByteArrayRegion(result, 0, count, &verdicts[0]);
+    }
+    return result;
+  }
+  CATCH_THROW_AND_RETURN(env, 0)
+}
+
 static jboolean JNICALL JniIsDocumentWhitelisted(JNIEnv* env, jclass clazz, jlong ptr,
     jstring jUrl, jobjectArray jDocumentUrls)
 {
+  JniStatsTimer timer(JNI_STATS_IS_DOCUMENT_WHITELISTED);
   AdblockPlus::FilterEngine* engine =
       JniLongToTypePtr<AdblockPlus::FilterEngine>(ptr);
 
@@ -363,6 +527,7 @@ static jboolean JNICALL JniIsDocumentWhitelisted(JNIEnv* env, jclass clazz, jlon
   JavaStringArrayToStringVector(env, jDocumentUrls, documentUrls);
   try
   {
+    JniStatsCalleeTimer calleeTimer(JNI_STATS_IS_DOCUMENT_WHITELISTED);
     return engine->IsDocumentWhitelisted(url, documentUrls) ?
         JNI_TRUE : JNI_FALSE;
   }
@@ -372,6 +537,7 @@ static jboolean JNICALL JniIsDocumentWhitelisted(JNIEnv* env, jclass clazz, jlon
 static jboolean JNICALL JniIsElemhideWhitelisted(JNIEnv* env, jclass clazz, jlong ptr,
     jstring jUrl, jobjectArray jDocumentUrls)
 {
+  JniStatsTimer timer(JNI_STATS_IS_ELEMHIDE_WHITELISTED);
   AdblockPlus::FilterEngine* engine =
       JniLongToTypePtr<AdblockPlus::FilterEngine>(ptr);
 
@@ -380,6 +546,7 @@ static jboolean JNICALL JniIsElemhideWhitelisted(JNIEnv* env, jclass clazz, jlon
   JavaStringArrayToStringVector(env, jDocumentUrls, documentUrls);
   try
   {
+    JniStatsCalleeTimer calleeTimer(JNI_STATS_IS_ELEMHIDE_WHITELISTED);
     return engine->IsElemhideWhitelisted(url, documentUrls) ?
         JNI_TRUE : JNI_FALSE;
   }
@@ -435,6 +602,8 @@ static JNINativeMethod methods[] =
   { (char*)"getElementHidingSelectors", (char*)"(JLjava/lang/String;)Ljava/util/List;", (void*)JniGetElementHidingSelectors },
   { (char*)"matches", (char*)"(JLjava/lang/String;" TYP("FilterEngine$ContentType") "Ljava/lang/String;)" TYP("Filter"), (void*)JniMatches },
   { (char*)"matches", (char*)"(JLjava/lang/String;" TYP("FilterEngine$ContentType") "[Ljava/lang/String;)" TYP("Filter"), (void*)JniMatchesMany },
+  { (char*)"getMatchVerdict", (char*)"(JLjava/nio/ByteBuffer;[II" TYP("FilterEngine$ContentType") ")B", (void*)JniGetMatchVerdict },
+  { (char*)"matchesAll", (char*)"(J[Ljava/lang/String;[" TYP("FilterEngine$ContentType") "[Ljava/lang/String;)[B", (void*)JniMatchesAll },
   { (char*)"isDocumentWhitelisted", (char*)"(JLjava/lang/String;[Ljava/lang/String;)Z", (void*)JniIsDocumentWhitelisted },
   { (char*)"isElemhideWhitelisted", (char*)"(JLjava/lang/String;[Ljava/lang/String;)Z", (void*)JniIsElemhideWhitelisted },
   { (char*)"getPref", (char*)"(JLjava/lang/String;)" TYP("JsValue"), (void*)JniGetPref },
@@ -445,4 +614,32 @@ static JNINativeMethod methods[] =
 extern "C" JNIEXPORT void JNICALL Java_org_adblockplus_libadblockplus_FilterEngine_registerNatives(JNIEnv *env, jclass clazz)
 {
   env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
+
+  JniLocalReference<jclass> contentTypeClass(env,
+      env->FindClass(PKG("FilterEngine$ContentType")));
+  jmethodID valuesMethod = env->GetStaticMethodID(*contentTypeClass, "values",
+      "()[" TYP("FilterEngine$ContentType"));
+  JniLocalReference<jobjectArray> values(env,
+      static_cast<jobjectArray>(env->CallStaticObjectMethod(*contentTypeClass,
+          valuesMethod)));
+
+  try
+  {
+    const jsize count = env->GetArrayLength(*values);
+    for (jsize i = 0; i < count; i++)
+    {
+      JniLocalReference<jobject> value(env,
+          env->GetObjectArrayElement(*values, i));
+      JniLocalReference<jstring> name(env,
+          static_cast<jstring>(env->CallObjectMethod(*value,
+              JniGetCachedIds().enumName)));
+      contentTypes.push_back(AdblockPlus::FilterEngine::StringToContentType(
+          JniJavaToStdString(env, *name)));
+    }
+  }
+  catch (...)
+  {
+    // ConvertContentType() falls back to converting names on every call
+    contentTypes.clear();
+  }
 }
@@ -143,24 +143,31 @@ static void JNICALL JniDtor(JNIEnv* env, jclass clazz, jlong ptr)
   delete JniLongToTypePtr<AdblockPlus::JsValuePtr>(ptr);
 }
 
-jobject NewJniJsValue(JNIEnv* env, const AdblockPlus::JsValuePtr& jsValue, jclass jsValueClass)
+static void JNICALL JniDtorAll(JNIEnv* env, jclass clazz, jlongArray jPtrs, jint count)
 {
-  if (!jsValue.get())
+  if (count <= 0 || count > env->GetArrayLength(jPtrs))
   {
-    return 0;
+    return;
   }
 
-  jclass clazz = jsValueClass ? jsValueClass : env->FindClass(PKG("JsValue"));
-  jmethodID ctor = env->GetMethodID(clazz, "<init>", "(J)V");
-  jlong ptr = JniPtrToLong(new AdblockPlus::JsValuePtr(jsValue));
-  jobject ret = env->NewObject(clazz, ctor, ptr);
+  std::vector<jlong> ptrs(count);
+  env->GetLongArrayRegion(jPtrs, 0, count, &ptrs[0]);
+  for (std::vector<jlong>::const_iterator it = ptrs.begin(), end = ptrs.end(); it != end; ++it)
+  {
+    delete JniLongToTypePtr<AdblockPlus::JsValuePtr>(*it);
+  }
+}
 
-  if (!jsValueClass)
+jobject NewJniJsValue(JNIEnv* env, const AdblockPlus::JsValuePtr& jsValue)
+{
+  if (!jsValue.get())
   {
-    env->DeleteLocalRef(clazz);
+    return 0;
   }
 
-  return ret;
+  jlong ptr = JniPtrToLong(new AdblockPlus::JsValuePtr(jsValue));
+  return env->NewObject(JniGetCachedIds().jsValueClass,
+      JniGetCachedIds().jsValueCtor, ptr);
 }
 
 AdblockPlus::JsValue* JniGetJsValue(jlong ptr)
@@ -212,7 +219,8 @@ static JNINativeMethod methods[] =
   { (char*)"asBoolean", (char*)"(J)Z", (void*)JniAsBoolean },
   { (char*)"asList", (char*)"(J)Ljava/util/List;", (void*)JniAsList },
   { (char*)"getProperty", (char*)"(JLjava/lang/String;)" TYP("JsValue"), (void*)JniGetProperty },
-  { (char*)"dtor", (char*)"(J)V", (void*)JniDtor }
+  { (char*)"dtor", (char*)"(J)V", (void*)JniDtor },
+  { (char*)"dtorAll", (char*)"([JI)V", (void*)JniDtorAll }
 };
 
 extern "C" JNIEXPORT void JNICALL Java_org_adblockplus_libadblockplus_JsValue_registerNatives(JNIEnv *env, jclass clazz)
@@ -21,7 +21,7 @@
 #include <jni.h>
 #include <AdblockPlus/JsValue.h>
 
-jobject NewJniJsValue(JNIEnv* env, const AdblockPlus::JsValuePtr& jsValue, jclass jsValueClass = 0);
+jobject NewJniJsValue(JNIEnv* env, const AdblockPlus::JsValuePtr& jsValue);
 
 jobject JniJsValueListToArrayList(JNIEnv* env, AdblockPlus::JsValueList& list);
 
@@ -16,6 +16,18 @@
  */
 
 #include "JniCallbacks.h"
+#include "JniStats.h"
+
+static const char* const logLevelNames[] =
+{
+  "TRACE", "LOG", "INFO", "WARN", "ERROR"
+};
+static const int LOG_LEVEL_COUNT = sizeof(logLevelNames) / sizeof(logLevelNames[0]);
+
+static jmethodID logCallbackMethod;
+// Global references to the LogSystem.LogLevel constants, in the order of
+// logLevelNames
+static jobject logLevels[LOG_LEVEL_COUNT];
 
 static jlong JNICALL JniCtor(JNIEnv* env, jclass clazz, jobject callbackObject)
 {
@@ -32,62 +44,52 @@ static void JNICALL JniDtor(JNIEnv* env, jclass clazz, jlong ptr)
 }
 
 JniLogSystemCallback::JniLogSystemCallback(JNIEnv* env, jobject callbackObject)
-  : JniCallbackBase(env, callbackObject), AdblockPlus::LogSystem(), logLevelClass(new JniGlobalReference<jclass>(env, env->FindClass(PKG("LogSystem$LogLevel"))))
+  : JniCallbackBase(env, callbackObject), AdblockPlus::LogSystem()
 {
 }
 
 void JniLogSystemCallback::operator()(AdblockPlus::LogSystem::LogLevel logLevel,
     const std::string& message, const std::string& source)
 {
+  JniStatsTimer timer(JNI_STATS_LOG_CALLBACK);
   JNIEnvAcquire env(GetJavaVM());
 
-  jmethodID method = env->GetMethodID(
-      *JniLocalReference<jclass>(*env,
-          env->GetObjectClass(GetCallbackObject())),
-      "logCallback",
-      "(" TYP("LogSystem$LogLevel") "Ljava/lang/String;Ljava/lang/String;)V");
-
   // TODO: Set log level from Java and handle it here (to reduce C++->Java calls)
 
-  if (method)
+  if (logCallbackMethod)
   {
-    const char* enumName = 0;
+    int level;
 
     switch (logLevel)
     {
     default:
     case AdblockPlus::LogSystem::LOG_LEVEL_TRACE:
-      enumName = "TRACE";
+      level = 0;
       break;
     case AdblockPlus::LogSystem::LOG_LEVEL_LOG:
-      enumName = "LOG";
+      level = 1;
       break;
     case AdblockPlus::LogSystem::LOG_LEVEL_INFO:
-      enumName = "INFO";
+      level = 2;
       break;
     case AdblockPlus::LogSystem::LOG_LEVEL_WARN:
-      enumName = "WARN";
+      level = 3;
       break;
     case AdblockPlus::LogSystem::LOG_LEVEL_ERROR:
-      enumName = "ERROR";
+      level = 4;
       break;
     }
 
-    jclass enumClass = logLevelClass->Get();
-    if (enumClass)
+    if (logLevels[level])
     {
-      jfieldID enumField = env->GetStaticFieldID(enumClass, enumName,
-          TYP("LogSystem$LogLevel"));
-      JniLocalReference<jobject> jLogLevel(*env,
-          env->GetStaticObjectField(enumClass, enumField));
-
       JniLocalReference<jstring> jMessage(*env,
           env->NewStringUTF(message.c_str()));
       JniLocalReference<jstring> jSource(*env,
           env->NewStringUTF(source.c_str()));
 
-      env->CallVoidMethod(GetCallbackObject(), method, *jLogLevel, *jMessage,
-          *jSource);
+      JniStatsCalleeTimer calleeTimer(JNI_STATS_LOG_CALLBACK);
+      env->CallVoidMethod(GetCallbackObject(), logCallbackMethod,
+          logLevels[level], *jMessage, *jSource);
     }
 
     CheckAndLogJavaException(*env);
@@ -103,4 +105,18 @@ static JNINativeMethod methods[] =
 extern "C" JNIEXPORT void JNICALL Java_org_adblockplus_libadblockplus_LogSystem_registerNatives(JNIEnv *env, jclass clazz)
 {
   env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
+
+  logCallbackMethod = env->GetMethodID(clazz, "logCallback",
+      "(" TYP("LogSystem$LogLevel") "Ljava/lang/String;Ljava/lang/String;)V");
+
+  JniLocalReference<jclass> logLevelClass(env,
+      env->FindClass(PKG("LogSystem$LogLevel")));
+  for (int i = 0; i < LOG_LEVEL_COUNT; i++)
+  {
+    jfieldID field = env->GetStaticFieldID(*logLevelClass, logLevelNames[i],
+        TYP("LogSystem$LogLevel"));
+    JniLocalReference<jobject> value(env,
+        env->GetStaticObjectField(*logLevelClass, field));
+    logLevels[i] = env->NewGlobalRef(*value);
+  }
 }
@@ -17,6 +17,8 @@
 
 #include "JniCallbacks.h"
 
+static jmethodID callbackMethod;
+
 static jlong JNICALL JniCtor(JNIEnv* env, jclass clazz, jobject callbackObject)
 {
   try
@@ -33,8 +35,7 @@ static void JNICALL JniDtor(JNIEnv* env, jclass clazz, jlong ptr)
 
 JniShowNotificationCallback::JniShowNotificationCallback(JNIEnv* env,
     jobject callbackObject)
-    : JniCallbackBase(env, callbackObject), notificationClass(
-        new JniGlobalReference<jclass>(env, env->FindClass(PKG("Notification"))))
+    : JniCallbackBase(env, callbackObject)
 {
 }
 
@@ -43,16 +44,11 @@ void JniShowNotificationCallback::Callback(
 {
   JNIEnvAcquire env(GetJavaVM());
 
-  jmethodID method = env->GetMethodID(
-      *JniLocalReference<jclass>(*env,
-          env->GetObjectClass(GetCallbackObject())),
-      "showNotificationCallback", "(" TYP("Notification") ")V");
-
-  if (method)
+  if (callbackMethod)
   {
     JniLocalReference<jobject> jNotification(*env, NewJniNotification(*env,
         notificationPtr));
-    env->CallVoidMethod(GetCallbackObject(), method, *jNotification);
+    env->CallVoidMethod(GetCallbackObject(), callbackMethod, *jNotification);
   }
 
   CheckAndLogJavaException(*env);
@@ -67,4 +63,7 @@ static JNINativeMethod methods[] =
 extern "C" JNIEXPORT void JNICALL Java_org_adblockplus_libadblockplus_ShowNotificationCallback_registerNatives(JNIEnv *env, jclass clazz)
 {
   env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
+
+  callbackMethod = env->GetMethodID(clazz, "showNotificationCallback",
+      "(" TYP("Notification") ")V");
 }
@@ -0,0 +1,93 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <atomic>
+#include <time.h>
+
+#include "JniStats.h"
+#include "Utils.h"
+
+// Calls, total nanoseconds and callee nanoseconds per method, in the layout
+// returned by getCounters()
+static const int COUNTERS_PER_METHOD = 3;
+static std::atomic<int64_t> counters[JNI_STATS_METHOD_COUNT * COUNTERS_PER_METHOD];
+
+static int64_t Now()
+{
+  struct timespec now;
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  return static_cast<int64_t>(now.tv_sec) * 1000000000 + now.tv_nsec;
+}
+
+JniStatsTimer::JniStatsTimer(JniStatsMethod method)
+  : method(method), start(Now())
+{
+}
+
+JniStatsTimer::~JniStatsTimer()
+{
+  const int64_t duration = Now() - start;
+  counters[method * COUNTERS_PER_METHOD].fetch_add(1, std::memory_order_relaxed);
+  counters[method * COUNTERS_PER_METHOD + 1].fetch_add(duration, std::memory_order_relaxed);
+}
+
+JniStatsCalleeTimer::JniStatsCalleeTimer(JniStatsMethod method)
+  : method(method), start(Now())
+{
+}
+
+JniStatsCalleeTimer::~JniStatsCalleeTimer()
+{
+  const int64_t duration = Now() - start;
+  counters[method * COUNTERS_PER_METHOD + 2].fetch_add(duration, std::memory_order_relaxed);
+}
+
+static jlongArray JNICALL JniGetCounters(JNIEnv* env, jclass clazz)
+{
+  const jsize count = JNI_STATS_METHOD_COUNT * COUNTERS_PER_METHOD;
+  jlong values[count];
+  for (jsize i = 0; i < count; i++)
+  {
+    values[i] = counters[i].load(std::memory_order_relaxed);
+  }
+
+  jlongArray result = env->NewLongArray(count);
+  if (result)
+  {
+    env->SetLongArrayRegion(result, 0, count, values);
+  }
+  return result;
+}
+
+static void JNICALL JniReset(JNIEnv* env, jclass clazz)
+{
+  for (int i = 0; i < JNI_STATS_METHOD_COUNT * COUNTERS_PER_METHOD; i++)
+  {
+    counters[i].store(0, std::memory_order_relaxed);
+  }
+}
+
+static JNINativeMethod methods[] =
+{
+  { (char*)"getCounters", (char*)"()[J", (void*)JniGetCounters },
+  { (char*)"reset", (char*)"()V", (void*)JniReset }
+};
+
+extern "C" JNIEXPORT void JNICALL Java_org_adblockplus_libadblockplus_JniStats_registerNatives(JNIEnv *env, jclass clazz)
+{
+  env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
+}
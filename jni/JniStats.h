@@ -0,0 +1,76 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef JNISTATS_H
+#define JNISTATS_H
+
+#include <stdint.h>
+
+// Keep in sync with JniStats.Method
+enum JniStatsMethod
+{
+  JNI_STATS_MATCHES,
+  JNI_STATS_MATCHES_MANY,
+  JNI_STATS_MATCHES_DIRECT,
+  JNI_STATS_MATCHES_ALL,
+  JNI_STATS_IS_DOCUMENT_WHITELISTED,
+  JNI_STATS_IS_ELEMHIDE_WHITELISTED,
+  JNI_STATS_GET_ELEMENT_HIDING_SELECTORS,
+  JNI_STATS_WEB_REQUEST_GET,
+  JNI_STATS_LOG_CALLBACK,
+  JNI_STATS_METHOD_COUNT
+};
+
+/**
+ * Counts a call of a native method (or of a callback into Java) and the time
+ * spent in it.
+ */
+class JniStatsTimer
+{
+public:
+  explicit JniStatsTimer(JniStatsMethod method);
+  ~JniStatsTimer();
+
+private:
+  JniStatsTimer(const JniStatsTimer& other);
+  JniStatsTimer& operator=(const JniStatsTimer& other);
+
+  const JniStatsMethod method;
+  const int64_t start;
+};
+
+/**
+ * Measures the part of a call spent on the other side of the boundary, in
+ * libadblockplus for native methods and in Java for callbacks. Whatever
+ * remains of the time measured by JniStatsTimer is overhead of the bindings:
+ * converting arguments and results, creating Java objects and so on.
+ */
+class JniStatsCalleeTimer
+{
+public:
+  explicit JniStatsCalleeTimer(JniStatsMethod method);
+  ~JniStatsCalleeTimer();
+
+private:
+  JniStatsCalleeTimer(const JniStatsCalleeTimer& other);
+  JniStatsCalleeTimer& operator=(const JniStatsCalleeTimer& other);
+
+  const JniStatsMethod method;
+  const int64_t start;
+};
+
+#endif /* JNISTATS_H */
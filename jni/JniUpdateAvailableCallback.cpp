@@ -17,6 +17,8 @@
 
 #include "JniCallbacks.h"
 
+static jmethodID callbackMethod;
+
 static jlong JNICALL JniCtor(JNIEnv* env, jclass clazz, jobject callbackObject)
 {
   try
@@ -41,16 +43,10 @@ void JniUpdateAvailableCallback::Callback(const std::string& arg)
 {
   JNIEnvAcquire env(GetJavaVM());
 
-  jmethodID method = env->GetMethodID(
-      *JniLocalReference<jclass>(*env,
-          env->GetObjectClass(GetCallbackObject())),
-      "updateAvailableCallback",
-      "(Ljava/lang/String;)V");
-
-  if (method)
+  if (callbackMethod)
   {
     JniLocalReference<jstring> jArg(*env, env->NewStringUTF(arg.c_str()));
-    env->CallVoidMethod(GetCallbackObject(), method, *jArg);
+    env->CallVoidMethod(GetCallbackObject(), callbackMethod, *jArg);
   }
 
   CheckAndLogJavaException(*env);
@@ -67,4 +63,7 @@ Java_org_adblockplus_libadblockplus_UpdateAvailableCallback_registerNatives(
   JNIEnv *env, jclass clazz)
 {
   env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
+
+  callbackMethod = env->GetMethodID(clazz, "updateAvailableCallback",
+      "(Ljava/lang/String;)V");
 }
@@ -15,7 +15,20 @@
  * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+#include <cstdio>
+
 #include "JniCallbacks.h"
+#include "JniStats.h"
+
+static jmethodID httpGetMethod;
+static jclass headerEntryClass;
+static jmethodID headerEntryCtor;
+static jmethodID responseFileReadMethod;
+static jfieldID responseStatusField;
+static jfieldID responseResponseStatusField;
+static jfieldID responseTextField;
+static jfieldID responseFileField;
+static jfieldID responseHeadersField;
 
 static jlong JNICALL JniCtor(JNIEnv* env, jclass clazz, jobject callbackObject)
 {
@@ -31,28 +44,56 @@ static void JNICALL JniDtor(JNIEnv* env, jclass clazz, jlong ptr)
   delete JniLongToTypePtr<AdblockPlus::WebRequestPtr>(ptr);
 }
 
+// Reads a spooled response body in one go into a string of the right size,
+// so that it isn't copied around while growing. The engine only takes the
+// body as a whole string, so there is nothing to gain from streaming it
+static bool ReadResponseFile(const std::string& path, std::string& contents)
+{
+  FILE* file = fopen(path.c_str(), "rb");
+  if (!file)
+  {
+    return false;
+  }
+
+  bool success = false;
+  if (fseek(file, 0, SEEK_END) == 0)
+  {
+    const long size = ftell(file);
+    if (size >= 0 && fseek(file, 0, SEEK_SET) == 0)
+    {
+      contents.resize(size);
+      size_t read = 0;
+      while (read < static_cast<size_t>(size))
+      {
+        const size_t chunk = fread(&contents[read], 1, size - read, file);
+        if (chunk == 0)
+        {
+          break;
+        }
+        read += chunk;
+      }
+      success = read == static_cast<size_t>(size);
+    }
+  }
+  fclose(file);
+  return success;
+}
+
 JniWebRequest::JniWebRequest(JNIEnv* env, jobject callbackObject)
-  : JniCallbackBase(env, callbackObject), AdblockPlus::WebRequest(),
-    tupleClass(new JniGlobalReference<jclass>(env, env->FindClass(PKG("HeaderEntry")))),
-    serverResponseClass(new JniGlobalReference<jclass>(env, env->FindClass(PKG("ServerResponse"))))
+  : JniCallbackBase(env, callbackObject), AdblockPlus::WebRequest()
 {
 }
 
 AdblockPlus::ServerResponse JniWebRequest::GET(const std::string& url,
     const AdblockPlus::HeaderList& requestHeaders) const
 {
+  JniStatsTimer timer(JNI_STATS_WEB_REQUEST_GET);
   JNIEnvAcquire env(GetJavaVM());
 
-  jmethodID method = env->GetMethodID(
-      *JniLocalReference<jclass>(*env,
-          env->GetObjectClass(GetCallbackObject())),
-      "httpGET",
-      "(Ljava/lang/String;Ljava/util/List;)" TYP("ServerResponse"));
-
   AdblockPlus::ServerResponse sResponse;
   sResponse.status = AdblockPlus::WebRequest::NS_ERROR_FAILURE;
 
-  if (method)
+  if (httpGetMethod)
   {
     JniLocalReference<jobject> arrayList(*env, NewJniArrayList(*env));
 
@@ -64,20 +105,62 @@ AdblockPlus::ServerResponse JniWebRequest::GET(const std::string& url,
       JniAddObjectToList(*env, *arrayList, *tuple);
     }
 
-    JniLocalReference<jobject> response(*env,
-        env->CallObjectMethod(GetCallbackObject(), method,
-            *JniLocalReference<jstring>(*env, env->NewStringUTF(url.c_str())),
-            *arrayList));
+    JniLocalReference<jstring> jUrl(*env, env->NewStringUTF(url.c_str()));
+    jobject jResponse;
+    {
+      JniStatsCalleeTimer calleeTimer(JNI_STATS_WEB_REQUEST_GET);
+      jResponse = env->CallObjectMethod(GetCallbackObject(), httpGetMethod,
+          *jUrl, *arrayList);
+    }
+    JniLocalReference<jobject> response(*env, jResponse);
 
     if (!env->ExceptionCheck())
     {
-      sResponse.status = JniGetLongField(*env, serverResponseClass->Get(),
-          *response, "status");
-      sResponse.responseStatus = JniGetIntField(*env,
-          serverResponseClass->Get(), *response, "responseStatus");
-      sResponse.responseText = JniGetStringField(*env,
-          serverResponseClass->Get(), *response, "response");
-      // TODO: transform Headers
+      sResponse.status = env->GetLongField(*response, responseStatusField);
+      sResponse.responseStatus = env->GetIntField(*response,
+          responseResponseStatusField);
+      JniLocalReference<jstring> responseText(*env, static_cast<jstring>(
+          env->GetObjectField(*response, responseTextField)));
+      JniLocalReference<jstring> responseFile(*env, static_cast<jstring>(
+          env->GetObjectField(*response, responseFileField)));
+      if (!*responseText && *responseFile)
+      {
+        if (!ReadResponseFile(JniJavaToStdString(*env, *responseFile),
+            sResponse.responseText))
+        {
+          // The spool file is gone, better fail than report an empty list
+          sResponse.status = AdblockPlus::WebRequest::NS_ERROR_FAILURE;
+          sResponse.responseText.clear();
+        }
+      }
+      if (*responseFile)
+      {
+        // Lets the Java side give back its reference to the file
+        env->CallVoidMethod(GetCallbackObject(), responseFileReadMethod,
+            *responseFile);
+      }
+      else
+      {
+        sResponse.responseText = JniJavaToStdString(*env, *responseText);
+      }
+
+      // Headers are stored as a flat array of names and values
+      JniLocalReference<jobjectArray> headers(*env, static_cast<jobjectArray>(
+          env->GetObjectField(*response, responseHeadersField)));
+      if (*headers)
+      {
+        const jsize length = env->GetArrayLength(*headers);
+        for (jsize i = 0; i + 1 < length; i += 2)
+        {
+          JniLocalReference<jstring> name(*env, static_cast<jstring>(
+              env->GetObjectArrayElement(*headers, i)));
+          JniLocalReference<jstring> value(*env, static_cast<jstring>(
+              env->GetObjectArrayElement(*headers, i + 1)));
+          sResponse.responseHeaders.push_back(std::make_pair(
+              JniJavaToStdString(*env, *name),
+              JniJavaToStdString(*env, *value)));
+        }
+      }
     }
   }
 
@@ -89,13 +172,10 @@ AdblockPlus::ServerResponse JniWebRequest::GET(const std::string& url,
 jobject JniWebRequest::NewTuple(JNIEnv* env, const std::string& a,
     const std::string& b) const
 {
-  jmethodID factory = env->GetMethodID(tupleClass->Get(), "<init>",
-      "(Ljava/lang/String;Ljava/lang/String;)V");
-
   JniLocalReference<jstring> strA(env, env->NewStringUTF(a.c_str()));
   JniLocalReference<jstring> strB(env, env->NewStringUTF(b.c_str()));
 
-  return env->NewObject(tupleClass->Get(), factory, *strA, *strB);
+  return env->NewObject(headerEntryClass, headerEntryCtor, *strA, *strB);
 }
 
 static JNINativeMethod methods[] =
@@ -107,4 +187,25 @@ static JNINativeMethod methods[] =
 extern "C" JNIEXPORT void JNICALL Java_org_adblockplus_libadblockplus_WebRequest_registerNatives(JNIEnv *env, jclass clazz)
 {
   env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
+
+  httpGetMethod = env->GetMethodID(clazz, "httpGET",
+      "(Ljava/lang/String;Ljava/util/List;)" TYP("ServerResponse"));
+  responseFileReadMethod = env->GetMethodID(clazz, "responseFileRead",
+      "(Ljava/lang/String;)V");
+
+  headerEntryClass = JniFindGlobalClass(env, PKG("HeaderEntry"));
+  headerEntryCtor = env->GetMethodID(headerEntryClass, "<init>",
+      "(Ljava/lang/String;Ljava/lang/String;)V");
+
+  JniLocalReference<jclass> serverResponseClass(env,
+      env->FindClass(PKG("ServerResponse")));
+  responseStatusField = env->GetFieldID(*serverResponseClass, "status", "J");
+  responseResponseStatusField = env->GetFieldID(*serverResponseClass,
+      "responseStatus", "I");
+  responseTextField = env->GetFieldID(*serverResponseClass, "response",
+      "Ljava/lang/String;");
+  responseFileField = env->GetFieldID(*serverResponseClass, "responseFile",
+      "Ljava/lang/String;");
+  responseHeadersField = env->GetFieldID(*serverResponseClass, "headers",
+      "[Ljava/lang/String;");
 }
@@ -15,10 +15,92 @@
  * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+#include <pthread.h>
 #include <string>
 
 #include "Utils.h"
 
+static JniCachedIds cachedIds;
+static pthread_key_t attachedThreadKey;
+
+static void DetachThread(void* javaVM)
+{
+  static_cast<JavaVM*>(javaVM)->DetachCurrentThread();
+}
+
+jclass JniFindGlobalClass(JNIEnv* env, const char* name)
+{
+  JniLocalReference<jclass> clazz(env, env->FindClass(name));
+  return static_cast<jclass>(env->NewGlobalRef(*clazz));
+}
+
+const JniCachedIds& JniGetCachedIds()
+{
+  return cachedIds;
+}
+
+// FindClass() and GetMethodID() initialize the classes they are given, and
+// the static initializers of Filter, Subscription, Notification and JsValue
+// call System.loadLibrary() for this very library again before calling their
+// registerNatives(). That recursion is safe: the VM adds the library to its
+// list of loaded libraries before calling JNI_OnLoad, and a loadLibrary() for
+// a library whose JNI_OnLoad is running on the calling thread returns right
+// away without calling JNI_OnLoad again (rather than waiting for itself).
+// registerNatives() is then resolved from this library's exports and only
+// calls RegisterNatives(), it doesn't use any of the IDs cached here.
+extern "C" JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* javaVM, void* reserved)
+{
+  JNIEnv* env;
+  if (javaVM->GetEnv(reinterpret_cast<void**>(&env), ABP_JNI_VERSION) != JNI_OK
+      || pthread_key_create(&attachedThreadKey, DetachThread))
+  {
+    return JNI_ERR;
+  }
+
+  cachedIds.arrayListClass = JniFindGlobalClass(env, "java/util/ArrayList");
+  cachedIds.arrayListCtor = env->GetMethodID(cachedIds.arrayListClass,
+      "<init>", "()V");
+  {
+    JniLocalReference<jclass> listClass(env, env->FindClass("java/util/List"));
+    cachedIds.listAdd = env->GetMethodID(*listClass, "add",
+        "(Ljava/lang/Object;)Z");
+  }
+  {
+    JniLocalReference<jclass> enumClass(env, env->FindClass("java/lang/Enum"));
+    cachedIds.enumOrdinal = env->GetMethodID(*enumClass, "ordinal", "()I");
+    cachedIds.enumName = env->GetMethodID(*enumClass, "name",
+        "()Ljava/lang/String;");
+  }
+
+  cachedIds.exceptionClass = JniFindGlobalClass(env,
+      PKG("AdblockPlusException"));
+  cachedIds.exceptionHandlerClass = JniFindGlobalClass(env,
+      PKG("JniExceptionHandler"));
+  cachedIds.exceptionHandlerLogException = env->GetStaticMethodID(
+      cachedIds.exceptionHandlerClass, "logException",
+      "(Ljava/lang/Throwable;)V");
+
+  cachedIds.filterClass = JniFindGlobalClass(env, PKG("Filter"));
+  cachedIds.filterCtor = env->GetMethodID(cachedIds.filterClass, "<init>",
+      "(J)V");
+  cachedIds.subscriptionClass = JniFindGlobalClass(env, PKG("Subscription"));
+  cachedIds.subscriptionCtor = env->GetMethodID(cachedIds.subscriptionClass,
+      "<init>", "(J)V");
+  cachedIds.notificationClass = JniFindGlobalClass(env, PKG("Notification"));
+  cachedIds.notificationCtor = env->GetMethodID(cachedIds.notificationClass,
+      "<init>", "(J)V");
+  cachedIds.jsValueClass = JniFindGlobalClass(env, PKG("JsValue"));
+  cachedIds.jsValueCtor = env->GetMethodID(cachedIds.jsValueClass, "<init>",
+      "(J)V");
+
+  if (env->ExceptionCheck())
+  {
+    return JNI_ERR;
+  }
+
+  return ABP_JNI_VERSION;
+}
+
 std::string JniJavaToStdString(JNIEnv* env, jstring str)
 {
   if (!str)
@@ -35,23 +117,17 @@ std::string JniJavaToStdString(JNIEnv* env, jstring str)
 
 jobject NewJniArrayList(JNIEnv* env)
 {
-  JniLocalReference<jclass> clazz(env, env->FindClass("java/util/ArrayList"));
-  jmethodID ctor = env->GetMethodID(*clazz, "<init>", "()V");
-  return env->NewObject(*clazz, ctor);
+  return env->NewObject(cachedIds.arrayListClass, cachedIds.arrayListCtor);
 }
 
 void JniAddObjectToList(JNIEnv* env, jobject list, jobject value)
 {
-  JniLocalReference<jclass> clazz(env, env->GetObjectClass(list));
-  jmethodID add = env->GetMethodID(*clazz, "add", "(Ljava/lang/Object;)Z");
-  env->CallBooleanMethod(list, add, value);
+  env->CallBooleanMethod(list, cachedIds.listAdd, value);
 }
 
 void JniThrowException(JNIEnv* env, const std::string& message)
 {
-  JniLocalReference<jclass> clazz(env,
-      env->FindClass(PKG("AdblockPlusException")));
-  env->ThrowNew(*clazz, message.c_str());
+  env->ThrowNew(cachedIds.exceptionClass, message.c_str());
 }
 
 void JniThrowException(JNIEnv* env, const std::exception& e)
@@ -65,60 +141,61 @@ void JniThrowException(JNIEnv* env)
 }
 
 JNIEnvAcquire::JNIEnvAcquire(JavaVM* javaVM)
-  : javaVM(javaVM), jniEnv(0), attachmentStatus(0)
+  : jniEnv(0), localFramePushed(false)
 {
-  attachmentStatus = javaVM->GetEnv((void **)&jniEnv, ABP_JNI_VERSION);
-  if (attachmentStatus == JNI_EDETACHED)
+  if (javaVM->GetEnv((void **)&jniEnv, ABP_JNI_VERSION) == JNI_EDETACHED)
   {
-    if (javaVM->AttachCurrentThread(&jniEnv, 0))
+    if (javaVM->AttachCurrentThreadAsDaemon(&jniEnv, 0))
     {
       // This one is FATAL, we can't recover from this (because without a JVM we're dead), so
       // throwing a runtime_exception in a ctor can be tolerated here IMHO
       throw std::runtime_error("Failed to get JNI environment");
     }
+    // Detaches the thread when it exits
+    pthread_setspecific(attachedThreadKey, javaVM);
   }
+  localFramePushed = jniEnv->PushLocalFrame(16) == 0;
 }
 
 JNIEnvAcquire::~JNIEnvAcquire()
 {
-  if (attachmentStatus == JNI_EDETACHED)
+  if (localFramePushed)
   {
-    javaVM->DetachCurrentThread();
+    jniEnv->PopLocalFrame(0);
   }
 }
 
 template<typename T>
-static jobject NewJniObject(JNIEnv* env, const T& value, const char* javaClass)
+static jobject NewJniObject(JNIEnv* env, const T& value, jclass clazz,
+    jmethodID ctor)
 {
   if (!value.get())
   {
     return 0;
   }
 
-  JniLocalReference<jclass> clazz(
-      env,
-      env->FindClass(javaClass));
-  jmethodID method = env->GetMethodID(*clazz, "<init>", "(J)V");
-
   return env->NewObject(
-      *clazz,
-      method,
+      clazz,
+      ctor,
       JniPtrToLong(new T(value)));
 }
 
 jobject NewJniFilter(JNIEnv* env, const AdblockPlus::FilterPtr& filter)
 {
-  return NewJniObject(env, filter, PKG("Filter"));
+  return NewJniObject(env, filter, cachedIds.filterClass,
+      cachedIds.filterCtor);
 }
 
 jobject NewJniSubscription(JNIEnv* env,
     const AdblockPlus::SubscriptionPtr& subscription)
 {
-  return NewJniObject(env, subscription, PKG("Subscription"));
+  return NewJniObject(env, subscription, cachedIds.subscriptionClass,
+      cachedIds.subscriptionCtor);
 }
 
 jobject NewJniNotification(JNIEnv* env,
     const AdblockPlus::NotificationPtr& notification)
 {
-  return NewJniObject(env, notification, PKG("Notification"));
+  return NewJniObject(env, notification, cachedIds.notificationClass,
+      cachedIds.notificationCtor);
 }
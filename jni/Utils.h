@@ -74,6 +74,12 @@ private:
   T object;
 };
 
+/**
+ * Native threads calling back into Java get attached once and stay attached
+ * until they exit, attaching them for every callback is expensive. Since
+ * their local references would never be freed otherwise, every acquisition
+ * gets its own local frame.
+ */
 class JNIEnvAcquire
 {
 public:
@@ -91,9 +97,8 @@ public:
   }
 
 private:
-  JavaVM* javaVM;
   JNIEnv* jniEnv;
-  int attachmentStatus;
+  bool localFramePushed;
 };
 
 template<typename T>
@@ -171,6 +176,36 @@ inline int64_t JniGetLongField(JNIEnv* env, jclass clazz, jobject jObj, const ch
   return (int64_t)env->GetLongField(jObj, env->GetFieldID(clazz, name, "J"));
 }
 
+/**
+ * Classes and method IDs used all over the bindings. They are resolved once
+ * in JNI_OnLoad() and stay valid as long as the library is loaded.
+ */
+struct JniCachedIds
+{
+  jclass arrayListClass;
+  jmethodID arrayListCtor;
+  jmethodID listAdd;
+  jmethodID enumOrdinal;
+  jmethodID enumName;
+  jclass exceptionClass;
+  jclass exceptionHandlerClass;
+  jmethodID exceptionHandlerLogException;
+  jclass filterClass;
+  jmethodID filterCtor;
+  jclass subscriptionClass;
+  jmethodID subscriptionCtor;
+  jclass notificationClass;
+  jmethodID notificationCtor;
+  jclass jsValueClass;
+  jmethodID jsValueCtor;
+};
+
+const JniCachedIds& JniGetCachedIds();
+
+// Returns a global reference to the class, meant to be kept for the lifetime
+// of the library
+jclass JniFindGlobalClass(JNIEnv* env, const char* name);
+
 jobject NewJniArrayList(JNIEnv* env);
 
 jobject NewJniFilter(JNIEnv* env, const AdblockPlus::FilterPtr& filter);
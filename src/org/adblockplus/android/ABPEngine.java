@@ -17,16 +17,22 @@
 
 package org.adblockplus.android;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
 
+import org.adblockplus.android.filters.FilterText;
+import org.adblockplus.android.filters.HostTrie;
+import org.adblockplus.android.filters.TokenPrefilter;
 import org.adblockplus.libadblockplus.AppInfo;
-import org.adblockplus.libadblockplus.Filter;
+import org.adblockplus.libadblockplus.DisposeScope;
 import org.adblockplus.libadblockplus.FilterChangeCallback;
 import org.adblockplus.libadblockplus.FilterEngine;
 import org.adblockplus.libadblockplus.FilterEngine.ContentType;
 import org.adblockplus.libadblockplus.JsEngine;
+import org.adblockplus.libadblockplus.JsValue;
 import org.adblockplus.libadblockplus.LogSystem;
 import org.adblockplus.libadblockplus.ShowNotificationCallback;
 import org.adblockplus.libadblockplus.Subscription;
@@ -37,11 +43,16 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Build.VERSION;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 public final class ABPEngine
 {
   private static final String TAG = Utils.getTag(ABPEngine.class);
+  /**
+   * Directory below the base path that downloads are spooled to.
+   */
+  private static final String DOWNLOAD_DIR = "downloads";
 
   private final Context context;
 
@@ -65,11 +76,33 @@ public final class ABPEngine
   private volatile FilterChangeCallback filterChangeCallback;
   private volatile ShowNotificationCallback showNotificationCallback;
   private final boolean elemhideEnabled;
+  private final MatchCache matchCache = new MatchCache();
+  private final DocumentDecisionCache documentDecisionCache = new DocumentDecisionCache();
+  private final ElemhidePayloadCache elemhidePayloadCache = new ElemhidePayloadCache();
+  private final SubscriptionMirror subscriptions = new SubscriptionMirror();
+  private volatile FilterIndexUpdater indexUpdater;
+  /**
+   * Development builds double check verdicts taken from the Java side
+   * indexes against the filter engine.
+   */
+  private final boolean verifyIndexes;
+  private volatile NativeFilterMatcher nativeMatcher;
+  /**
+   * Number of filter engines requests are matched on, see
+   * {@link FilterEnginePool}.
+   */
+  private final int poolSize;
+  private volatile FilterEnginePool pool;
+  private volatile SubscriptionRefreshScheduler refreshScheduler;
 
   private ABPEngine(final Context context, final boolean enableElemhide)
   {
     this.context = context;
     this.elemhideEnabled = enableElemhide;
+    this.verifyIndexes = !context.getResources().getBoolean(R.bool.def_release);
+    final int poolSize = PreferenceManager.getDefaultSharedPreferences(context).getInt(
+        context.getString(R.string.pref_enginepoolsize), context.getResources().getInteger(R.integer.def_enginepoolsize));
+    this.poolSize = Math.max(1, Math.min(poolSize, Runtime.getRuntime().availableProcessors()));
   }
 
   public static AppInfo generateAppInfo(final Context context)
@@ -113,17 +146,53 @@ public final class ABPEngine
     engine.logSystem = new AndroidLogSystem();
     engine.jsEngine.setLogSystem(engine.logSystem);
 
-    engine.webRequest = new AndroidWebRequest(enableElemhide);
+    engine.webRequest = new AndroidWebRequest(enableElemhide, new File(basePath, DOWNLOAD_DIR));
     engine.jsEngine.setWebRequest(engine.webRequest);
 
     engine.filterEngine = new FilterEngine(engine.jsEngine);
+    SubscriptionRefreshScheduler.disableAutomaticUpdates(engine.jsEngine, engine.filterEngine);
 
     engine.webRequest.updateSubscriptionURLs(engine.filterEngine);
 
+    engine.pool = FilterEnginePool.create(appInfo, basePath, engine.filterEngine, engine.webRequest, enableElemhide,
+        engine.poolSize, new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            // Replicas might have answered with outdated filters until now
+            engine.matchCache.invalidate();
+            engine.documentDecisionCache.invalidate();
+            engine.elemhidePayloadCache.invalidate();
+          }
+        });
+    engine.nativeMatcher = new NativeFilterMatcher(engine.pool);
+    engine.indexUpdater = new FilterIndexUpdater(engine.filterEngine, new File(basePath, FilterIndexSnapshot.FILE_NAME), new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        // Verdicts computed from the previous generation of indexes
+        engine.matchCache.invalidate();
+        engine.documentDecisionCache.invalidate();
+        engine.elemhidePayloadCache.invalidate();
+      }
+    });
+    engine.indexUpdater.loadSnapshot();
+    engine.indexUpdater.invalidate();
+
     engine.updateAvailableCallback = new AndroidUpdateAvailableCallback(context);
     engine.filterEngine.setUpdateAvailableCallback(engine.updateAvailableCallback);
-    engine.filterChangeCallback = new AndroidFilterChangeCallback(context);
+    engine.filterChangeCallback = new AndroidFilterChangeCallback(context, engine);
     engine.filterEngine.setFilterChangeCallback(engine.filterChangeCallback);
+    engine.subscriptions.reload(engine.filterEngine);
+
+    final int refreshWorkers = PreferenceManager.getDefaultSharedPreferences(context).getInt(
+        context.getString(R.string.pref_refreshworkers), context.getResources().getInteger(R.integer.def_refreshworkers));
+    engine.refreshScheduler = new SubscriptionRefreshScheduler(context, engine.filterEngine, engine.subscriptions,
+        refreshWorkers);
+    engine.webRequest.setDownloadObserver(engine.refreshScheduler);
+    engine.refreshScheduler.start();
 
     engine.updateCheckDoneCallback = new AndroidUpdateCheckDoneCallback(context);
 
@@ -136,6 +205,24 @@ public final class ABPEngine
   public void dispose()
   {
     // Safe disposing (just in case)
+    if (this.refreshScheduler != null)
+    {
+      this.refreshScheduler.shutdown();
+      this.refreshScheduler = null;
+    }
+
+    if (this.indexUpdater != null)
+    {
+      this.indexUpdater.dispose();
+      this.indexUpdater = null;
+    }
+
+    if (this.pool != null)
+    {
+      this.pool.dispose();
+      this.pool = null;
+    }
+
     if (this.filterEngine != null)
     {
       this.filterEngine.dispose();
@@ -224,44 +311,84 @@ public final class ABPEngine
 
   public org.adblockplus.android.Subscription[] getListedSubscriptions()
   {
-    return convertJsSubscriptions(this.filterEngine.getListedSubscriptions());
+    final Collection<SubscriptionMirror.Entry> entries = this.subscriptions.getEntries();
+    final org.adblockplus.android.Subscription[] subscriptions = new org.adblockplus.android.Subscription[entries.size()];
+    int i = 0;
+    for (final SubscriptionMirror.Entry entry : entries)
+    {
+      subscriptions[i++] = entry.toSubscription();
+    }
+    return subscriptions;
   }
 
   public void setSubscription(final String url)
   {
-    for (final Subscription s : this.filterEngine.getListedSubscriptions())
+    final DisposeScope scope = new DisposeScope();
+    try
     {
-      s.removeFromList();
-    }
+      for (final SubscriptionMirror.Entry entry : this.subscriptions.getEntries())
+      {
+        final Subscription s = scope.add(this.filterEngine.getSubscription(entry.url));
+        if (s != null)
+        {
+          s.removeFromList();
+        }
+      }
 
-    final Subscription sub = this.filterEngine.getSubscription(url);
-    if (sub != null)
+      final Subscription sub = scope.add(this.filterEngine.getSubscription(url));
+      if (sub != null)
+      {
+        sub.addToList();
+      }
+    }
+    finally
     {
-      sub.addToList();
+      scope.dispose();
     }
   }
 
+  /**
+   * Refreshes all listed subscriptions right away, see
+   * {@link SubscriptionRefreshScheduler#refreshAll(boolean)}.
+   */
   public void refreshSubscriptions()
   {
-    for (final Subscription s : this.filterEngine.getListedSubscriptions())
-    {
-      s.updateFilters();
-    }
+    this.refreshScheduler.refreshAll(true);
+  }
+
+  /**
+   * Returns the refresh statistics of the subscriptions.
+   */
+  public List<SubscriptionRefreshScheduler.Stats> getSubscriptionRefreshStats()
+  {
+    return this.refreshScheduler.getStats();
   }
 
   public void setAcceptableAdsEnabled(final boolean enabled)
   {
     final String url = this.filterEngine.getPref("subscriptions_exceptionsurl").toString();
+    if ((this.subscriptions.get(url) != null) == enabled)
+    {
+      return;
+    }
+
     final Subscription sub = this.filterEngine.getSubscription(url);
     if (sub != null)
     {
-      if (enabled)
+      try
       {
-        sub.addToList();
+        if (enabled)
+        {
+          sub.addToList();
+        }
+        else
+        {
+          sub.removeFromList();
+        }
       }
-      else
+      finally
       {
-        sub.removeFromList();
+        sub.dispose();
       }
     }
   }
@@ -273,57 +400,199 @@ public final class ABPEngine
 
   public boolean matches(final String fullUrl, final ContentType contentType, final String[] referrerChainArray)
   {
-    final Filter filter = this.filterEngine.matches(fullUrl, contentType, referrerChainArray);
+    final MatchCache.Key key = new MatchCache.Key(fullUrl, contentType, referrerChainArray);
+    final int generation = this.matchCache.getGeneration();
+    final Boolean cached = this.matchCache.get(key);
+    if (cached != null)
+    {
+      return cached.booleanValue();
+    }
+
+    final boolean verdict = this.matchesUncached(this.indexUpdater.getIndexes(), fullUrl, contentType,
+        referrerChainArray);
+    this.matchCache.put(key, verdict, generation);
+    return verdict;
+  }
+
+  /**
+   * Matches several requests sharing the same referrer chain with the filter
+   * engine in a single native call. Neither the match cache nor the indexes
+   * are involved, so this doesn't skew their statistics, it is meant for
+   * warming up the filter engine (see {@link WarmupRequests}).
+   */
+  public boolean[] matchesAll(final String[] fullUrls, final ContentType[] contentTypes,
+      final String[] referrerChainArray)
+  {
+    return this.nativeMatcher.matchesAll(fullUrls, contentTypes, referrerChainArray);
+  }
 
-    if (filter == null)
+  /**
+   * Matches a request against one generation of indexes, so that a
+   * concurrent index swap doesn't mix up generations.
+   */
+  private boolean matchesUncached(final FilterIndexes indexes, final String fullUrl, final ContentType contentType,
+      final String[] referrerChainArray)
+  {
+    // Outdated indexes disagree with the filter engine by design, they might
+    // lack filters that got added since
+    final boolean current = indexes != null && this.indexUpdater.isCurrent(indexes);
+    final boolean verify = this.verifyIndexes && current;
+
+    // Outdated indexes might still block hosts the filter engine allows
+    // meanwhile
+    if (current && isBlockedHost(indexes, fullUrl, contentType, referrerChainArray))
     {
+      this.indexUpdater.recordBlockedHostHit();
+      if (verify && !this.nativeMatcher.matches(fullUrl, contentType, referrerChainArray))
+      {
+        Log.w(TAG, "Blocked hosts trie and filter engine disagree on " + fullUrl);
+      }
+      return true;
+    }
+
+    // Ruling out requests takes indexes covering all filters. The filter
+    // engine checks domain restrictions against the innermost document.
+    final TokenPrefilter prefilter = current ? indexes.getPrefilter() : null;
+    if (prefilter != null && !prefilter.mayMatch(fullUrl, referrerChainArray.length > 0
+        ? FilterText.getHost(referrerChainArray[referrerChainArray.length - 1]) : ""))
+    {
+      this.indexUpdater.recordPrefilterSkip();
       return false;
     }
 
-    // hack: if there is no referrer, block only if filter is domain-specific
-    // (to re-enable in-app ads blocking, proposed on 12.11.2012 Monday meeting)
-    // (documentUrls contains the referrers on Android)
-    if (referrerChainArray.length == 0 && (filter.getProperty("text").toString()).contains("||"))
+    final boolean verdict = this.nativeMatcher.matches(fullUrl, contentType, referrerChainArray);
+
+    if (prefilter != null)
+    {
+      this.indexUpdater.recordPrefilterPass(verdict);
+    }
+
+    return verdict;
+  }
+
+  /**
+   * Checks whether a plain <code>||host^</code> filter blocks the request and
+   * no exception filter can possibly apply to it or to one of its documents,
+   * in which case the filter engine would block it as well.
+   *
+   * Requests without referrers are left to the filter engine, as its verdict
+   * depends on which filter it picks for those (see below).
+   */
+  static boolean isBlockedHost(final FilterIndexes indexes, final String fullUrl,
+      final ContentType contentType, final String[] referrerChainArray)
+  {
+    if (indexes == null || referrerChainArray.length == 0)
     {
       return false;
     }
 
-    return filter.getType() != Filter.Type.EXCEPTION;
+    final HostTrie blockedHosts = indexes.getBlockedHosts();
+    final TokenPrefilter exceptionPrefilter = indexes.getExceptionPrefilter();
+
+    if ((blockedHosts.getMaskForUrl(fullUrl) & FilterText.contentTypeMask(contentType)) == 0
+        || exceptionPrefilter.mayMatch(fullUrl))
+    {
+      return false;
+    }
+    for (final String referrer : referrerChainArray)
+    {
+      if (exceptionPrefilter.mayMatch(referrer))
+      {
+        return false;
+      }
+    }
+    return true;
   }
 
   public boolean isDocumentWhitelisted(final String url, final String[] referrerChainArray)
   {
-    return this.filterEngine.isDocumentWhitelisted(url, referrerChainArray);
+    return this.nativeMatcher.isDocumentWhitelisted(url, referrerChainArray);
   }
 
   public boolean isElemhideWhitelisted(final String url, final String[] referrerChainArray)
   {
-    return this.filterEngine.isElemhideWhitelisted(url, referrerChainArray);
+    return this.nativeMatcher.isElemhideWhitelisted(url, referrerChainArray);
   }
 
-  public List<String> getElementHidingSelectors(final String url, final String[] referrerChainArray)
+  /**
+   * Checks whether the top level document of a referrer chain is whitelisted
+   * by a <code>$document</code> exception, in which case none of its
+   * subresources are blocked. Decisions are cached per document.
+   */
+  public boolean isPageWhitelisted(final String[] referrerChainArray)
   {
-    /*
-     * Issue 3364 (https://issues.adblockplus.org/ticket/3364) introduced the
-     * feature to re-enabled element hiding.
-     *
-     * Nothing changes for Adblock Plus for Android, as `this.elemhideEnabled`
-     * is `false`, which results in an empty list being returned and converted
-     * into a `(String[])null` in AdblockPlus.java, which is the only place
-     * this function here is called from Adblock Plus for Android.
-     *
-     * If element hiding is enabled, then this function now first checks for
-     * possible whitelisting of either the document or element hiding for
-     * the given URL and returns an empty list if so. This is needed to
-     * ensure correct functioning of e.g. acceptable ads.
-     */
-    if (!this.elemhideEnabled
-        || this.isDocumentWhitelisted(url, referrerChainArray)
-        || this.isElemhideWhitelisted(url, referrerChainArray))
+    if (referrerChainArray.length == 0)
     {
-      return new ArrayList<String>();
+      return false;
     }
-    return this.filterEngine.getElementHidingSelectors(url);
+
+    final String documentUrl = referrerChainArray[0];
+    final Boolean cached = this.documentDecisionCache.isDocumentWhitelisted(documentUrl);
+    if (cached != null)
+    {
+      return cached.booleanValue();
+    }
+
+    // Same question the filter engine asks first when matching a request
+    // from this document
+    final int generation = this.documentDecisionCache.getGeneration();
+    final boolean whitelisted = this.nativeMatcher.isDocumentWhitelisted(
+        documentUrl, new String[] { documentUrl });
+    this.documentDecisionCache.putDocumentWhitelisted(documentUrl, whitelisted, generation);
+    return whitelisted;
+  }
+
+  /**
+   * Checks whether element hiding is disabled on a document, using the cached
+   * decisions of its top level document where possible.
+   */
+  private boolean isElemhideDisabled(final String url, final String[] referrerChainArray)
+  {
+    if (referrerChainArray.length > 0)
+    {
+      // Frames of whitelisted pages aren't filtered either
+      if (this.isPageWhitelisted(referrerChainArray))
+      {
+        return true;
+      }
+      return this.isDocumentWhitelisted(url, referrerChainArray)
+          || this.isElemhideWhitelisted(url, referrerChainArray);
+    }
+
+    final Boolean cached = this.documentDecisionCache.isElemhideDisabled(url);
+    if (cached != null)
+    {
+      return cached.booleanValue();
+    }
+
+    final int generation = this.documentDecisionCache.getGeneration();
+    final boolean disabled = this.isDocumentWhitelisted(url, referrerChainArray)
+        || this.isElemhideWhitelisted(url, referrerChainArray);
+    this.documentDecisionCache.putElemhideDisabled(url, disabled, generation);
+    return disabled;
+  }
+
+  /**
+   * Returns the element hiding style sheet to inject into a document, encoded
+   * in the document's charset, or <code>null</code> if there is nothing to
+   * inject. Style sheets are cached per domain and charset.
+   */
+  public byte[] getElementHidingPayload(final String url, final String[] referrerChainArray, final Charset charset)
+  {
+    if (!this.elemhideEnabled || this.isElemhideDisabled(url, referrerChainArray))
+    {
+      return null;
+    }
+
+    final int generation = this.elemhidePayloadCache.getGeneration();
+    byte[] payload = this.elemhidePayloadCache.get(url, charset);
+    if (payload == null)
+    {
+      payload = ElemhidePayloadCache.encode(
+          this.nativeMatcher.getElementHidingSelectors(url), charset);
+      this.elemhidePayloadCache.put(url, charset, payload, generation);
+    }
+    return payload.length > 0 ? payload : null;
   }
 
   public void checkForUpdates()
@@ -333,11 +602,101 @@ public final class ABPEngine
 
   public void updateSubscriptionStatus(final String url)
   {
+    final SubscriptionMirror.Entry entry = this.subscriptions.get(url);
+    if (entry != null)
+    {
+      Utils.updateSubscriptionStatus(this.context, entry);
+      return;
+    }
+
     final Subscription sub = this.filterEngine.getSubscription(url);
     if (sub != null)
     {
-      Utils.updateSubscriptionStatus(this.context, sub);
+      try
+      {
+        Utils.updateSubscriptionStatus(this.context, new SubscriptionMirror.Entry(sub));
+      }
+      finally
+      {
+        sub.dispose();
+      }
+    }
+  }
+
+  public MatchCache getMatchCache()
+  {
+    return this.matchCache;
+  }
+
+  DocumentDecisionCache getDocumentDecisionCache()
+  {
+    return this.documentDecisionCache;
+  }
+
+  /**
+   * Called by {@link AndroidFilterChangeCallback} for every filter change
+   * event, drops everything derived from the current set of filters.
+   */
+  void onFilterChange(final String action)
+  {
+    if (action.equals("load"))
+    {
+      this.subscriptions.reload(this.filterEngine);
+    }
+    if (affectsMatching(action))
+    {
+      this.matchCache.invalidate();
+      this.documentDecisionCache.invalidate();
+      this.elemhidePayloadCache.invalidate();
+      if (this.indexUpdater != null)
+      {
+        this.indexUpdater.invalidate();
+      }
     }
+    // Other subscription.* events (e.g. lastCheck or downloadStatus) don't
+    // keep the primary busy
+    if (affectsMatching(action) && this.pool != null)
+    {
+      this.pool.onPrimaryChanging();
+    }
+  }
+
+  /**
+   * Called by {@link AndroidFilterChangeCallback} for
+   * <code>subscription.*</code> events, returns the updated state of the
+   * subscription or <code>null</code> if it isn't listed.
+   */
+  SubscriptionMirror.Entry onSubscriptionChange(final String action, final JsValue jsValue)
+  {
+    final SubscriptionMirror.Entry entry = this.subscriptions.onSubscriptionChange(action, jsValue);
+    final SubscriptionRefreshScheduler refreshScheduler = this.refreshScheduler;
+    if (entry != null && refreshScheduler != null)
+    {
+      refreshScheduler.onSubscriptionChange(action, entry);
+    }
+    return entry;
+  }
+
+  private static boolean affectsMatching(final String action)
+  {
+    return action.equals("load")
+        || action.equals("filter.added")
+        || action.equals("filter.removed")
+        || action.equals("filter.disabled")
+        || action.equals("subscription.added")
+        || action.equals("subscription.removed")
+        || action.equals("subscription.disabled")
+        || action.equals("subscription.updated");
+  }
+
+  public FilterIndexUpdater getFilterIndexUpdater()
+  {
+    return this.indexUpdater;
+  }
+
+  public FilterEnginePool getFilterEnginePool()
+  {
+    return this.pool;
   }
 
   public FilterEngine getFilterEngine()
@@ -19,11 +19,24 @@ package org.adblockplus.android;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.HashSet;
 import java.util.List;
-import java.util.regex.Pattern;
-
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.adblockplus.android.filters.ContentTypeClassifier;
 import org.adblockplus.libadblockplus.FilterEngine.ContentType;
 import org.apache.commons.lang.StringUtils;
 
@@ -53,12 +66,6 @@ public class AdblockPlus extends Application
 
   private static final String TAG = Utils.getTag(AdblockPlus.class);
 
-  private static final Pattern RE_JS = Pattern.compile("\\.js$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern RE_CSS = Pattern.compile("\\.css$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern RE_IMAGE = Pattern.compile("\\.(?:gif|png|jpe?g|bmp|ico)$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern RE_FONT = Pattern.compile("\\.(?:ttf|woff)$", Pattern.CASE_INSENSITIVE);
-  private static final Pattern RE_HTML = Pattern.compile("\\.html?$", Pattern.CASE_INSENSITIVE);
-
   /**
    * Broadcasted when filtering is enabled or disabled.
    */
@@ -67,6 +74,10 @@ public class AdblockPlus extends Application
    * Broadcasted when subscription status changes.
    */
   public static final String BROADCAST_SUBSCRIPTION_STATUS = "org.adblockplus.android.subscription.status";
+  /**
+   * Broadcasted when the engine started in the background is ready.
+   */
+  public static final String BROADCAST_ENGINE_READY = "org.adblockplus.android.engine.ready";
   /**
    * Cached list of recommended subscriptions.
    */
@@ -76,11 +87,51 @@ public class AdblockPlus extends Application
    */
   private boolean filteringEnabled = false;
 
-  private ABPEngine abpEngine;
+  /**
+   * States of the filter engine, which is started in the background.
+   */
+  public static enum EngineState
+  {
+    STOPPED, INITIALIZING, READY, DEGRADED
+  }
+
+  /**
+   * Only set once the engine is ready, see {@link #isEngineReady()}.
+   */
+  private volatile ABPEngine abpEngine;
+  private volatile EngineState engineState = EngineState.STOPPED;
+  private Future<ABPEngine> engineFuture;
+  /**
+   * Bumped by every start and stop, an engine only gets published if no
+   * other start or stop happened while it was created.
+   */
+  private int engineStarts = 0;
+  private final ExecutorService engineExecutor = newDaemonExecutor(ABPEngine.class.getSimpleName());
+  /**
+   * Downloads hosts files, kept off the engine executor as they can be slow.
+   */
+  private final ExecutorService hostsExecutor = newDaemonExecutor(HostsBlocklist.class.getSimpleName());
+  /**
+   * Whether to block all requests until the engine is ready, instead of
+   * only those blocked by the indexes of the previous session. Doesn't apply
+   * once the engine failed to start.
+   */
+  private volatile boolean failClosedWhileStarting = false;
+  private volatile FilterIndexes startupIndexes;
+  private final WarmupRequests warmupRequests = new WarmupRequests();
+  private volatile Future<?> warmupFuture;
+  /**
+   * Hosts imported from hosts files, blocked without asking the engine.
+   */
+  private volatile HostsBlocklist hostsBlocklist;
 
   private static AdblockPlus instance;
 
   private final ReferrerMapping referrerMapping = new ReferrerMapping();
+  /**
+   * Requests checked so far, to tell how busy the proxy is.
+   */
+  private final AtomicLong requestCount = new AtomicLong();
 
   /**
    * Returns pointer to itself (singleton pattern).
@@ -188,7 +239,7 @@ public class AdblockPlus extends Application
 
   public boolean isFirstRun()
   {
-    return abpEngine.isFirstRun();
+    return getEngine().isFirstRun();
   }
 
   /**
@@ -197,7 +248,7 @@ public class AdblockPlus extends Application
   public Subscription[] getRecommendedSubscriptions()
   {
     if (subscriptions == null)
-      subscriptions = abpEngine.getRecommendedSubscriptions();
+      subscriptions = getEngine().getRecommendedSubscriptions();
     return subscriptions;
   }
 
@@ -206,7 +257,7 @@ public class AdblockPlus extends Application
    */
   public Subscription[] getListedSubscriptions()
   {
-    return abpEngine.getListedSubscriptions();
+    return getEngine().getListedSubscriptions();
   }
 
   /**
@@ -217,7 +268,14 @@ public class AdblockPlus extends Application
    */
   public void setSubscription(final String url)
   {
-    abpEngine.setSubscription(url);
+    runOnEngine(new EngineTask()
+    {
+      @Override
+      public void run(final ABPEngine engine)
+      {
+        engine.setSubscription(url);
+      }
+    });
   }
 
   /**
@@ -225,7 +283,31 @@ public class AdblockPlus extends Application
    */
   public void refreshSubscriptions()
   {
-    abpEngine.refreshSubscriptions();
+    runOnEngine(new EngineTask()
+    {
+      @Override
+      public void run(final ABPEngine engine)
+      {
+        engine.refreshSubscriptions();
+      }
+    });
+  }
+
+  /**
+   * Returns the refresh statistics of the subscriptions (download time and
+   * size, parse time, failures).
+   */
+  public List<SubscriptionRefreshScheduler.Stats> getSubscriptionRefreshStats()
+  {
+    return getEngine().getSubscriptionRefreshStats();
+  }
+
+  /**
+   * Returns the number of requests checked since startup.
+   */
+  long getRequestCount()
+  {
+    return requestCount.get();
   }
 
   /**
@@ -235,7 +317,14 @@ public class AdblockPlus extends Application
    */
   public void updateSubscriptionStatus(final String url)
   {
-    abpEngine.updateSubscriptionStatus(url);
+    runOnEngine(new EngineTask()
+    {
+      @Override
+      public void run(final ABPEngine engine)
+      {
+        engine.updateSubscriptionStatus(url);
+      }
+    });
   }
 
   /**
@@ -243,12 +332,19 @@ public class AdblockPlus extends Application
    */
   public void setAcceptableAdsEnabled(final boolean enabled)
   {
-    abpEngine.setAcceptableAdsEnabled(enabled);
+    runOnEngine(new EngineTask()
+    {
+      @Override
+      public void run(final ABPEngine engine)
+      {
+        engine.setAcceptableAdsEnabled(enabled);
+      }
+    });
   }
 
   public String getAcceptableAdsUrl()
   {
-    final String documentationLink = abpEngine.getDocumentationLink();
+    final String documentationLink = getEngine().getDocumentationLink();
     final String locale = getResources().getConfiguration().locale.toString().replace("_", "-");
     return documentationLink.replace("%LINK%", "acceptable_ads").replace("%LANG%", locale);
   }
@@ -268,42 +364,38 @@ public class AdblockPlus extends Application
   }
 
   /**
-   * Returns ElemHide selectors for the supplied URL.
+   * Returns the element hiding style sheet to inject into the page at the
+   * supplied URL, encoded in the given charset.
    *
    * @param url The URL
-   * @return A list of CSS selectors
+   * @param charset The charset of the page
+   * @return The encoded style sheet or null if there is nothing to inject
    */
-  public String[] getSelectorsForDomain(final String url, String referrer)
+  public byte[] getElemhidePayloadForDomain(final String url, final String referrer, final Charset charset)
   {
-    if (this.abpEngine.isElemhideEnabled() && this.filteringEnabled)
+    final ABPEngine engine = this.abpEngine;
+    if (engine != null && engine.isElemhideEnabled() && this.filteringEnabled)
     {
       if (referrer != null)
       {
         this.referrerMapping.add(url, referrer);
       }
-      final List<String> referrerChain = this.referrerMapping.buildReferrerChain(referrer);
-      final String[] referrerChainArray = referrerChain.toArray(new String[referrerChain.size()]);
-      final List<String> selectors = this.abpEngine.getElementHidingSelectors(url, referrerChainArray);
-      // We're returning 'null' when no selectors are available to be consistent
-      // with the previous implementation
-      return selectors.isEmpty() ? null : selectors.toArray(new String[selectors.size()]);
-    }
-    else
-    {
-      /*
-       * This case is still the default for Adblock Plus for Android, as we did not yet
-       * re-enable element hiding but only enhanced/fixed the current implementation.
-       * See: https://issues.adblockplus.org/ticket/3364
-       */
-      /* We need to ignore element hiding rules here to work around two bugs:
-       * 1. CSS is being injected even when there's an exception rule with $elemhide
-       * 2. The injected CSS causes blank pages in Chrome for Android
-       *
-       * Starting with 1.1.2, we ignored element hiding rules after download anyway, to keep the
-       * memory usage down. Doing this with libadblockplus is trickier, but would be the clean
-       * solution. */
-      return null;
+      final String[] referrerChainArray = this.referrerMapping.buildReferrerChain(referrer);
+      return engine.getElementHidingPayload(url, referrerChainArray, charset);
     }
+    /*
+     * This case is still the default for Adblock Plus for Android, as we did not yet
+     * re-enable element hiding but only enhanced/fixed the current implementation.
+     * See: https://issues.adblockplus.org/ticket/3364
+     */
+    /* We need to ignore element hiding rules here to work around two bugs:
+     * 1. CSS is being injected even when there's an exception rule with $elemhide
+     * 2. The injected CSS causes blank pages in Chrome for Android
+     *
+     * Starting with 1.1.2, we ignored element hiding rules after download anyway, to keep the
+     * memory usage down. Doing this with libadblockplus is trickier, but would be the clean
+     * solution. */
+    return null;
   }
 
   /**
@@ -322,6 +414,7 @@ public class AdblockPlus extends Application
    */
   public boolean matches(final String url, final String query, final String referrer, final String accept)
   {
+    requestCount.incrementAndGet();
     final String fullUrl = StringUtils.isNotEmpty(query) ? url + "?" + query : url;
     if (referrer != null)
       referrerMapping.add(fullUrl, referrer);
@@ -329,37 +422,67 @@ public class AdblockPlus extends Application
     if (!filteringEnabled)
       return false;
 
-    ContentType contentType = null;
+    final ContentType contentType = ContentTypeClassifier.classify(url, accept);
 
-    if (accept != null)
-    {
-      if (accept.contains("text/css"))
-        contentType = ContentType.STYLESHEET;
-      else if (accept.contains("image/*"))
-        contentType = ContentType.IMAGE;
-      else if (accept.contains("text/html"))
-        contentType = ContentType.SUBDOCUMENT;
-    }
+    final String[] referrerChainArray = referrerMapping.buildReferrerChain(referrer);
+    if (warmupRequests.record(url, contentType))
+      saveWarmupRequests();
 
-    if (contentType == null)
-    {
-      if (RE_JS.matcher(url).find())
-        contentType = ContentType.SCRIPT;
-      else if (RE_CSS.matcher(url).find())
-        contentType = ContentType.STYLESHEET;
-      else if (RE_IMAGE.matcher(url).find())
-        contentType = ContentType.IMAGE;
-      else if (RE_FONT.matcher(url).find())
-        contentType = ContentType.FONT;
-      else if (RE_HTML.matcher(url).find())
-        contentType = ContentType.SUBDOCUMENT;
-    }
-    if (contentType == null)
-      contentType = ContentType.OTHER;
+    // Hosts files know no exceptions, their hosts are blocked everywhere
+    final HostsBlocklist hosts = hostsBlocklist;
+    if (hosts != null && hosts.containsUrlHost(fullUrl))
+      return true;
+
+    final ABPEngine engine = abpEngine;
+    if (engine == null)
+      return matchesWhileStarting(fullUrl, contentType, referrerChainArray);
+
+    // Nothing is blocked on whitelisted pages, no need to match the request
+    if (engine.isPageWhitelisted(referrerChainArray))
+      return false;
+
+    return engine.matches(fullUrl, contentType, referrerChainArray);
+  }
+
+  /**
+   * Decides on requests coming in before the engine is ready (or after it
+   * failed to start), depending on the fail-open/fail-closed policy. Failing
+   * closed ends with the start: an engine that failed to start would
+   * otherwise keep all traffic blocked.
+   */
+  private boolean matchesWhileStarting(final String fullUrl, final ContentType contentType,
+      final String[] referrerChainArray)
+  {
+    if (failClosedWhileStarting && engineState == EngineState.INITIALIZING)
+      return true;
+
+    // The engine would block these too, unless filters changed since
+    return ABPEngine.isBlockedHost(startupIndexes, fullUrl, contentType, referrerChainArray);
+  }
 
-    final List<String> referrerChain = referrerMapping.buildReferrerChain(referrer);
-    final String[] referrerChainArray = referrerChain.toArray(new String[referrerChain.size()]);
-    return abpEngine.matches(fullUrl, contentType, referrerChainArray);
+  /**
+   * Checks if all requests to the given host would be blocked, used for
+   * tunnelled connections.
+   *
+   * Only hosts files block hosts as a whole. Filters aren't applied: tunnelled
+   * connections have no referrer, and requests without one aren't blocked by
+   * domain anchored filters (see {@link #matches}), nor can document
+   * exceptions be checked.
+   *
+   * @param host
+   *          Host name
+   * @return true if the host is blocked as a whole
+   */
+  public boolean matchesHost(final String host)
+  {
+    if (!filteringEnabled)
+      return false;
+
+    final HostsBlocklist hosts = hostsBlocklist;
+    if (hosts != null && hosts.contains(host.toLowerCase(Locale.ENGLISH)))
+      return true;
+
+    return abpEngine == null && failClosedWhileStarting && engineState == EngineState.INITIALIZING;
   }
 
   /**
@@ -380,29 +503,365 @@ public class AdblockPlus extends Application
   }
 
   /**
-   * Starts ABP engine. It also initiates subscription refresh if it is enabled
-   * in user settings.
+   * Starts ABP engine in the background. It also initiates subscription
+   * refresh if it is enabled in user settings. Until the engine is ready,
+   * requests are let through (or blocked, see
+   * {@link #matchesWhileStarting}) without asking it.
    */
-  public void startEngine()
+  public synchronized void startEngine()
   {
-    if (abpEngine == null)
+    if (engineFuture != null && engineState != EngineState.DEGRADED)
+      return;
+
+    final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+    failClosedWhileStarting = prefs.getBoolean(getString(R.string.pref_failclosed),
+        getResources().getBoolean(R.bool.def_failclosed));
+    engineState = EngineState.INITIALIZING;
+    final int start = ++engineStarts;
+    final File basePath = getFilesDir();
+    engineFuture = engineExecutor.submit(new Callable<ABPEngine>()
     {
-      final File basePath = getFilesDir();
-      abpEngine = ABPEngine.create(AdblockPlus.getApplication(), ABPEngine.generateAppInfo(this), basePath.getAbsolutePath());
+      @Override
+      public ABPEngine call()
+      {
+        loadHostsBlocklist(basePath);
+        loadStartupIndexes(basePath);
+
+        final long startedAt = System.currentTimeMillis();
+        final ABPEngine engine;
+        try
+        {
+          engine = ABPEngine.create(AdblockPlus.getApplication(), ABPEngine.generateAppInfo(AdblockPlus.this),
+              basePath.getAbsolutePath());
+        }
+        catch (final RuntimeException e)
+        {
+          onEngineFailed(start, e);
+          throw e;
+        }
+        catch (final Error e)
+        {
+          onEngineFailed(start, e);
+          throw e;
+        }
+
+        synchronized (AdblockPlus.this)
+        {
+          // Stopped meanwhile, the pending stop disposes it
+          if (start != engineStarts)
+            return engine;
+
+          abpEngine = engine;
+          engineState = EngineState.READY;
+          startupIndexes = null;
+          warmupFuture = engineExecutor.submit(new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              replayWarmupRequests(engine, basePath);
+            }
+          });
+        }
+        Log.i(TAG, "Engine ready after " + (System.currentTimeMillis() - startedAt) + " ms");
+        sendBroadcast(new Intent(BROADCAST_ENGINE_READY));
+        return engine;
+      }
+    });
+  }
+
+  private synchronized void onEngineFailed(final int start, final Throwable t)
+  {
+    Log.e(TAG, "Failed to start the engine", t);
+    if (start != engineStarts)
+      return;
+
+    engineState = EngineState.DEGRADED;
+    if (failClosedWhileStarting)
+      Log.w(TAG, "Not blocking all requests any more, only the indexes of the previous session are used");
+  }
+
+  /**
+   * Loads the filter index snapshot of the previous session, to block what
+   * can be blocked without the engine while it is starting. Requests it
+   * doesn't block are let through as if there was no snapshot.
+   */
+  private void loadStartupIndexes(final File basePath)
+  {
+    try
+    {
+      startupIndexes = FilterIndexSnapshot.read(new File(basePath, FilterIndexSnapshot.FILE_NAME));
+    }
+    catch (final IOException e)
+    {
+      Log.w(TAG, "Failed to read filter index snapshot", e);
     }
   }
 
+  private void loadHostsBlocklist(final File basePath)
+  {
+    try
+    {
+      hostsBlocklist = HostsBlocklist.read(new File(basePath, HostsBlocklist.FILE_NAME));
+    }
+    catch (final IOException e)
+    {
+      Log.w(TAG, "Failed to read hosts blocklist", e);
+    }
+  }
+
+  private File getHostsFileDir()
+  {
+    return new File(getFilesDir(), "hosts");
+  }
+
+  private File getHostsFile(final String url)
+  {
+    return new File(getHostsFileDir(), Long.toHexString(HostsBlocklist.hash(url)) + ".bin");
+  }
+
+  /**
+   * Blocks the hosts listed in the hosts files at the given URLs from now on,
+   * next to (and before) the filter lists, and stops blocking those of hosts
+   * files imported before but not listed any more. <code>file:</code> URLs
+   * can be used to import local files. All files are downloaded again, i.e.
+   * updated. Returns right away, files are downloaded in the background.
+   */
+  public void setHostsFiles(final String[] urls)
+  {
+    hostsExecutor.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          importHostsFiles(urls);
+        }
+        catch (final IOException e)
+        {
+          Log.e(TAG, "Failed to update hosts files", e);
+        }
+      }
+    });
+  }
+
+  private void importHostsFiles(final String[] urls) throws IOException
+  {
+    final File dir = getHostsFileDir();
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Failed to create " + dir);
+
+    final Set<String> names = new HashSet<String>();
+    for (final String url : urls)
+    {
+      final File file = getHostsFile(url);
+      names.add(file.getName());
+      try
+      {
+        final InputStream in = AndroidWebRequest.openDownload(url);
+        try
+        {
+          final int count = HostsBlocklist.compile(in, file);
+          Log.i(TAG, "Imported " + count + " hosts from " + url);
+        }
+        finally
+        {
+          in.close();
+        }
+      }
+      catch (final IOException e)
+      {
+        // Keeps blocking what the previous download of it listed
+        Log.w(TAG, "Failed to import hosts file " + url, e);
+      }
+    }
+
+    final File[] files = dir.listFiles();
+    if (files != null)
+    {
+      for (final File file : files)
+      {
+        if (!names.contains(file.getName()))
+          file.delete();
+      }
+    }
+    rebuildHostsBlocklist();
+  }
+
+  /**
+   * Merges all imported hosts files into the blocklist that is looked up.
+   */
+  private synchronized void rebuildHostsBlocklist() throws IOException
+  {
+    final File file = new File(getFilesDir(), HostsBlocklist.FILE_NAME);
+    final File[] parts = getHostsFileDir().listFiles(new FilenameFilter()
+    {
+      @Override
+      public boolean accept(final File dir, final String name)
+      {
+        return name.endsWith(".bin");
+      }
+    });
+    if (parts == null || parts.length == 0)
+    {
+      hostsBlocklist = null;
+      file.delete();
+      return;
+    }
+
+    HostsBlocklist.merge(parts, file);
+    hostsBlocklist = HostsBlocklist.read(file);
+  }
+
+  private void replayWarmupRequests(final ABPEngine engine, final File basePath)
+  {
+    final long start = System.currentTimeMillis();
+    try
+    {
+      final int count = WarmupRequests.replay(new File(basePath, WarmupRequests.FILE_NAME), engine);
+      Log.d(TAG, "Replayed " + count + " requests in " + (System.currentTimeMillis() - start) + " ms");
+    }
+    catch (final IOException e)
+    {
+      Log.w(TAG, "Failed to replay warm-up requests", e);
+    }
+    catch (final RuntimeException e)
+    {
+      Log.w(TAG, "Failed to replay warm-up requests", e);
+    }
+  }
+
+  private void saveWarmupRequests()
+  {
+    final File file = new File(getFilesDir(), WarmupRequests.FILE_NAME);
+    engineExecutor.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          warmupRequests.save(file);
+        }
+        catch (final IOException e)
+        {
+          Log.w(TAG, "Failed to save warm-up requests", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the engine, see {@link #isEngineReady()}.
+   *
+   * @throws IllegalStateException if the engine isn't ready (yet)
+   */
+  private ABPEngine getEngine()
+  {
+    final ABPEngine engine = abpEngine;
+    if (engine == null)
+      throw new IllegalStateException("Engine not ready");
+    return engine;
+  }
+
   /**
-   * Stops ABP engine.
+   * Checks whether the engine finished starting, the methods querying it
+   * (e.g. {@link #getListedSubscriptions()}) can only be used then.
+   * {@link #BROADCAST_ENGINE_READY} is sent once it is. Changes (e.g.
+   * {@link #setSubscription(String)}) can be made at any time, they are
+   * applied once the engine is ready.
    */
-  public void stopEngine()
+  public boolean isEngineReady()
+  {
+    return abpEngine != null;
+  }
+
+  public EngineState getEngineState()
   {
-    if (abpEngine != null)
+    return engineState;
+  }
+
+  private interface EngineTask
+  {
+    void run(ABPEngine engine);
+  }
+
+  /**
+   * Runs the task on the engine executor, i.e. once the engine is started.
+   * Dropped if the engine isn't started or fails to start.
+   */
+  private synchronized void runOnEngine(final EngineTask task)
+  {
+    if (engineFuture == null)
     {
-      abpEngine.dispose();
-      abpEngine = null;
-      Log.i(TAG, "stopEngine");
+      Log.w(TAG, "Engine not started, dropping request");
+      return;
     }
+
+    engineExecutor.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        final ABPEngine engine = abpEngine;
+        if (engine != null)
+          task.run(engine);
+        else
+          Log.w(TAG, "Engine not ready, dropping request");
+      }
+    });
+  }
+
+  /**
+   * Stops ABP engine. Returns right away, the engine is disposed in the
+   * background once it finished starting.
+   */
+  public synchronized void stopEngine()
+  {
+    if (engineFuture == null)
+      return;
+
+    final Future<ABPEngine> future = engineFuture;
+    final boolean wasReady = abpEngine != null;
+    engineStarts++;
+    engineFuture = null;
+    abpEngine = null;
+    engineState = EngineState.STOPPED;
+
+    // The warm-up replay and the engine start run on the engine executor, so
+    // disposing on the same executor happens after both
+    final Future<?> warmup = warmupFuture;
+    warmupFuture = null;
+    if (warmup != null)
+      warmup.cancel(true);
+    if (wasReady)
+      saveWarmupRequests();
+    engineExecutor.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          // Done already, it ran before this task
+          future.get().dispose();
+        }
+        catch (final InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+        catch (final ExecutionException e)
+        {
+          // Failed to start, nothing to dispose
+        }
+        catch (final RuntimeException e)
+        {
+          Log.w(TAG, "Failed to dispose the engine", e);
+        }
+      }
+    });
+    Log.i(TAG, "stopEngine");
   }
 
   /**
@@ -410,7 +869,28 @@ public class AdblockPlus extends Application
    */
   public void checkUpdates()
   {
-    abpEngine.checkForUpdates();
+    runOnEngine(new EngineTask()
+    {
+      @Override
+      public void run(final ABPEngine engine)
+      {
+        engine.checkForUpdates();
+      }
+    });
+  }
+
+  private static ExecutorService newDaemonExecutor(final String name)
+  {
+    return Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(final Runnable r)
+      {
+        final Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
   }
 
   @Override
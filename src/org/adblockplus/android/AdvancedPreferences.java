@@ -31,6 +31,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Bundle;
+import android.preference.EditTextPreference;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceManager;
@@ -150,6 +151,11 @@ public class AdvancedPreferences extends SummarizedPreferences
       final int refresh = Integer.valueOf(sharedPreferences.getString(key, "0"));
       findPreference(getString(R.string.pref_wifirefresh)).setEnabled(refresh > 0);
     }
+    if (getString(R.string.pref_hostsfiles).equals(key))
+    {
+      final String urls = StringUtils.trimToEmpty(sharedPreferences.getString(key, null));
+      AdblockPlus.getApplication().setHostsFiles(urls.length() > 0 ? urls.split("\\s+") : new String[0]);
+    }
     if (getString(R.string.pref_crashreport).equals(key))
     {
       final boolean report = sharedPreferences.getBoolean(key, getResources().getBoolean(R.bool.def_crashreport));
@@ -166,6 +172,18 @@ public class AdvancedPreferences extends SummarizedPreferences
     super.onSharedPreferenceChanged(sharedPreferences, key);
   }
 
+  @Override
+  protected void setPrefSummary(final Preference pref)
+  {
+    super.setPrefSummary(pref);
+    // Show what the setting is for while no hosts files are listed
+    if (pref instanceof EditTextPreference && getString(R.string.pref_hostsfiles).equals(pref.getKey())
+        && StringUtils.isBlank(((EditTextPreference) pref).getText()))
+    {
+      pref.setSummary(R.string.pref_hostsfiles_summary);
+    }
+  }
+
   @Override
   protected Dialog onCreateDialog(final int id)
   {
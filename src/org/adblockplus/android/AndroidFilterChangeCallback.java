@@ -19,27 +19,32 @@ package org.adblockplus.android;
 
 import org.adblockplus.libadblockplus.FilterChangeCallback;
 import org.adblockplus.libadblockplus.JsValue;
-import org.adblockplus.libadblockplus.Subscription;
 
 import android.content.Context;
 
 public class AndroidFilterChangeCallback extends FilterChangeCallback
 {
   private final Context context;
+  private final ABPEngine engine;
 
-  public AndroidFilterChangeCallback(final Context context)
+  public AndroidFilterChangeCallback(final Context context, final ABPEngine engine)
   {
     this.context = context;
+    this.engine = engine;
   }
 
   @Override
   public void filterChangeCallback(final String action, final JsValue jsValue)
   {
-    if (action.equals("subscription.lastDownload") || action.equals("subscription.downloadStatus"))
-    {
-      final Subscription sub = new Subscription(jsValue);
+    this.engine.onFilterChange(action);
 
-      Utils.updateSubscriptionStatus(this.context, sub);
+    if (action.startsWith("subscription."))
+    {
+      final SubscriptionMirror.Entry entry = this.engine.onSubscriptionChange(action, jsValue);
+      if (entry != null && (action.equals("subscription.lastDownload") || action.equals("subscription.downloadStatus")))
+      {
+        Utils.updateSubscriptionStatus(this.context, entry);
+      }
     }
   }
 }
@@ -17,12 +17,25 @@
 
 package org.adblockplus.android;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.adblockplus.libadblockplus.AdblockPlusException;
 import org.adblockplus.libadblockplus.FilterEngine;
@@ -37,12 +50,57 @@ public class AndroidWebRequest extends WebRequest
 {
   public final static String TAG = Utils.getTag(WebRequest.class);
 
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+  private static final ThreadLocal<byte[]> COPY_BUFFERS = new ThreadLocal<byte[]>()
+  {
+    @Override
+    protected byte[] initialValue()
+    {
+      return new byte[COPY_BUFFER_SIZE];
+    }
+  };
+
+  /**
+   * Connections to a single host at a time, further downloads from it wait.
+   */
+  private static final int MAX_CONNECTIONS_PER_HOST = 2;
+  private static final ConcurrentHashMap<String, Semaphore> HOST_PERMITS = new ConcurrentHashMap<String, Semaphore>();
+
+  /**
+   * Gets notified of completed downloads.
+   */
+  interface DownloadObserver
+  {
+    /**
+     * @param bytes
+     *          size of the (decoded) body, 0 if it wasn't modified
+     */
+    void onDownload(String url, long nanos, long bytes);
+  }
+
   private final HashSet<String> subscriptionURLs = new HashSet<String>();
   private final boolean elemhideEnabled;
+  private final DownloadCache downloadCache;
+  private volatile DownloadObserver downloadObserver;
 
-  AndroidWebRequest(boolean enableElemhide)
+  AndroidWebRequest(boolean enableElemhide, final DownloadCache downloadCache)
   {
     this.elemhideEnabled = enableElemhide;
+    this.downloadCache = downloadCache;
+  }
+
+  AndroidWebRequest(boolean enableElemhide)
+  {
+    this(enableElemhide, new DownloadCache());
+  }
+
+  /**
+   * Creates a web request spooling downloads to files in
+   * <code>spoolDir</code> instead of holding them in memory.
+   */
+  AndroidWebRequest(boolean enableElemhide, final File spoolDir)
+  {
+    this(enableElemhide, new DownloadCache(spoolDir));
   }
 
   AndroidWebRequest()
@@ -50,6 +108,31 @@ public class AndroidWebRequest extends WebRequest
     this(false);
   }
 
+  DownloadCache getDownloadCache()
+  {
+    return this.downloadCache;
+  }
+
+  void setDownloadObserver(final DownloadObserver downloadObserver)
+  {
+    this.downloadObserver = downloadObserver;
+  }
+
+  private static Semaphore getHostPermits(final String host)
+  {
+    Semaphore permits = HOST_PERMITS.get(host);
+    if (permits == null)
+    {
+      final Semaphore newPermits = new Semaphore(MAX_CONNECTIONS_PER_HOST, true);
+      permits = HOST_PERMITS.putIfAbsent(host, newPermits);
+      if (permits == null)
+      {
+        permits = newPermits;
+      }
+    }
+    return permits;
+  }
+
   private boolean isListedSubscriptionUrl(final URL url)
   {
     String toCheck = url.toString();
@@ -72,72 +155,453 @@ public class AndroidWebRequest extends WebRequest
     this.subscriptionURLs.add(engine.getPref("subscriptions_exceptionsurl").toString());
   }
 
+  /**
+   * Opens a download outside of the filter engine, for data that is better
+   * streamed than held in memory as a whole. URLs other than HTTP(S) ones
+   * (e.g. <code>file:</code> URLs) are opened directly.
+   *
+   * @throws IOException if the server didn't respond with 200 OK
+   */
+  static InputStream openDownload(final String urlStr) throws IOException
+  {
+    final URL url = new URL(urlStr);
+    Log.d(TAG, "Downloading from: " + url);
+
+    final URLConnection connection = url.openConnection();
+    if (connection instanceof HttpURLConnection)
+    {
+      final HttpURLConnection httpConnection = (HttpURLConnection) connection;
+      httpConnection.setRequestMethod("GET");
+      httpConnection.connect();
+      if (httpConnection.getResponseCode() != 200)
+      {
+        httpConnection.disconnect();
+        throw new IOException("Download of " + url + " failed with status " + httpConnection.getResponseCode());
+      }
+    }
+    return connection.getInputStream();
+  }
+
+  /**
+   * Copies a download in bulk, optionally dropping all lines containing a
+   * '#' (i.e. element hiding filters and comments). Lines are split at the
+   * byte level, which is safe for UTF-8 as '#' and '\n' never occur within
+   * multi-byte sequences.
+   *
+   * @return the number of bytes written
+   */
+  private static long copy(final InputStream in, final OutputStream out, final boolean stripElemhide)
+      throws IOException
+  {
+    byte[] buffer = COPY_BUFFERS.get();
+    long written = 0;
+    int read;
+    if (!stripElemhide)
+    {
+      while ((read = in.read(buffer)) != -1)
+      {
+        out.write(buffer, 0, read);
+        written += read;
+      }
+      return written;
+    }
+
+    // The first filled bytes of the buffer are read, but belong to a line
+    // that isn't complete yet
+    int filled = 0;
+    boolean lineHasHash = false;
+    while (true)
+    {
+      if (filled == buffer.length)
+      {
+        // Not shared with the other downloads of the thread, lines this long
+        // are rare
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+      if ((read = in.read(buffer, filled, buffer.length - filled)) == -1)
+      {
+        break;
+      }
+
+      // Consecutive lines that are kept are written at once
+      int keepStart = 0;
+      int lineStart = 0;
+      final int end = filled + read;
+      for (int i = filled; i < end; i++)
+      {
+        final byte b = buffer[i];
+        if (b == '#')
+        {
+          lineHasHash = true;
+        }
+        else if (b == '\n')
+        {
+          if (lineHasHash)
+          {
+            out.write(buffer, keepStart, lineStart - keepStart);
+            written += lineStart - keepStart;
+            keepStart = i + 1;
+            lineHasHash = false;
+          }
+          lineStart = i + 1;
+        }
+      }
+      out.write(buffer, keepStart, lineStart - keepStart);
+      written += lineStart - keepStart;
+
+      filled = end - lineStart;
+      System.arraycopy(buffer, lineStart, buffer, 0, filled);
+    }
+
+    if (filled > 0 && !lineHasHash)
+    {
+      out.write(buffer, 0, filled);
+      out.write('\n');
+      written += filled + 1;
+    }
+    return written;
+  }
+
+  private static boolean isConditional(final List<HeaderEntry> headers)
+  {
+    for (final HeaderEntry header : headers)
+    {
+      if ("If-None-Match".equalsIgnoreCase(header.getKey()) || "If-Modified-Since".equalsIgnoreCase(header.getKey()))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the response headers, except for those describing the transfer
+   * encoding, which was undone already.
+   */
+  private static List<HeaderEntry> getResponseHeaders(final HttpURLConnection connection)
+  {
+    final List<HeaderEntry> headers = new ArrayList<HeaderEntry>();
+    for (final Map.Entry<String, List<String>> field : connection.getHeaderFields().entrySet())
+    {
+      final String name = field.getKey();
+      // The status line comes without a name
+      if (name == null || "Content-Encoding".equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name))
+      {
+        continue;
+      }
+      for (final String value : field.getValue())
+      {
+        headers.add(HeaderEntry.of(name, value));
+      }
+    }
+    return headers;
+  }
+
+  /**
+   * Returns the response body, decompressed if needed, we ask for gzip and
+   * deflate ourselves, so {@link HttpURLConnection} leaves them alone.
+   */
+  private static InputStream getDecodedInputStream(final HttpURLConnection connection) throws IOException
+  {
+    final InputStream in = connection.getInputStream();
+    final String encoding = connection.getContentEncoding();
+    if ("gzip".equalsIgnoreCase(encoding))
+    {
+      return new GZIPInputStream(in, COPY_BUFFER_SIZE);
+    }
+    if ("deflate".equalsIgnoreCase(encoding))
+    {
+      return new InflaterInputStream(in, new Inflater(), COPY_BUFFER_SIZE);
+    }
+    return in;
+  }
+
+  @Override
+  protected void responseFileRead(final String responseFile)
+  {
+    this.downloadCache.release(responseFile);
+  }
+
   @Override
   public ServerResponse httpGET(final String urlStr, final List<HeaderEntry> headers)
   {
     try
     {
       final URL url = new URL(urlStr);
-      Log.d(TAG, "Downloading from: " + url);
 
-      final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      // We're only keeping non-element-hiding filters if disabled.
+      //
+      // See:
+      //      https://issues.adblockplus.org/ticket/303
+      //
+      // Follow-up issue for removing this hack:
+      //      https://issues.adblockplus.org/ticket/1541
+      //
+      final boolean stripElemhide = !this.elemhideEnabled && isListedSubscriptionUrl(url);
+      if (stripElemhide)
+      {
+        Log.d(TAG, "Removing element hiding rules from: '" + url + "'");
+      }
+
+      // Unless the caller revalidates on its own, we revalidate what we
+      // downloaded before and answer a 304 with it, or update it with a diff
+      final boolean revalidating = !isConditional(headers);
+      if (revalidating && this.downloadCache.isSpooling())
+      {
+        final ServerResponse updated = this.downloadDiff(url, urlStr, stripElemhide);
+        if (updated != null)
+        {
+          return updated;
+        }
+      }
+
+      final Semaphore permits = getHostPermits(url.getHost());
+      permits.acquire();
+      try
+      {
+        return this.download(url, urlStr, headers, stripElemhide, revalidating);
+      }
+      finally
+      {
+        permits.release();
+      }
+    }
+    catch (final Throwable t)
+    {
+      throw new AdblockPlusException("WebRequest failed", t);
+    }
+  }
+
+  private void notifyDownload(final String urlStr, final long start, final long bytes)
+  {
+    final DownloadObserver observer = this.downloadObserver;
+    if (observer != null)
+    {
+      observer.onDownload(urlStr, System.nanoTime() - start, bytes);
+    }
+  }
+
+  private static int getPortOrDefault(final URL url)
+  {
+    return url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+  }
+
+  /**
+   * Returns whether both URLs have the same scheme, host and port.
+   */
+  private static boolean isSameOrigin(final URL a, final URL b)
+  {
+    return a.getProtocol().equalsIgnoreCase(b.getProtocol()) && a.getHost().equalsIgnoreCase(b.getHost())
+        && getPortOrDefault(a) == getPortOrDefault(b);
+  }
+
+  /**
+   * Updates the stored list with a diff, see {@link ListDiff}. Returns
+   * <code>null</code> if there is no list that could be updated, or it has
+   * to be downloaded in full. Diffs are only downloaded from the origin of
+   * the list itself.
+   */
+  private ServerResponse downloadDiff(final URL url, final String urlStr, final boolean stripElemhide)
+      throws InterruptedException
+  {
+    final DownloadCache.DiffBase base = this.downloadCache.getDiffBase(urlStr);
+    if (base == null)
+    {
+      return null;
+    }
+    try
+    {
+      return this.downloadDiff(url, urlStr, base, stripElemhide);
+    }
+    finally
+    {
+      this.downloadCache.release(base.file.getPath());
+    }
+  }
+
+  private ServerResponse downloadDiff(final URL url, final String urlStr, final DownloadCache.DiffBase base,
+      final boolean stripElemhide) throws InterruptedException
+  {
+    final URL diffUrl;
+    try
+    {
+      diffUrl = new URL(ListDiff.getRequestUrl(base.header));
+    }
+    catch (final IOException e)
+    {
+      Log.w(TAG, "Downloading " + urlStr + " in full, invalid diff URL", e);
+      return null;
+    }
+    if (!isSameOrigin(url, diffUrl))
+    {
+      Log.w(TAG, "Downloading " + urlStr + " in full, the diff URL " + diffUrl + " has another origin");
+      return null;
+    }
+
+    final Semaphore permits = getHostPermits(diffUrl.getHost());
+    permits.acquire();
+    File file = null;
+    try
+    {
+      Log.d(TAG, "Downloading diff from: " + diffUrl);
+      final long start = System.nanoTime();
+
+      final HttpURLConnection connection = (HttpURLConnection) diffUrl.openConnection();
       connection.setRequestMethod("GET");
+      connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
       connection.connect();
+      if (connection.getResponseCode() != 200)
+      {
+        connection.disconnect();
+        Log.d(TAG, "No diff for " + urlStr + ", status " + connection.getResponseCode());
+        return null;
+      }
+
+      file = this.downloadCache.newSpoolFile();
+      final InputStream in = getDecodedInputStream(connection);
+      try
+      {
+        ListDiff.apply(base.file, base.header.version, in, stripElemhide, file);
+      }
+      finally
+      {
+        in.close();
+      }
+
+      // The diff's validators don't apply to the list
+      final List<HeaderEntry> responseHeaders = new ArrayList<HeaderEntry>();
+      for (final HeaderEntry header : getResponseHeaders(connection))
+      {
+        if (!"ETag".equalsIgnoreCase(header.getKey()) && !"Last-Modified".equalsIgnoreCase(header.getKey()))
+        {
+          responseHeaders.add(header);
+        }
+      }
+      final long bytes = Math.max(connection.getContentLength(), 0);
+      connection.disconnect();
 
       final ServerResponse response = new ServerResponse();
-      response.setResponseStatus(connection.getResponseCode());
+      response.setStatus(NsStatus.OK);
+      response.setResponseStatus(200);
+      response.setResponseFile(file.getPath());
+      response.setReponseHeaders(responseHeaders);
+      this.downloadCache.put(urlStr, response);
+      file = null;
 
-      if (response.getResponseStatus() == 200)
+      this.notifyDownload(urlStr, start, bytes);
+      return response;
+    }
+    catch (final IOException e)
+    {
+      Log.w(TAG, "Downloading " + urlStr + " in full, the diff failed", e);
+      return null;
+    }
+    finally
+    {
+      permits.release();
+      if (file != null)
       {
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
-        final StringBuilder sb = new StringBuilder();
+        file.delete();
+      }
+    }
+  }
 
-        if (!this.elemhideEnabled && isListedSubscriptionUrl(url))
-        {
-          Log.d(TAG, "Removing element hiding rules from: '" + url + "'");
+  private ServerResponse download(final URL url, final String urlStr, final List<HeaderEntry> headers,
+      final boolean stripElemhide, final boolean revalidating) throws IOException
+  {
+    Log.d(TAG, "Downloading from: " + url);
+    final long start = System.nanoTime();
+
+    final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod("GET");
+    for (final HeaderEntry header : headers)
+    {
+      connection.setRequestProperty(header.getKey(), header.getValue());
+    }
+    if (revalidating)
+    {
+      for (final HeaderEntry header : this.downloadCache.getConditionalHeaders(urlStr))
+      {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+    }
+    connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+    connection.connect();
+
+    final ServerResponse response = new ServerResponse();
+    response.setResponseStatus(connection.getResponseCode());
 
-          String line;
-          while ((line = reader.readLine()) != null)
+    if (response.getResponseStatus() == HttpURLConnection.HTTP_NOT_MODIFIED && revalidating)
+    {
+      final List<HeaderEntry> responseHeaders = getResponseHeaders(connection);
+      connection.disconnect();
+      final ServerResponse cached = this.downloadCache.getNotModified(urlStr, responseHeaders);
+      if (cached != null)
+      {
+        Log.d(TAG, "Not modified: " + url);
+        return cached;
+      }
+      response.setStatus(NsStatus.ERROR_FAILURE);
+    }
+    else if (response.getResponseStatus() == 200)
+    {
+      final long bytes;
+      final InputStream in = getDecodedInputStream(connection);
+      try
+      {
+        if (this.downloadCache.isSpooling())
+        {
+          final File file = this.downloadCache.newSpoolFile();
+          boolean complete = false;
+          try
+          {
+            final OutputStream out = new FileOutputStream(file);
+            try
+            {
+              bytes = copy(in, out, stripElemhide);
+            }
+            finally
+            {
+              out.close();
+            }
+            complete = true;
+          }
+          finally
           {
-            // We're only appending non-element-hiding filters here.
-            //
-            // See:
-            //      https://issues.adblockplus.org/ticket/303
-            //
-            // Follow-up issue for removing this hack:
-            //      https://issues.adblockplus.org/ticket/1541
-            //
-            if (line.indexOf('#') == -1)
+            if (!complete)
             {
-              sb.append(line);
-              sb.append('\n');
+              file.delete();
             }
           }
+          response.setResponseFile(file.getPath());
         }
         else
         {
-          int character;
-
-          while ((character = reader.read()) != -1)
-          {
-            sb.append((char) character);
-          }
+          final ByteArrayOutputStream out = new ByteArrayOutputStream();
+          bytes = copy(in, out, stripElemhide);
+          response.setResponse(out.toString("UTF-8"));
         }
-
-        connection.disconnect();
-
-        response.setStatus(NsStatus.OK);
-        response.setResponse(sb.toString());
       }
-      else
+      finally
       {
-        response.setStatus(NsStatus.ERROR_FAILURE);
+        in.close();
       }
-      return response;
+
+      response.setReponseHeaders(getResponseHeaders(connection));
+      connection.disconnect();
+
+      response.setStatus(NsStatus.OK);
+      this.downloadCache.put(urlStr, response);
+      this.notifyDownload(urlStr, start, bytes);
     }
-    catch (final Throwable t)
+    else
     {
-      throw new AdblockPlusException("WebRequest failed", t);
+      response.setReponseHeaders(getResponseHeaders(connection));
+      connection.disconnect();
+      // The caller's own conditional requests get their 304 as is
+      response.setStatus(response.getResponseStatus() == HttpURLConnection.HTTP_NOT_MODIFIED
+          ? NsStatus.OK : NsStatus.ERROR_FAILURE);
     }
+    return response;
   }
 }
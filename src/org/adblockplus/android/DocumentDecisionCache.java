@@ -0,0 +1,184 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the whitelisting decisions for top level documents, so
+ * that the subresources of a page don't ask the filter engine the same
+ * questions over and over again.
+ *
+ * Like {@link MatchCache}, decisions are tagged with the generation they were
+ * computed in and {@link #invalidate()} drops all of them. They also expire
+ * after {@link #MAX_AGE_MILLIS}.
+ */
+final class DocumentDecisionCache
+{
+  private static final int MAX_SIZE = 200;
+  private static final long MAX_AGE_MILLIS = 5 * 60 * 1000;
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(MAX_SIZE + 1, 0.75f, true)
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, DocumentDecisionCache.Entry> eldest)
+    {
+      return size() > MAX_SIZE;
+    }
+  };
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private volatile int generation = 0;
+
+  int getGeneration()
+  {
+    return this.generation;
+  }
+
+  /**
+   * Returns whether the document is whitelisted by a <code>$document</code>
+   * exception, or <code>null</code> if that isn't known (anymore).
+   */
+  Boolean isDocumentWhitelisted(final String documentUrl)
+  {
+    final Boolean decision;
+    synchronized (this.entries)
+    {
+      final Entry entry = this.getEntry(documentUrl);
+      decision = entry != null ? entry.documentWhitelisted : null;
+    }
+    return this.count(decision);
+  }
+
+  /**
+   * Returns whether element hiding is disabled on the document by a
+   * <code>$document</code> or <code>$elemhide</code> exception, or
+   * <code>null</code> if that isn't known (anymore).
+   */
+  Boolean isElemhideDisabled(final String documentUrl)
+  {
+    final Boolean decision;
+    synchronized (this.entries)
+    {
+      final Entry entry = this.getEntry(documentUrl);
+      decision = entry != null ? entry.elemhideDisabled : null;
+    }
+    return this.count(decision);
+  }
+
+  void putDocumentWhitelisted(final String documentUrl, final boolean whitelisted, final int generation)
+  {
+    synchronized (this.entries)
+    {
+      if (generation == this.generation)
+      {
+        this.getOrCreateEntry(documentUrl).documentWhitelisted = Boolean.valueOf(whitelisted);
+      }
+    }
+  }
+
+  void putElemhideDisabled(final String documentUrl, final boolean disabled, final int generation)
+  {
+    synchronized (this.entries)
+    {
+      if (generation == this.generation)
+      {
+        this.getOrCreateEntry(documentUrl).elemhideDisabled = Boolean.valueOf(disabled);
+      }
+    }
+  }
+
+  void invalidate()
+  {
+    synchronized (this.entries)
+    {
+      this.generation++;
+      this.entries.clear();
+    }
+  }
+
+  int size()
+  {
+    synchronized (this.entries)
+    {
+      return this.entries.size();
+    }
+  }
+
+  long getHitCount()
+  {
+    return this.hits.get();
+  }
+
+  long getMissCount()
+  {
+    return this.misses.get();
+  }
+
+  private Boolean count(final Boolean decision)
+  {
+    if (decision != null)
+    {
+      this.hits.incrementAndGet();
+    }
+    else
+    {
+      this.misses.incrementAndGet();
+    }
+    return decision;
+  }
+
+  private Entry getEntry(final String documentUrl)
+  {
+    final Entry entry = this.entries.get(documentUrl);
+    if (entry != null && System.currentTimeMillis() - entry.createdAt > MAX_AGE_MILLIS)
+    {
+      this.entries.remove(documentUrl);
+      return null;
+    }
+    return entry;
+  }
+
+  private Entry getOrCreateEntry(final String documentUrl)
+  {
+    Entry entry = this.getEntry(documentUrl);
+    if (entry == null)
+    {
+      entry = new Entry(System.currentTimeMillis());
+      this.entries.put(documentUrl, entry);
+    }
+    return entry;
+  }
+
+  private static final class Entry
+  {
+    private final long createdAt;
+    private Boolean documentWhitelisted;
+    private Boolean elemhideDisabled;
+
+    Entry(final long createdAt)
+    {
+      this.createdAt = createdAt;
+    }
+  }
+}
@@ -0,0 +1,522 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.adblockplus.libadblockplus.HeaderEntry;
+import org.adblockplus.libadblockplus.ServerResponse;
+
+import android.util.Log;
+
+/**
+ * Keeps the most recent successful downloads of the primary filter engine
+ * for a while, so that replica engines (see {@link FilterEnginePool})
+ * updating the same subscriptions don't download them again.
+ *
+ * Entries are keyed by URL without query, as the query carries per engine
+ * statistics (download count etc.).
+ *
+ * With a spool directory, downloads are written to files in it instead of
+ * being held in memory. Files are reference counted: every entry and every
+ * response or {@link DiffBase} handed out holds a reference, the latter
+ * have to be given back with {@link #release(String)}. A file is only
+ * deleted once its entry is gone and no engine still has to read it.
+ * Downloads that came with an <code>ETag</code> or
+ * <code>Last-Modified</code> header are kept across sessions, so that the
+ * next update can be a conditional request, see
+ * {@link #getConditionalHeaders(String)}, as are lists that can be updated
+ * with a diff, see {@link #getDiffBase(String)}.
+ */
+final class DownloadCache
+{
+  private static final String TAG = Utils.getTag(DownloadCache.class);
+  private static final int MAX_ENTRIES = 8;
+  private static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+  private static final String INDEX_FILE_NAME = "index.txt";
+  private static final List<HeaderEntry> NO_HEADERS = Collections.emptyList();
+
+  private final File spoolDir;
+  /**
+   * Spool file paths and their number of references, guarded by
+   * {@link #entries}.
+   */
+  private final HashMap<String, Integer> fileReferences = new HashMap<String, Integer>();
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(MAX_ENTRIES + 1, 0.75f, true)
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, DownloadCache.Entry> eldest)
+    {
+      if (size() > MAX_ENTRIES)
+      {
+        releaseFile(eldest.getValue().file);
+        return true;
+      }
+      return false;
+    }
+  };
+
+  /**
+   * Creates a cache holding downloads in memory.
+   */
+  DownloadCache()
+  {
+    this(null);
+  }
+
+  /**
+   * Creates a cache spooling downloads to <code>spoolDir</code>. Downloads
+   * of a previous session are kept if they can be revalidated, all other
+   * files left behind are deleted.
+   */
+  DownloadCache(final File spoolDir)
+  {
+    this.spoolDir = spoolDir;
+    if (spoolDir != null)
+    {
+      this.readIndex();
+
+      final Set<String> referenced = new HashSet<String>();
+      referenced.add(INDEX_FILE_NAME);
+      for (final Entry entry : this.entries.values())
+      {
+        referenced.add(new File(entry.file).getName());
+      }
+      final File[] files = spoolDir.listFiles();
+      if (files != null)
+      {
+        for (final File file : files)
+        {
+          if (!referenced.contains(file.getName()))
+          {
+            file.delete();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether downloads should be spooled to {@link #newSpoolFile()}.
+   */
+  boolean isSpooling()
+  {
+    return this.spoolDir != null;
+  }
+
+  /**
+   * Creates a new, empty file to spool a download to. Once complete, it is
+   * put into the cache with {@link ServerResponse#setResponseFile(String)},
+   * otherwise it has to be deleted by the caller.
+   */
+  File newSpoolFile() throws IOException
+  {
+    if (!this.spoolDir.isDirectory() && !this.spoolDir.mkdirs())
+    {
+      throw new IOException("Failed to create " + this.spoolDir);
+    }
+    return File.createTempFile("download", ".txt", this.spoolDir);
+  }
+
+  /**
+   * Adds a reference to the file, has to be called with {@link #entries}
+   * locked.
+   */
+  private void acquireFile(final String file)
+  {
+    if (file != null)
+    {
+      final Integer count = this.fileReferences.get(file);
+      this.fileReferences.put(file, Integer.valueOf(count != null ? count.intValue() + 1 : 1));
+    }
+  }
+
+  /**
+   * Removes a reference to the file and deletes it if it was the last one,
+   * has to be called with {@link #entries} locked.
+   */
+  private void releaseFile(final String file)
+  {
+    if (file == null)
+    {
+      return;
+    }
+    final Integer count = this.fileReferences.get(file);
+    if (count == null)
+    {
+      Log.w(TAG, "Released " + file + " more often than acquired");
+      return;
+    }
+    if (count.intValue() > 1)
+    {
+      this.fileReferences.put(file, Integer.valueOf(count.intValue() - 1));
+    }
+    else
+    {
+      this.fileReferences.remove(file);
+      new File(file).delete();
+    }
+  }
+
+  /**
+   * Gives back the reference of a response file handed out with a response
+   * (see {@link ServerResponse#getResponseFile()}) or a {@link DiffBase},
+   * once it has been read.
+   */
+  void release(final String file)
+  {
+    synchronized (this.entries)
+    {
+      this.releaseFile(file);
+    }
+  }
+
+  private static String getKey(final String url)
+  {
+    final int idx = url.indexOf('?');
+    return idx != -1 ? url.substring(0, idx) : url;
+  }
+
+  private static String getHeader(final List<HeaderEntry> headers, final String name)
+  {
+    for (final HeaderEntry header : headers)
+    {
+      if (name.equalsIgnoreCase(header.getKey()))
+      {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Caches the response, a response file then belongs to the cache. The
+   * response itself holds a reference, so it has to be released like those
+   * returned by {@link #get(String)}.
+   */
+  void put(final String url, final ServerResponse response)
+  {
+    final List<HeaderEntry> headers = response.getResponseHeaders();
+    final Entry entry = new Entry(response.getResponseStatus(), response.getResponse(), response.getResponseFile(),
+        headers, getHeader(headers, "ETag"), getHeader(headers, "Last-Modified"),
+        readDiffHeader(response.getResponseFile()), System.currentTimeMillis());
+    synchronized (this.entries)
+    {
+      this.acquireFile(entry.file);
+      this.put(getKey(url), entry);
+    }
+  }
+
+  private static ListDiff.Header readDiffHeader(final String file)
+  {
+    if (file == null)
+    {
+      return null;
+    }
+    try
+    {
+      return ListDiff.readHeader(new File(file));
+    }
+    catch (final IOException e)
+    {
+      Log.w(TAG, "Failed to read the header of " + file, e);
+      return null;
+    }
+  }
+
+  private void put(final String key, final Entry entry)
+  {
+    synchronized (this.entries)
+    {
+      // Acquired before the previous entry lets go, in case they share it
+      this.acquireFile(entry.file);
+      final Entry previous = this.entries.put(key, entry);
+      if (previous != null)
+      {
+        this.releaseFile(previous.file);
+      }
+      if (this.spoolDir != null)
+      {
+        this.writeIndex();
+      }
+    }
+  }
+
+  /**
+   * Returns a copy of the cached response for the given URL or
+   * <code>null</code> if there is no recent one. A response file has to be
+   * released with {@link #release(String)} once read.
+   */
+  ServerResponse get(final String url)
+  {
+    synchronized (this.entries)
+    {
+      final Entry entry = this.entries.get(getKey(url));
+      if (entry == null || System.currentTimeMillis() - entry.time > MAX_AGE_MILLIS)
+      {
+        return null;
+      }
+      this.acquireFile(entry.file);
+      return entry.toResponse(entry.headers);
+    }
+  }
+
+  /**
+   * Returns the headers making a request for the given URL conditional on
+   * the cached download being outdated, empty if there is none that can be
+   * revalidated.
+   */
+  List<HeaderEntry> getConditionalHeaders(final String url)
+  {
+    final Entry entry;
+    synchronized (this.entries)
+    {
+      entry = this.entries.get(getKey(url));
+    }
+    if (entry == null || (entry.body == null && entry.file == null))
+    {
+      return NO_HEADERS;
+    }
+
+    final List<HeaderEntry> headers = new ArrayList<HeaderEntry>(2);
+    if (entry.etag != null)
+    {
+      headers.add(HeaderEntry.of("If-None-Match", entry.etag));
+    }
+    if (entry.lastModified != null)
+    {
+      headers.add(HeaderEntry.of("If-Modified-Since", entry.lastModified));
+    }
+    return headers;
+  }
+
+  /**
+   * Returns the stored download of the given URL, if it is a list that can
+   * be updated with a diff, otherwise <code>null</code>. Its file has to be
+   * released with {@link #release(String)} once read.
+   */
+  DiffBase getDiffBase(final String url)
+  {
+    synchronized (this.entries)
+    {
+      final Entry entry = this.entries.get(getKey(url));
+      if (entry == null || entry.file == null || entry.diffHeader == null)
+      {
+        return null;
+      }
+      this.acquireFile(entry.file);
+      return new DiffBase(new File(entry.file), entry.diffHeader);
+    }
+  }
+
+  /**
+   * Handles a <code>304 Not Modified</code> response to a request made
+   * conditional with {@link #getConditionalHeaders(String)}: returns the
+   * cached download as a <code>200 OK</code> response with the given
+   * (current) headers, or <code>null</code> if it is gone in the meantime.
+   * A response file has to be released with {@link #release(String)} once
+   * read.
+   */
+  ServerResponse getNotModified(final String url, final List<HeaderEntry> headers)
+  {
+    final String key = getKey(url);
+    final Entry entry;
+    synchronized (this.entries)
+    {
+      entry = this.entries.get(key);
+      if (entry == null || (entry.body == null && entry.file == null))
+      {
+        return null;
+      }
+
+      final String etag = getHeader(headers, "ETag");
+      final String lastModified = getHeader(headers, "Last-Modified");
+      this.put(key, new Entry(200, entry.body, entry.file, headers, etag != null ? etag : entry.etag,
+          lastModified != null ? lastModified : entry.lastModified, entry.diffHeader, System.currentTimeMillis()));
+      this.acquireFile(entry.file);
+    }
+    return entry.toResponse(headers);
+  }
+
+  /**
+   * Reads the revalidatable downloads of the previous session, they are
+   * never recent.
+   */
+  private void readIndex()
+  {
+    final File file = new File(this.spoolDir, INDEX_FILE_NAME);
+    if (!file.exists())
+    {
+      return;
+    }
+
+    try
+    {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try
+      {
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+          // Indexes written before diffs were supported have four fields
+          final String[] fields = line.split("\t", -1);
+          if (fields.length != 4 && fields.length != 6)
+          {
+            continue;
+          }
+          final File spoolFile = new File(this.spoolDir, fields[1]);
+          if (spoolFile.isFile())
+          {
+            final ListDiff.Header diffHeader = fields.length == 6 && fields[5].length() > 0
+                ? new ListDiff.Header(fields[4], fields[5]) : null;
+            this.acquireFile(spoolFile.getPath());
+            final Entry previous = this.entries.put(fields[0], new Entry(200, null, spoolFile.getPath(), NO_HEADERS,
+                fields[2].length() > 0 ? fields[2] : null, fields[3].length() > 0 ? fields[3] : null, diffHeader, 0));
+            if (previous != null)
+            {
+              this.releaseFile(previous.file);
+            }
+          }
+        }
+      }
+      finally
+      {
+        reader.close();
+      }
+    }
+    catch (final IOException e)
+    {
+      Log.w(TAG, "Failed to read " + file, e);
+    }
+  }
+
+  /**
+   * Writes the spooled downloads that can be revalidated or updated with a
+   * diff to the index, one tab separated line (key, file name, ETag,
+   * Last-Modified, version, diff URL) each.
+   */
+  private void writeIndex()
+  {
+    final StringBuilder lines = new StringBuilder();
+    for (final Map.Entry<String, Entry> mapEntry : this.entries.entrySet())
+    {
+      final Entry entry = mapEntry.getValue();
+      if (entry.file != null && (entry.etag != null || entry.lastModified != null || entry.diffHeader != null))
+      {
+        lines.append(mapEntry.getKey()).append('\t')
+            .append(new File(entry.file).getName()).append('\t')
+            .append(entry.etag != null ? entry.etag : "").append('\t')
+            .append(entry.lastModified != null ? entry.lastModified : "").append('\t')
+            .append(entry.diffHeader != null ? entry.diffHeader.version : "").append('\t')
+            .append(entry.diffHeader != null ? entry.diffHeader.diffUrl : "").append('\n');
+      }
+    }
+
+    final File file = new File(this.spoolDir, INDEX_FILE_NAME);
+    final File tempFile = new File(this.spoolDir, INDEX_FILE_NAME + ".tmp");
+    try
+    {
+      final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+      try
+      {
+        writer.write(lines.toString());
+      }
+      finally
+      {
+        writer.close();
+      }
+      if (!tempFile.renameTo(file))
+      {
+        tempFile.delete();
+        Log.w(TAG, "Failed to replace " + file);
+      }
+    }
+    catch (final IOException e)
+    {
+      Log.w(TAG, "Failed to write " + file, e);
+    }
+  }
+
+  private static final class Entry
+  {
+    private final int responseStatus;
+    private final String body;
+    private final String file;
+    private final List<HeaderEntry> headers;
+    private final String etag;
+    private final String lastModified;
+    private final ListDiff.Header diffHeader;
+    private final long time;
+
+    private Entry(final int responseStatus, final String body, final String file, final List<HeaderEntry> headers,
+        final String etag, final String lastModified, final ListDiff.Header diffHeader, final long time)
+    {
+      this.responseStatus = responseStatus;
+      this.body = body;
+      this.file = file;
+      this.headers = headers;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.diffHeader = diffHeader;
+      this.time = time;
+    }
+
+    private ServerResponse toResponse(final List<HeaderEntry> headers)
+    {
+      final ServerResponse response = new ServerResponse();
+      response.setStatus(ServerResponse.NsStatus.OK);
+      response.setResponseStatus(this.responseStatus);
+      response.setResponse(this.body);
+      response.setResponseFile(this.file);
+      response.setReponseHeaders(headers);
+      return response;
+    }
+  }
+
+  /**
+   * A stored list and its headers, see {@link #getDiffBase(String)}.
+   */
+  static final class DiffBase
+  {
+    final File file;
+    final ListDiff.Header header;
+
+    private DiffBase(final File file, final ListDiff.Header header)
+    {
+      this.file = file;
+      this.header = header;
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Bounded cache of the element hiding style sheets injected into pages,
+ * already encoded, keyed by domain and charset.
+ *
+ * Like {@link MatchCache}, payloads are tagged with the generation they were
+ * built in and {@link #invalidate()} drops all of them.
+ */
+final class ElemhidePayloadCache
+{
+  private static final int MAX_ENTRIES = 64;
+  private static final long MAX_BYTES = 1024 * 1024;
+  private static final byte[] NO_PAYLOAD = new byte[0];
+
+  private final LinkedHashMap<String, byte[]> payloads = new LinkedHashMap<String, byte[]>(MAX_ENTRIES + 1, 0.75f, true);
+  private long bytes = 0;
+  private volatile int generation = 0;
+
+  private static String getKey(final String domain, final Charset charset)
+  {
+    return charset.name() + " " + domain;
+  }
+
+  /**
+   * Builds the payload injected into pages for the given selectors.
+   */
+  static byte[] encode(final List<String> selectors, final Charset charset)
+  {
+    if (selectors.isEmpty())
+    {
+      return NO_PAYLOAD;
+    }
+
+    final StringBuilder css = new StringBuilder("<style type=\"text/css\">\n");
+    for (int i = 0; i < selectors.size(); i++)
+    {
+      if (i > 0)
+      {
+        css.append(",\r\n");
+      }
+      css.append(selectors.get(i));
+    }
+    css.append("{ display: none !important }</style>\n");
+    return css.toString().getBytes(charset);
+  }
+
+  int getGeneration()
+  {
+    return this.generation;
+  }
+
+  /**
+   * Returns the cached payload (empty if there are no selectors for the
+   * domain) or <code>null</code> if there is none.
+   */
+  byte[] get(final String domain, final Charset charset)
+  {
+    synchronized (this.payloads)
+    {
+      return this.payloads.get(getKey(domain, charset));
+    }
+  }
+
+  /**
+   * Stores a payload, unless the cache got invalidated since
+   * <code>generation</code> was obtained via {@link #getGeneration()}.
+   */
+  void put(final String domain, final Charset charset, final byte[] payload, final int generation)
+  {
+    if (payload.length > MAX_BYTES)
+    {
+      return;
+    }
+
+    synchronized (this.payloads)
+    {
+      if (generation != this.generation)
+      {
+        return;
+      }
+
+      final byte[] previous = this.payloads.put(getKey(domain, charset), payload);
+      this.bytes += payload.length - (previous != null ? previous.length : 0);
+
+      final Iterator<byte[]> eldest = this.payloads.values().iterator();
+      while (this.bytes > MAX_BYTES || this.payloads.size() > MAX_ENTRIES)
+      {
+        this.bytes -= eldest.next().length;
+        eldest.remove();
+      }
+    }
+  }
+
+  void invalidate()
+  {
+    synchronized (this.payloads)
+    {
+      this.generation++;
+      this.payloads.clear();
+      this.bytes = 0;
+    }
+  }
+}
@@ -0,0 +1,722 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.adblockplus.libadblockplus.AppInfo;
+import org.adblockplus.libadblockplus.FilterChangeCallback;
+import org.adblockplus.libadblockplus.FilterEngine;
+import org.adblockplus.libadblockplus.JsEngine;
+import org.adblockplus.libadblockplus.JsValue;
+import org.adblockplus.libadblockplus.LogSystem;
+import org.adblockplus.libadblockplus.Subscription;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Pool of filter engines that requests are matched on, so that matching
+ * isn't limited to the single V8 isolate of the primary engine.
+ *
+ * The first instance is the primary filter engine, all others are replicas
+ * with their own JavaScript engine and storage directory, seeded from the
+ * primary's storage. Replicas don't do anything on their own: whenever the
+ * primary's filters change, their subscription lists are brought in line
+ * with the primary's, downloads are served from what the primary just
+ * downloaded (see {@link ReplicaWebRequest}). See
+ * {@link #onPrimaryChanging()} for how matching continues meanwhile.
+ */
+public final class FilterEnginePool
+{
+  private static final String TAG = Utils.getTag(FilterEnginePool.class);
+
+  private static final String REPLICA_DIR_PREFIX = "replica";
+  private static final long SYNC_DELAY_MILLIS = 2000;
+  private static final long SYNC_TIMEOUT_MILLIS = 60 * 1000;
+  /**
+   * Files of the primary's storage replicas are seeded with: the filter
+   * lists and the core's prefs. Everything else there (index snapshots,
+   * recorded requests, hosts blocklists) is only read by the app itself.
+   */
+  private static final Set<String> STORAGE_FILES = new HashSet<String>(Arrays.asList("patterns.ini", "prefs.json"));
+
+  private final Instance[] instances;
+  private final BlockingQueue<Instance> idleInstances;
+  private final long createdAt = System.nanoTime();
+  private final Runnable onReplicasSynced;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+  {
+    @Override
+    public Thread newThread(final Runnable r)
+    {
+      final Thread thread = new Thread(r, FilterEnginePool.class.getSimpleName());
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  });
+
+  private ScheduledFuture<?> pendingSync;
+  /**
+   * Instance {@link #takeOutOfRotation} waits for, notified on the pool's
+   * monitor by {@link #release}.
+   */
+  private volatile Instance awaitedInstance;
+  private boolean primaryParked = false;
+  private boolean primaryOutOfRotation = false;
+  private long parkedAt = 0;
+  /**
+   * Number of instances taken out of rotation on purpose (the parked primary
+   * and the replica being synced), at least one instance always stays in
+   * rotation.
+   */
+  private int outOfRotationCount = 0;
+
+  private volatile long lastPrimaryParkedMillis = 0;
+  private volatile long lastSyncMillis = 0;
+  private volatile long lastReplicaSwapMillis = 0;
+  private volatile long lastSwapOverlapBytes = 0;
+
+  private FilterEnginePool(final Instance[] instances, final Runnable onReplicasSynced)
+  {
+    this.instances = instances;
+    this.idleInstances = new ArrayBlockingQueue<Instance>(instances.length);
+    for (final Instance instance : instances)
+    {
+      this.idleInstances.add(instance);
+    }
+    this.onReplicasSynced = onReplicasSynced;
+  }
+
+  /**
+   * Creates a pool of <code>size</code> filter engines, the primary engine
+   * and <code>size - 1</code> replicas.
+   *
+   * @param onReplicasSynced
+   *          run after replicas were brought in line with the primary
+   */
+  static FilterEnginePool create(final AppInfo appInfo, final String basePath, final FilterEngine primary,
+      final AndroidWebRequest primaryWebRequest, final boolean enableElemhide, final int size,
+      final Runnable onReplicasSynced)
+  {
+    final Instance[] instances = new Instance[Math.max(size, 1)];
+    instances[0] = new Instance(primary, null, null, null, null);
+
+    for (int i = 1; i < instances.length; i++)
+    {
+      final File dir = new File(basePath, REPLICA_DIR_PREFIX + i);
+      seedStorage(new File(basePath), dir);
+
+      final JsEngine jsEngine = new JsEngine(appInfo);
+      jsEngine.setDefaultFileSystem(dir.getAbsolutePath());
+      final LogSystem logSystem = new AndroidLogSystem();
+      jsEngine.setLogSystem(logSystem);
+      final ReplicaWebRequest webRequest = new ReplicaWebRequest(enableElemhide, primaryWebRequest.getDownloadCache());
+      jsEngine.setWebRequest(webRequest);
+
+      final FilterEngine filterEngine = new FilterEngine(jsEngine);
+      SubscriptionRefreshScheduler.disableAutomaticUpdates(jsEngine, filterEngine);
+      webRequest.updateSubscriptionURLs(filterEngine);
+      final ReplicaChangeCallback changeCallback = new ReplicaChangeCallback();
+      filterEngine.setFilterChangeCallback(changeCallback);
+      instances[i] = new Instance(filterEngine, jsEngine, logSystem, webRequest, changeCallback);
+    }
+
+    Log.i(TAG, "Created filter engine pool of size " + instances.length);
+    final FilterEnginePool pool = new FilterEnginePool(instances, onReplicasSynced);
+    if (instances.length > 1)
+    {
+      pool.scheduleSync();
+    }
+    return pool;
+  }
+
+  /**
+   * Copies the files the primary engine persisted (see
+   * {@link #STORAGE_FILES}) to a replica's storage directory.
+   */
+  private static void seedStorage(final File from, final File to)
+  {
+    if (!to.isDirectory() && !to.mkdirs())
+    {
+      Log.e(TAG, "Failed to create " + to);
+      return;
+    }
+
+    final File[] files = from.listFiles();
+    if (files == null)
+    {
+      return;
+    }
+    for (final File file : files)
+    {
+      if (file.isFile() && STORAGE_FILES.contains(file.getName()))
+      {
+        try
+        {
+          copyFile(file, new File(to, file.getName()));
+        }
+        catch (final IOException e)
+        {
+          Log.e(TAG, "Failed to copy " + file + " to " + to, e);
+        }
+      }
+    }
+  }
+
+  private static void copyFile(final File from, final File to) throws IOException
+  {
+    final InputStream in = new FileInputStream(from);
+    try
+    {
+      final OutputStream out = new FileOutputStream(to);
+      try
+      {
+        final byte[] buffer = new byte[16384];
+        int count;
+        while ((count = in.read(buffer)) != -1)
+        {
+          out.write(buffer, 0, count);
+        }
+      }
+      finally
+      {
+        out.close();
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Waits for an idle instance, which has to be handed back using
+   * {@link #release(Instance)}.
+   */
+  Instance acquire()
+  {
+    boolean interrupted = false;
+    try
+    {
+      while (true)
+      {
+        try
+        {
+          final Instance instance = this.idleInstances.take();
+          instance.acquiredAt = System.nanoTime();
+          return instance;
+        }
+        catch (final InterruptedException e)
+        {
+          interrupted = true;
+        }
+      }
+    }
+    finally
+    {
+      if (interrupted)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  void release(final Instance instance)
+  {
+    instance.busyNanos.addAndGet(System.nanoTime() - instance.acquiredAt);
+    instance.calls.incrementAndGet();
+    if (instance == this.instances[0])
+    {
+      synchronized (this)
+      {
+        if (this.primaryParked)
+        {
+          this.primaryOutOfRotation = true;
+          return;
+        }
+      }
+    }
+    this.idleInstances.add(instance);
+    if (instance == this.awaitedInstance)
+    {
+      synchronized (this)
+      {
+        this.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Called when the primary's filters start changing: the primary is taken
+   * out of rotation while it parses the changes, so requests are matched on
+   * the replicas (still holding the previous generation of filters) instead
+   * of waiting for it. Once the changes have settled the primary is put back
+   * and the replicas are updated one by one, each out of rotation while it
+   * is busy.
+   *
+   * The primary stays in rotation if it is the only instance left, i.e.
+   * while the only replica is being synced.
+   */
+  synchronized void onPrimaryChanging()
+  {
+    if (this.instances.length < 2 || this.executor.isShutdown())
+    {
+      return;
+    }
+
+    if (!this.primaryParked && this.instances.length - this.outOfRotationCount > 1)
+    {
+      this.primaryParked = true;
+      this.outOfRotationCount++;
+      this.parkedAt = System.currentTimeMillis();
+      if (this.idleInstances.remove(this.instances[0]))
+      {
+        this.primaryOutOfRotation = true;
+      }
+    }
+    this.scheduleSync();
+  }
+
+  private synchronized void unparkPrimary()
+  {
+    if (this.primaryParked)
+    {
+      this.primaryParked = false;
+      this.outOfRotationCount--;
+      this.lastPrimaryParkedMillis = System.currentTimeMillis() - this.parkedAt;
+      if (this.primaryOutOfRotation)
+      {
+        this.primaryOutOfRotation = false;
+        this.idleInstances.add(this.instances[0]);
+      }
+    }
+  }
+
+  /**
+   * Waits until the given instance is idle and takes it out of rotation,
+   * unless it is the only instance left in rotation.
+   *
+   * @return whether the instance got taken out of rotation
+   */
+  private boolean takeOutOfRotation(final Instance instance)
+  {
+    synchronized (this)
+    {
+      if (this.instances.length - this.outOfRotationCount < 2)
+      {
+        return false;
+      }
+      this.outOfRotationCount++;
+
+      // release() adds the instance before checking whether it is awaited,
+      // so it is either idle already or we get notified
+      this.awaitedInstance = instance;
+      try
+      {
+        while (!this.idleInstances.remove(instance))
+        {
+          this.wait();
+        }
+        return true;
+      }
+      catch (final InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      finally
+      {
+        this.awaitedInstance = null;
+      }
+    }
+
+    this.putBackIntoRotation(null);
+    return false;
+  }
+
+  /**
+   * Puts an instance taken out by {@link #takeOutOfRotation} back,
+   * <code>null</code> if it didn't get idle in the first place.
+   */
+  private void putBackIntoRotation(final Instance instance)
+  {
+    if (instance != null)
+    {
+      this.idleInstances.add(instance);
+    }
+    synchronized (this)
+    {
+      this.outOfRotationCount--;
+    }
+  }
+
+  /**
+   * Brings the replicas' subscriptions in line with the primary's once the
+   * changes have settled.
+   */
+  private synchronized void scheduleSync()
+  {
+    if (this.pendingSync != null)
+    {
+      this.pendingSync.cancel(false);
+    }
+    this.pendingSync = this.executor.schedule(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        syncReplicas();
+      }
+    }, SYNC_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private void syncReplicas()
+  {
+    this.unparkPrimary();
+
+    final long start = System.currentTimeMillis();
+    final Map<String, Long> primaryDownloads = getListedSubscriptions(this.instances[0].filterEngine);
+
+    long longestOutOfRotation = 0;
+    long largestNativeGrowth = 0;
+    for (int i = 1; i < this.instances.length; i++)
+    {
+      final Instance instance = this.instances[i];
+      final FilterEngine replica = instance.filterEngine;
+      final Map<String, Long> replicaDownloads = getListedSubscriptions(replica);
+      if (replicaDownloads.equals(primaryDownloads))
+      {
+        continue;
+      }
+
+      final long swapStart = System.currentTimeMillis();
+      if (!this.takeOutOfRotation(instance))
+      {
+        // The primary got parked again meanwhile, there's another sync
+        // pending (or we got interrupted)
+        return;
+      }
+      final long nativeHeapBefore = Debug.getNativeHeapAllocatedSize();
+      long nativeHeapPeak = nativeHeapBefore;
+      // Events before this one can't tell us about the downloads started below
+      long seenEvents = instance.changeCallback.getEventCount();
+
+      for (final Map.Entry<String, Long> entry : primaryDownloads.entrySet())
+      {
+        final Long replicaDownload = replicaDownloads.get(entry.getKey());
+        if (replicaDownload == null || replicaDownload.longValue() < entry.getValue().longValue())
+        {
+          final Subscription subscription = replica.getSubscription(entry.getKey());
+          if (subscription != null)
+          {
+            if (replicaDownload == null)
+            {
+              subscription.addToList();
+            }
+            else
+            {
+              subscription.updateFilters();
+            }
+            subscription.dispose();
+          }
+        }
+      }
+
+      for (final String url : replicaDownloads.keySet())
+      {
+        if (!primaryDownloads.containsKey(url))
+        {
+          final Subscription subscription = replica.getSubscription(url);
+          if (subscription != null)
+          {
+            subscription.removeFromList();
+            subscription.dispose();
+          }
+        }
+      }
+
+      // Rechecked whenever one of the replica's downloads finished
+      while (isUpdating(replica))
+      {
+        nativeHeapPeak = Math.max(nativeHeapPeak, Debug.getNativeHeapAllocatedSize());
+        final long remaining = SYNC_TIMEOUT_MILLIS - (System.currentTimeMillis() - swapStart);
+        try
+        {
+          seenEvents = instance.changeCallback.awaitEventAfter(seenEvents, remaining);
+          if (seenEvents < 0)
+          {
+            Log.w(TAG, "Timed out waiting for replica " + i + " to finish updating");
+            break;
+          }
+        }
+        catch (final InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      nativeHeapPeak = Math.max(nativeHeapPeak, Debug.getNativeHeapAllocatedSize());
+      this.putBackIntoRotation(instance);
+
+      longestOutOfRotation = Math.max(longestOutOfRotation, System.currentTimeMillis() - swapStart);
+      largestNativeGrowth = Math.max(largestNativeGrowth, nativeHeapPeak - nativeHeapBefore);
+    }
+
+    this.lastSyncMillis = System.currentTimeMillis() - start;
+    this.lastReplicaSwapMillis = longestOutOfRotation;
+    this.lastSwapOverlapBytes = largestNativeGrowth;
+    Log.d(TAG, "Synced " + (this.instances.length - 1) + " replicas in " + this.lastSyncMillis
+        + " ms, primary was out of rotation for " + this.lastPrimaryParkedMillis + " ms, replicas for up to "
+        + longestOutOfRotation + " ms, native heap grew by up to " + (largestNativeGrowth / 1024) + " KiB");
+
+    if (this.onReplicasSynced != null)
+    {
+      this.onReplicasSynced.run();
+    }
+  }
+
+  /**
+   * Returns the URLs of the listed subscriptions along with the time of
+   * their last download.
+   */
+  private static Map<String, Long> getListedSubscriptions(final FilterEngine filterEngine)
+  {
+    final Map<String, Long> downloads = new HashMap<String, Long>();
+    for (final Subscription subscription : filterEngine.getListedSubscriptions())
+    {
+      downloads.put(subscription.getProperty("url").toString(),
+          Long.valueOf(subscription.getProperty("lastDownload").asLong()));
+      subscription.dispose();
+    }
+    return downloads;
+  }
+
+  private static boolean isUpdating(final FilterEngine filterEngine)
+  {
+    boolean updating = false;
+    final List<Subscription> subscriptions = filterEngine.getListedSubscriptions();
+    for (final Subscription subscription : subscriptions)
+    {
+      updating |= subscription.isUpdating();
+      subscription.dispose();
+    }
+    return updating;
+  }
+
+  public int getSize()
+  {
+    return this.instances.length;
+  }
+
+  /**
+   * Returns the share of time the given instance spent matching since the
+   * pool was created.
+   */
+  public double getUtilization(final int index)
+  {
+    final long elapsed = System.nanoTime() - this.createdAt;
+    return elapsed > 0 ? (double) this.instances[index].busyNanos.get() / elapsed : 0.0;
+  }
+
+  public long getCallCount(final int index)
+  {
+    return this.instances[index].calls.get();
+  }
+
+  /**
+   * Returns how long the primary was out of rotation during the last filter
+   * change.
+   */
+  public long getLastPrimaryParkedMillis()
+  {
+    return this.lastPrimaryParkedMillis;
+  }
+
+  /**
+   * Returns how long the last sync of all replicas took.
+   */
+  public long getLastSyncMillis()
+  {
+    return this.lastSyncMillis;
+  }
+
+  /**
+   * Returns the longest time a replica was out of rotation during the last
+   * sync.
+   */
+  public long getLastReplicaSwapMillis()
+  {
+    return this.lastReplicaSwapMillis;
+  }
+
+  /**
+   * Returns how much the native heap grew at most while a replica held both
+   * its old and its new filters during the last sync.
+   */
+  public long getLastSwapOverlapBytes()
+  {
+    return this.lastSwapOverlapBytes;
+  }
+
+  void dispose()
+  {
+    this.executor.shutdownNow();
+    try
+    {
+      this.executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+
+    // Wait for replicas still in use, the primary engine is owned by ABPEngine
+    final long deadline = System.currentTimeMillis() + 5000;
+    for (int i = 1; i < this.instances.length; i++)
+    {
+      try
+      {
+        final Instance instance = this.idleInstances.poll(Math.max(deadline - System.currentTimeMillis(), 0),
+            TimeUnit.MILLISECONDS);
+        if (instance == null)
+        {
+          Log.w(TAG, "Leaking filter engine replicas still in use");
+          return;
+        }
+        if (instance == this.instances[0])
+        {
+          this.idleInstances.add(instance);
+          i--;
+          continue;
+        }
+        instance.dispose();
+      }
+      catch (final InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  static final class Instance
+  {
+    private final FilterEngine filterEngine;
+    private final JsEngine jsEngine;
+    private final LogSystem logSystem;
+    private final AndroidWebRequest webRequest;
+    private final ReplicaChangeCallback changeCallback;
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong calls = new AtomicLong();
+    private long acquiredAt;
+
+    private Instance(final FilterEngine filterEngine, final JsEngine jsEngine, final LogSystem logSystem,
+        final AndroidWebRequest webRequest, final ReplicaChangeCallback changeCallback)
+    {
+      this.filterEngine = filterEngine;
+      this.jsEngine = jsEngine;
+      this.logSystem = logSystem;
+      this.webRequest = webRequest;
+      this.changeCallback = changeCallback;
+    }
+
+    FilterEngine getFilterEngine()
+    {
+      return this.filterEngine;
+    }
+
+    private void dispose()
+    {
+      this.filterEngine.dispose();
+      this.changeCallback.dispose();
+      this.jsEngine.dispose();
+      this.logSystem.dispose();
+      this.webRequest.dispose();
+    }
+  }
+
+  /**
+   * Counts a replica's finished downloads, so that syncing can wait for them
+   * instead of polling the subscriptions.
+   */
+  private static final class ReplicaChangeCallback extends FilterChangeCallback
+  {
+    private long eventCount = 0;
+
+    @Override
+    public void filterChangeCallback(final String action, final JsValue jsValue)
+    {
+      // Sent once a download finished, successfully or not, extra events
+      // only cause extra checks
+      if (action.equals("subscription.downloadStatus") || action.equals("subscription.lastDownload"))
+      {
+        synchronized (this)
+        {
+          this.eventCount++;
+          this.notifyAll();
+        }
+      }
+    }
+
+    synchronized long getEventCount()
+    {
+      return this.eventCount;
+    }
+
+    /**
+     * Waits for a download to finish after <code>seenEvents</code> were
+     * counted, returns the new count or <code>-1</code> on timeout. Never
+     * called while holding a lock the JavaScript engine's thread might need.
+     */
+    synchronized long awaitEventAfter(final long seenEvents, final long timeoutMillis)
+        throws InterruptedException
+    {
+      final long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (this.eventCount == seenEvents)
+      {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+        {
+          return -1;
+        }
+        this.wait(remaining);
+      }
+      return this.eventCount;
+    }
+  }
+}
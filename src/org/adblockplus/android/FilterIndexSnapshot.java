@@ -0,0 +1,131 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.adblockplus.android.filters.HostTrie;
+import org.adblockplus.android.filters.TokenPrefilter;
+
+/**
+ * Binary snapshot of the {@link FilterIndexes}, so that they can be used
+ * right after startup, long before the filter engine has loaded all filters
+ * and the indexes could be rebuilt.
+ *
+ * The snapshot is memory mapped for reading.
+ */
+final class FilterIndexSnapshot
+{
+  static final String FILE_NAME = "filterindexes.bin";
+
+  /**
+   * Generation of indexes read from a snapshot, they are never current (see
+   * {@link FilterIndexUpdater#isCurrent}) and only used to block requests.
+   */
+  static final int GENERATION = -1;
+
+  private static final int MAGIC = 0x41425049; // "ABPI"
+  /**
+   * Has to be increased whenever the format or the way the indexes are built
+   * from the filters changes.
+   */
+  private static final int VERSION = 4;
+
+  private FilterIndexSnapshot()
+  {
+    //
+  }
+
+  /**
+   * Writes the indexes to a temporary file first and replaces the snapshot
+   * with it, so that a crash never leaves a partial snapshot behind.
+   */
+  static void write(final File file, final FilterIndexes indexes) throws IOException
+  {
+    final File tempFile = new File(file.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      indexes.getPrefilter().writeTo(out);
+      indexes.getBlockedHosts().writeTo(out);
+      indexes.getExceptionPrefilter().writeTo(out);
+      out.writeInt(MAGIC);
+    }
+    finally
+    {
+      out.close();
+    }
+
+    if (!tempFile.renameTo(file))
+    {
+      tempFile.delete();
+      throw new IOException("Failed to replace " + file);
+    }
+  }
+
+  /**
+   * Reads the snapshot, returns <code>null</code> if there is none or it was
+   * written by a different version.
+   *
+   * @throws IOException if the snapshot is corrupt
+   */
+  static FilterIndexes read(final File file) throws IOException
+  {
+    if (!file.exists())
+    {
+      return null;
+    }
+
+    final FileInputStream in = new FileInputStream(file);
+    try
+    {
+      final FileChannel channel = in.getChannel();
+      final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < 8 || buffer.getInt() != MAGIC)
+      {
+        throw new IOException("Not a filter index snapshot");
+      }
+      if (buffer.getInt() != VERSION)
+      {
+        return null;
+      }
+
+      final TokenPrefilter prefilter = TokenPrefilter.readFrom(buffer);
+      final HostTrie blockedHosts = HostTrie.readFrom(buffer);
+      final TokenPrefilter exceptionPrefilter = TokenPrefilter.readFrom(buffer);
+      if (buffer.remaining() != 4 || buffer.getInt() != MAGIC)
+      {
+        throw new IOException("Truncated filter index snapshot");
+      }
+      return new FilterIndexes(GENERATION, prefilter, blockedHosts, exceptionPrefilter);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,429 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.adblockplus.android.filters.FilterText;
+import org.adblockplus.android.filters.HostTrie;
+import org.adblockplus.android.filters.TokenPrefilter;
+import org.adblockplus.libadblockplus.Filter;
+import org.adblockplus.libadblockplus.FilterCursor;
+import org.adblockplus.libadblockplus.FilterEngine;
+
+import android.util.Log;
+
+/**
+ * Maintains the Java side indexes over the filters of all enabled
+ * subscriptions.
+ *
+ * Indexes are rebuilt on a background thread once filter changes have
+ * settled and published as a whole (see {@link FilterIndexes}). The previous
+ * generation stays in use until then, but only current indexes (see
+ * {@link #isCurrent}) cover all filters the filter engine matches against.
+ * Outdated indexes or indexes read from a snapshot may only be used to block
+ * requests early, never to let requests through without asking the filter
+ * engine.
+ */
+public final class FilterIndexUpdater
+{
+  private static final String TAG = Utils.getTag(FilterIndexUpdater.class);
+
+  /**
+   * Filter changes usually come in bursts (e.g. a subscription update adds
+   * thousands of filters one by one), so we wait for them to settle.
+   */
+  private static final long REBUILD_DELAY_MILLIS = 2000;
+  /**
+   * Number of filters fetched from the filter engine at a time.
+   */
+  private static final int FILTER_CHUNK_SIZE = 512;
+
+  private final FilterEngine filterEngine;
+  private final File snapshotFile;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+  {
+    @Override
+    public Thread newThread(final Runnable r)
+    {
+      final Thread thread = new Thread(r, FilterIndexUpdater.class.getSimpleName());
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  });
+
+  private final Runnable onPublished;
+  private ScheduledFuture<?> pendingRebuild;
+  private volatile int generation = 0;
+  private long invalidatedAt = 0;
+  private volatile FilterIndexes indexes;
+
+  private volatile long lastBuildMillis = 0;
+  private volatile long lastSwapDelayMillis = 0;
+  private volatile long lastOverlapBytes = 0;
+  private volatile long snapshotLoadMillis = -1;
+
+  private final AtomicLong prefilterSkips = new AtomicLong();
+  private final AtomicLong prefilterPasses = new AtomicLong();
+  private final AtomicLong prefilterFalsePositives = new AtomicLong();
+  private final AtomicLong blockedHostHits = new AtomicLong();
+
+  /**
+   * @param snapshotFile
+   *          where to keep a snapshot of the indexes (see
+   *          {@link FilterIndexSnapshot}), <code>null</code> for none
+   * @param onPublished
+   *          run whenever a new generation of indexes got published
+   */
+  public FilterIndexUpdater(final FilterEngine filterEngine, final File snapshotFile, final Runnable onPublished)
+  {
+    this.filterEngine = filterEngine;
+    this.snapshotFile = snapshotFile;
+    this.onPublished = onPublished;
+  }
+
+  /**
+   * Publishes the indexes saved after the last rebuild, unless there are
+   * indexes already. They are used until the first rebuild is done, which
+   * takes a while after startup, but only to block requests early: they are
+   * never current, so requests they don't block are still matched by the
+   * filter engine.
+   *
+   * @return whether a snapshot got published
+   */
+  public boolean loadSnapshot()
+  {
+    if (this.snapshotFile == null)
+    {
+      return false;
+    }
+
+    final long start = System.currentTimeMillis();
+    final FilterIndexes snapshot;
+    try
+    {
+      snapshot = FilterIndexSnapshot.read(this.snapshotFile);
+    }
+    catch (final IOException e)
+    {
+      Log.w(TAG, "Discarding corrupt filter index snapshot", e);
+      this.snapshotFile.delete();
+      return false;
+    }
+    if (snapshot == null)
+    {
+      return false;
+    }
+
+    synchronized (this)
+    {
+      if (this.indexes != null)
+      {
+        return false;
+      }
+      this.indexes = snapshot;
+    }
+    this.snapshotLoadMillis = System.currentTimeMillis() - start;
+    Log.d(TAG, "Loaded filter index snapshot in " + this.snapshotLoadMillis + " ms");
+    return true;
+  }
+
+  /**
+   * Marks the current indexes as outdated and schedules a rebuild, they stay
+   * in use until the rebuild is done.
+   */
+  public synchronized void invalidate()
+  {
+    this.generation++;
+    if (this.invalidatedAt == 0)
+    {
+      this.invalidatedAt = System.currentTimeMillis();
+    }
+
+    if (this.pendingRebuild != null)
+    {
+      this.pendingRebuild.cancel(false);
+    }
+    if (!this.executor.isShutdown())
+    {
+      this.pendingRebuild = this.executor.schedule(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          rebuild();
+        }
+      }, REBUILD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void rebuild()
+  {
+    final int startGeneration;
+    synchronized (this)
+    {
+      startGeneration = this.generation;
+    }
+
+    final long start = System.currentTimeMillis();
+    final Runtime runtime = Runtime.getRuntime();
+    final long usedMemoryBefore = runtime.totalMemory() - runtime.freeMemory();
+    final TokenPrefilter.Builder prefilterBuilder = new TokenPrefilter.Builder();
+    final HostTrie.Builder blockedHostsBuilder = new HostTrie.Builder();
+    final TokenPrefilter.Builder exceptionPrefilterBuilder = new TokenPrefilter.Builder();
+
+    int filterCount = 0;
+    final FilterCursor filters = this.filterEngine.getEnabledFilterCursor(FILTER_CHUNK_SIZE);
+    try
+    {
+      while (filters.next())
+      {
+        if (Thread.currentThread().isInterrupted())
+        {
+          return;
+        }
+
+        for (int i = 0; i < filters.getCount(); i++)
+        {
+          final Filter.Type type = filters.getType(i);
+          final String text = filters.getText(i);
+          if (type == Filter.Type.BLOCKING)
+          {
+            prefilterBuilder.add(text);
+            addBlockedHost(blockedHostsBuilder, text);
+          }
+          else if (type == Filter.Type.EXCEPTION)
+          {
+            exceptionPrefilterBuilder.add(text);
+          }
+        }
+        filterCount += filters.getCount();
+      }
+    }
+    finally
+    {
+      filters.dispose();
+    }
+
+    final TokenPrefilter newPrefilter = prefilterBuilder.build();
+    final HostTrie newBlockedHosts = blockedHostsBuilder.build();
+    final FilterIndexes newIndexes = new FilterIndexes(startGeneration, newPrefilter, newBlockedHosts,
+        exceptionPrefilterBuilder.build());
+
+    // Both generations are alive now, the difference is roughly what the new
+    // one costs on top of the old one until the latter is collected
+    final long overlapBytes = runtime.totalMemory() - runtime.freeMemory() - usedMemoryBefore;
+    final long swapDelayMillis;
+    synchronized (this)
+    {
+      if (startGeneration != this.generation)
+      {
+        // Filters changed while we were busy, there's another rebuild pending
+        return;
+      }
+      this.indexes = newIndexes;
+      swapDelayMillis = System.currentTimeMillis() - this.invalidatedAt;
+      this.invalidatedAt = 0;
+    }
+
+    this.lastBuildMillis = System.currentTimeMillis() - start;
+    this.lastSwapDelayMillis = swapDelayMillis;
+    this.lastOverlapBytes = Math.max(overlapBytes, 0);
+    if (this.onPublished != null)
+    {
+      this.onPublished.run();
+    }
+    this.saveSnapshot(newIndexes);
+
+    Log.d(TAG, "Rebuilt filter indexes from " + filterCount + " filters in "
+        + this.lastBuildMillis + " ms (" + swapDelayMillis + " ms after the first change, about "
+        + (this.lastOverlapBytes / 1024) + " KiB overlap), prefilter has " + newPrefilter.getKeywordCount()
+        + " keywords and " + newPrefilter.getUnindexedCount() + " unindexed filters, "
+        + newBlockedHosts.getEntryCount() + " blocked hosts in " + newBlockedHosts.getNodeCount() + " trie nodes");
+  }
+
+  private void saveSnapshot(final FilterIndexes indexes)
+  {
+    if (this.snapshotFile == null)
+    {
+      return;
+    }
+
+    try
+    {
+      FilterIndexSnapshot.write(this.snapshotFile, indexes);
+    }
+    catch (final IOException e)
+    {
+      Log.e(TAG, "Failed to write filter index snapshot", e);
+    }
+  }
+
+  /**
+   * Adds the host of a plain <code>||host^</code> filter to the trie. Filters
+   * with options other than content types (e.g. <code>$domain</code> or
+   * <code>$third-party</code>) depend on more than the host and are left to
+   * the filter engine.
+   */
+  private static void addBlockedHost(final HostTrie.Builder builder, final String text)
+  {
+    final String host = FilterText.getAnchoredHost(FilterText.getPattern(text).toLowerCase(Locale.ENGLISH));
+    if (host == null)
+    {
+      return;
+    }
+
+    final int contentTypes = FilterText.getContentTypeMask(FilterText.getOptions(text));
+    if (contentTypes != FilterText.UNSUPPORTED_OPTIONS && contentTypes != 0)
+    {
+      builder.add(host, contentTypes);
+    }
+  }
+
+  /**
+   * Returns the most recently published indexes, which might be outdated
+   * while a rebuild is pending, or <code>null</code> if none were built yet.
+   */
+  public FilterIndexes getIndexes()
+  {
+    return this.indexes;
+  }
+
+  /**
+   * Checks whether the given indexes reflect the current filters, i.e. were
+   * built from all filters of the enabled subscriptions and no filter changed
+   * since.
+   */
+  public boolean isCurrent(final FilterIndexes indexes)
+  {
+    // Snapshots were built from the filters of the previous session
+    return indexes.getGeneration() != FilterIndexSnapshot.GENERATION && indexes.getGeneration() == this.generation;
+  }
+
+  /**
+   * Returns how long the last rebuild took.
+   */
+  public long getLastBuildMillis()
+  {
+    return this.lastBuildMillis;
+  }
+
+  /**
+   * Returns how long outdated indexes stayed in use before the last swap.
+   */
+  public long getLastSwapDelayMillis()
+  {
+    return this.lastSwapDelayMillis;
+  }
+
+  /**
+   * Returns the estimated heap size the last two generations of indexes
+   * occupied at the same time.
+   */
+  public long getLastOverlapBytes()
+  {
+    return this.lastOverlapBytes;
+  }
+
+  /**
+   * Returns how long loading the snapshot took, <code>-1</code> if none was
+   * loaded.
+   */
+  public long getSnapshotLoadMillis()
+  {
+    return this.snapshotLoadMillis;
+  }
+
+  /**
+   * Records that a request was blocked by the blocked hosts trie, without
+   * asking the filter engine.
+   */
+  void recordBlockedHostHit()
+  {
+    this.blockedHostHits.incrementAndGet();
+  }
+
+  public long getBlockedHostHitCount()
+  {
+    return this.blockedHostHits.get();
+  }
+
+  /**
+   * Records that the prefilter ruled out a request.
+   */
+  void recordPrefilterSkip()
+  {
+    this.prefilterSkips.incrementAndGet();
+  }
+
+  /**
+   * Records the outcome of a request the prefilter passed on to the filter
+   * engine, <code>matched</code> being whether the request got blocked.
+   */
+  void recordPrefilterPass(final boolean matched)
+  {
+    this.prefilterPasses.incrementAndGet();
+    if (!matched)
+    {
+      this.prefilterFalsePositives.incrementAndGet();
+    }
+  }
+
+  public long getPrefilterSkipCount()
+  {
+    return this.prefilterSkips.get();
+  }
+
+  public long getPrefilterPassCount()
+  {
+    return this.prefilterPasses.get();
+  }
+
+  /**
+   * Returns the share of requests the prefilter passed on to the filter
+   * engine that didn't get blocked after all.
+   */
+  public double getPrefilterFalsePositiveRate()
+  {
+    final long passes = this.prefilterPasses.get();
+    return passes > 0 ? (double) this.prefilterFalsePositives.get() / passes : 0.0;
+  }
+
+  public void dispose()
+  {
+    this.executor.shutdownNow();
+    try
+    {
+      // Don't pull the filter engine away from under a running rebuild
+      this.executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import org.adblockplus.android.filters.HostTrie;
+import org.adblockplus.android.filters.TokenPrefilter;
+
+/**
+ * One generation of the Java side indexes over the enabled filters, built by
+ * {@link FilterIndexUpdater} and published as a whole.
+ */
+public final class FilterIndexes
+{
+  private final int generation;
+  private final TokenPrefilter prefilter;
+  private final HostTrie blockedHosts;
+  private final TokenPrefilter exceptionPrefilter;
+
+  FilterIndexes(final int generation, final TokenPrefilter prefilter, final HostTrie blockedHosts,
+      final TokenPrefilter exceptionPrefilter)
+  {
+    this.generation = generation;
+    this.prefilter = prefilter;
+    this.blockedHosts = blockedHosts;
+    this.exceptionPrefilter = exceptionPrefilter;
+  }
+
+  /**
+   * Returns the filter generation (see {@link FilterIndexUpdater}) these
+   * indexes were built for.
+   */
+  public int getGeneration()
+  {
+    return this.generation;
+  }
+
+  /**
+   * Returns a prefilter over all blocking filters.
+   */
+  public TokenPrefilter getPrefilter()
+  {
+    return this.prefilter;
+  }
+
+  /**
+   * Returns the trie of hosts blocked by plain <code>||host^</code> filters,
+   * with the content types they are blocked for.
+   */
+  public HostTrie getBlockedHosts()
+  {
+    return this.blockedHosts;
+  }
+
+  /**
+   * Returns a prefilter over all exception filters.
+   */
+  public TokenPrefilter getExceptionPrefilter()
+  {
+    return this.exceptionPrefilter;
+  }
+}
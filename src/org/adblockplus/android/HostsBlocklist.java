@@ -0,0 +1,357 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.adblockplus.android.filters.FilterText;
+
+/**
+ * Blocklist imported from hosts files, kept apart from the filter engine.
+ *
+ * Host names are stored as a sorted array of their 64 bit hashes, eight
+ * bytes per host, in a memory mapped file, and looked up with a binary
+ * search. Like in a hosts file, only the listed host names are blocked, not
+ * their subdomains. Hash collisions are possible but, with 64 bit hashes,
+ * negligible for lists of a few million hosts.
+ */
+final class HostsBlocklist
+{
+  static final String FILE_NAME = "hostsblocklist.bin";
+
+  private static final int MAGIC = 0x41425048; // "ABPH"
+  /**
+   * Has to be increased whenever the format or the hash function changes.
+   */
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 12;
+
+  private static final String[] IGNORED_HOSTS =
+  {
+      "localhost", "localhost.localdomain", "local", "broadcasthost", "ip6-localhost", "ip6-loopback", "0.0.0.0"
+  };
+
+  private final LongBuffer hashes;
+
+  private HostsBlocklist(final LongBuffer hashes)
+  {
+    this.hashes = hashes;
+  }
+
+  /**
+   * Number of blocked host names.
+   */
+  int size()
+  {
+    return this.hashes.limit();
+  }
+
+  /**
+   * Checks if the host of the given URL is listed.
+   */
+  boolean containsUrlHost(final String url)
+  {
+    final String host = FilterText.getHost(url);
+    return host.length() > 0 && this.containsHash(hash(host));
+  }
+
+  /**
+   * Checks if the given (lower case) host name is listed.
+   */
+  boolean contains(final String host)
+  {
+    return this.containsHash(hash(host));
+  }
+
+  private boolean containsHash(final long hash)
+  {
+    final LongBuffer hashes = this.hashes;
+    int low = 0;
+    int high = hashes.limit() - 1;
+    while (low <= high)
+    {
+      final int middle = (low + high) >>> 1;
+      final long value = hashes.get(middle);
+      if (value < hash)
+      {
+        low = middle + 1;
+      }
+      else if (value > hash)
+      {
+        high = middle - 1;
+      }
+      else
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * 64 bit FNV-1a hash of the host name characters.
+   */
+  static long hash(final CharSequence host)
+  {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < host.length(); i++)
+    {
+      hash ^= host.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * Parses a hosts file (<code>address host [host...]</code> lines, or lines
+   * with just a host name) and writes its sorted host hashes to
+   * <code>file</code>.
+   *
+   * @return the number of distinct host names
+   */
+  static int compile(final InputStream in, final File file) throws IOException
+  {
+    long[] hashes = new long[4096];
+    int count = 0;
+
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    final StringBuilder host = new StringBuilder();
+    String line;
+    while ((line = reader.readLine()) != null)
+    {
+      final int comment = line.indexOf('#');
+      final int end = comment >= 0 ? comment : line.length();
+      int tokens = 0;
+      int i = 0;
+      while (i < end)
+      {
+        while (i < end && Character.isWhitespace(line.charAt(i)))
+        {
+          i++;
+        }
+        final int start = i;
+        while (i < end && !Character.isWhitespace(line.charAt(i)))
+        {
+          i++;
+        }
+        if (start == i)
+        {
+          break;
+        }
+
+        tokens++;
+        // The first of several tokens is the address
+        if (tokens == 1 && isAddress(line, start, i))
+        {
+          continue;
+        }
+
+        if (!normalize(line, start, i, host))
+        {
+          continue;
+        }
+        if (count == hashes.length)
+        {
+          hashes = Arrays.copyOf(hashes, count * 2);
+        }
+        hashes[count++] = hash(host);
+      }
+    }
+
+    Arrays.sort(hashes, 0, count);
+    return write(file, hashes, dedupe(hashes, count));
+  }
+
+  /**
+   * Merges several compiled blocklists into <code>file</code>, so that they
+   * can be looked up at once.
+   *
+   * @return the number of distinct host names
+   */
+  static int merge(final File[] parts, final File file) throws IOException
+  {
+    final LongBuffer[] buffers = new LongBuffer[parts.length];
+    int total = 0;
+    for (int i = 0; i < parts.length; i++)
+    {
+      final HostsBlocklist part = read(parts[i]);
+      buffers[i] = part != null ? part.hashes : LongBuffer.allocate(0);
+      total += buffers[i].limit();
+    }
+
+    final long[] hashes = new long[total];
+    int count = 0;
+    for (final LongBuffer buffer : buffers)
+    {
+      buffer.get(hashes, count, buffer.limit());
+      count += buffer.limit();
+    }
+    Arrays.sort(hashes);
+    return write(file, hashes, dedupe(hashes, count));
+  }
+
+  private static int dedupe(final long[] hashes, final int count)
+  {
+    int unique = 0;
+    for (int i = 0; i < count; i++)
+    {
+      if (unique == 0 || hashes[unique - 1] != hashes[i])
+      {
+        hashes[unique++] = hashes[i];
+      }
+    }
+    return unique;
+  }
+
+  /**
+   * Writes to a temporary file first and replaces <code>file</code> with it,
+   * like {@link FilterIndexSnapshot#write(File, FilterIndexes)}.
+   */
+  private static int write(final File file, final long[] hashes, final int count) throws IOException
+  {
+    final File tempFile = new File(file.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(count);
+      for (int i = 0; i < count; i++)
+      {
+        out.writeLong(hashes[i]);
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+
+    if (!tempFile.renameTo(file))
+    {
+      tempFile.delete();
+      throw new IOException("Failed to replace " + file);
+    }
+    return count;
+  }
+
+  /**
+   * Maps a compiled blocklist, returns <code>null</code> if there is none or
+   * it was written by a different version.
+   *
+   * @throws IOException if the file is corrupt
+   */
+  static HostsBlocklist read(final File file) throws IOException
+  {
+    if (!file.exists())
+    {
+      return null;
+    }
+
+    final FileInputStream in = new FileInputStream(file);
+    try
+    {
+      final FileChannel channel = in.getChannel();
+      final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC)
+      {
+        throw new IOException("Not a hosts blocklist");
+      }
+      if (buffer.getInt() != VERSION)
+      {
+        return null;
+      }
+
+      final int count = buffer.getInt();
+      if (count < 0 || count != buffer.remaining() / 8 || buffer.remaining() % 8 != 0)
+      {
+        throw new IOException("Truncated hosts blocklist");
+      }
+      return new HostsBlocklist(buffer.slice().asLongBuffer());
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Checks for an IPv4 (digits and dots only) or IPv6 (has a colon, which
+   * host names never have) address.
+   */
+  private static boolean isAddress(final String line, final int start, final int end)
+  {
+    boolean digitsAndDots = true;
+    for (int i = start; i < end; i++)
+    {
+      final char c = line.charAt(i);
+      if (c == ':')
+      {
+        return true;
+      }
+      if (c != '.' && (c < '0' || c > '9'))
+      {
+        digitsAndDots = false;
+      }
+    }
+    return digitsAndDots;
+  }
+
+  /**
+   * Puts the lower case host name without trailing dot into
+   * <code>host</code>, returns <code>false</code> for names that shouldn't
+   * be blocked.
+   */
+  private static boolean normalize(final String line, final int start, int end, final StringBuilder host)
+  {
+    while (end > start && line.charAt(end - 1) == '.')
+    {
+      end--;
+    }
+    host.setLength(0);
+    for (int i = start; i < end; i++)
+    {
+      host.append(Character.toLowerCase(line.charAt(i)));
+    }
+    if (host.length() == 0 || host.indexOf("/") >= 0)
+    {
+      return false;
+    }
+
+    final String name = host.toString();
+    for (final String ignored : IGNORED_HOSTS)
+    {
+      if (ignored.equals(name))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental updates of downloaded filter lists.
+ *
+ * Lists opt in with a <code>! Diff-URL:</code> header next to their
+ * <code>! Version:</code> header. Updates are then requested from the diff
+ * URL with the version of the stored list as <code>base</code> parameter,
+ * and the server answers with a diff like this:
+ *
+ * <pre>
+ * [Adblock Plus Diff 1.0]
+ * ! Base: 201601010000
+ * ! Version: 201601020000
+ * -||removed.example.com^
+ * +||added.example.com^
+ * </pre>
+ *
+ * The diff is applied to the stored list and the engine gets the updated
+ * list, as if it was downloaded in full.
+ */
+final class ListDiff
+{
+  private static final String DIFF_HEADER = "[Adblock Plus Diff";
+  private static final String BASE_PREFIX = "! Base:";
+  private static final String VERSION_PREFIX = "! Version:";
+  private static final String DIFF_URL_PREFIX = "! Diff-URL:";
+  /**
+   * Headers are at the top of a list, there is no need to read further.
+   */
+  private static final int MAX_HEADER_LINES = 32;
+
+  private ListDiff()
+  {
+    //
+  }
+
+  /**
+   * The version and diff URL of a stored list.
+   */
+  static final class Header
+  {
+    final String version;
+    final String diffUrl;
+
+    Header(final String version, final String diffUrl)
+    {
+      this.version = version;
+      this.diffUrl = diffUrl;
+    }
+  }
+
+  private static String getValue(final String line, final String prefix)
+  {
+    return line.regionMatches(true, 0, prefix, 0, prefix.length()) ? line.substring(prefix.length()).trim() : null;
+  }
+
+  /**
+   * Reads the headers of a stored list, returns <code>null</code> if it
+   * can't be updated with diffs.
+   */
+  static Header readHeader(final File file) throws IOException
+  {
+    String version = null;
+    String diffUrl = null;
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try
+    {
+      String line;
+      for (int i = 0; i < MAX_HEADER_LINES && (line = reader.readLine()) != null; i++)
+      {
+        final String lineVersion = getValue(line, VERSION_PREFIX);
+        final String lineDiffUrl = getValue(line, DIFF_URL_PREFIX);
+        if (lineVersion != null)
+        {
+          version = lineVersion;
+        }
+        else if (lineDiffUrl != null)
+        {
+          diffUrl = lineDiffUrl;
+        }
+      }
+    }
+    finally
+    {
+      reader.close();
+    }
+    return version != null && diffUrl != null && diffUrl.length() > 0 ? new Header(version, diffUrl) : null;
+  }
+
+  /**
+   * Returns the URL to request the diff from the given header's version
+   * from.
+   */
+  static String getRequestUrl(final Header header) throws IOException
+  {
+    return header.diffUrl + (header.diffUrl.indexOf('?') >= 0 ? '&' : '?') + "base="
+        + URLEncoder.encode(header.version, "UTF-8");
+  }
+
+  /**
+   * Applies a diff to the stored list <code>base</code> and writes the
+   * updated list to <code>out</code>.
+   *
+   * @param stripElemhide
+   *          whether to drop added lines containing a '#', like
+   *          {@link AndroidWebRequest} does for downloads
+   * @throws IOException
+   *           if the diff is malformed or isn't based on the given
+   *           version, the list then has to be downloaded in full
+   */
+  static void apply(final File base, final String baseVersion, final InputStream diff, final boolean stripElemhide,
+      final File out) throws IOException
+  {
+    final BufferedReader diffReader = new BufferedReader(new InputStreamReader(diff, "UTF-8"));
+    String line = diffReader.readLine();
+    if (line == null || !line.startsWith(DIFF_HEADER))
+    {
+      throw new IOException("Not a filter list diff");
+    }
+
+    String diffBase = null;
+    String version = null;
+    final Map<String, Integer> removed = new HashMap<String, Integer>();
+    final List<String> added = new ArrayList<String>();
+    while ((line = diffReader.readLine()) != null)
+    {
+      if (line.startsWith("+"))
+      {
+        if (!stripElemhide || line.indexOf('#') < 0)
+        {
+          added.add(line.substring(1));
+        }
+      }
+      else if (line.startsWith("-"))
+      {
+        final String text = line.substring(1);
+        final Integer count = removed.get(text);
+        removed.put(text, Integer.valueOf(count != null ? count.intValue() + 1 : 1));
+      }
+      else if (getValue(line, BASE_PREFIX) != null)
+      {
+        diffBase = getValue(line, BASE_PREFIX);
+      }
+      else if (getValue(line, VERSION_PREFIX) != null)
+      {
+        version = getValue(line, VERSION_PREFIX);
+      }
+    }
+    if (!baseVersion.equals(diffBase) || version == null)
+    {
+      throw new IOException("Diff is based on version " + diffBase + ", not " + baseVersion);
+    }
+
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(base), "UTF-8"));
+    try
+    {
+      final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"));
+      try
+      {
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null)
+        {
+          if (lineNumber++ < MAX_HEADER_LINES && getValue(line, VERSION_PREFIX) != null)
+          {
+            line = VERSION_PREFIX + " " + version;
+          }
+          else if (!removed.isEmpty())
+          {
+            // Lines can occur several times, each removal removes one
+            final Integer count = removed.get(line);
+            if (count != null)
+            {
+              if (count.intValue() == 1)
+              {
+                removed.remove(line);
+              }
+              else
+              {
+                removed.put(line, Integer.valueOf(count.intValue() - 1));
+              }
+              continue;
+            }
+          }
+          writer.write(line);
+          writer.write('\n');
+        }
+
+        for (final String text : added)
+        {
+          writer.write(text);
+          writer.write('\n');
+        }
+      }
+      finally
+      {
+        writer.close();
+      }
+    }
+    finally
+    {
+      reader.close();
+    }
+  }
+}
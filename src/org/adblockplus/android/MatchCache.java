@@ -0,0 +1,221 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.adblockplus.libadblockplus.FilterEngine.ContentType;
+
+/**
+ * Bounded cache of blocking verdicts, keyed by request URL, content type and
+ * referrer chain.
+ *
+ * Verdicts are tagged with the generation they were computed in, bumping the
+ * generation (on every filter change) drops all entries and makes sure that
+ * verdicts computed against the old filters are not stored afterwards.
+ *
+ * Entries are spread over independently locked stripes, each evicting its
+ * least recently used entries once it holds more than its share.
+ */
+public final class MatchCache
+{
+  private static final int STRIPE_BITS = 4;
+  private static final int STRIPE_COUNT = 1 << STRIPE_BITS;
+  private static final int MAX_SIZE = 2048;
+
+  private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private volatile int generation = 0;
+
+  public MatchCache()
+  {
+    for (int i = 0; i < this.stripes.length; i++)
+    {
+      this.stripes[i] = new Stripe(MAX_SIZE / STRIPE_COUNT);
+    }
+  }
+
+  public int getGeneration()
+  {
+    return this.generation;
+  }
+
+  /**
+   * Returns the cached verdict for the given key or {@code null} if there is
+   * none.
+   */
+  public Boolean get(final Key key)
+  {
+    final Stripe stripe = this.getStripe(key);
+    final Boolean verdict;
+    synchronized (stripe)
+    {
+      verdict = stripe.get(key);
+    }
+
+    if (verdict != null)
+    {
+      this.hits.incrementAndGet();
+    }
+    else
+    {
+      this.misses.incrementAndGet();
+    }
+
+    return verdict;
+  }
+
+  /**
+   * Stores a verdict, unless the cache got invalidated since
+   * {@code generation} was obtained via {@link #getGeneration()}.
+   */
+  public void put(final Key key, final boolean verdict, final int generation)
+  {
+    // Checked under the stripe lock, invalidate() clears every stripe after
+    // bumping the generation
+    final Stripe stripe = this.getStripe(key);
+    synchronized (stripe)
+    {
+      if (generation == this.generation)
+      {
+        stripe.put(key, Boolean.valueOf(verdict));
+      }
+    }
+  }
+
+  public synchronized void invalidate()
+  {
+    this.generation++;
+    for (final Stripe stripe : this.stripes)
+    {
+      synchronized (stripe)
+      {
+        stripe.clear();
+      }
+    }
+  }
+
+  public int size()
+  {
+    int size = 0;
+    for (final Stripe stripe : this.stripes)
+    {
+      synchronized (stripe)
+      {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  private Stripe getStripe(final Key key)
+  {
+    // The top bits of a scrambled hash, the stripes' buckets use the low bits
+    return this.stripes[(key.hashCode() * 0x9e3779b9) >>> (32 - STRIPE_BITS)];
+  }
+
+  public long getHitCount()
+  {
+    return this.hits.get();
+  }
+
+  public long getMissCount()
+  {
+    return this.misses.get();
+  }
+
+  /**
+   * Access ordered, only accessed while holding its lock.
+   */
+  private static final class Stripe extends LinkedHashMap<Key, Boolean>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int maxSize;
+
+    Stripe(final int maxSize)
+    {
+      super(maxSize + 1, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Key, Boolean> eldest)
+    {
+      return size() > this.maxSize;
+    }
+  }
+
+  public static final class Key
+  {
+    private final String url;
+    private final ContentType contentType;
+    private final String[] referrerChain;
+    private final int hashCode;
+
+    public Key(final String url, final ContentType contentType, final String[] referrerChain)
+    {
+      this.url = url;
+      this.contentType = contentType;
+      // Copied, referrer chains are built in reused per thread arrays
+      this.referrerChain = referrerChain.clone();
+      final long fingerprint = fingerprint(referrerChain);
+      this.hashCode = (url.hashCode() * 31 + contentType.ordinal()) * 31
+          + (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+
+    /**
+     * Only spreads the hash code, different chains can share a fingerprint.
+     */
+    private static long fingerprint(final String[] referrerChain)
+    {
+      long fingerprint = referrerChain.length;
+      for (final String referrer : referrerChain)
+      {
+        fingerprint = fingerprint * 1000003L + referrer.hashCode();
+      }
+      return fingerprint;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return this.hashCode;
+    }
+
+    @Override
+    public boolean equals(final Object o)
+    {
+      if (!(o instanceof Key))
+      {
+        return false;
+      }
+
+      final Key other = (Key) o;
+      return this.hashCode == other.hashCode
+          && this.contentType == other.contentType
+          && this.url.equals(other.url)
+          && Arrays.equals(this.referrerChain, other.referrerChain);
+    }
+  }
+}
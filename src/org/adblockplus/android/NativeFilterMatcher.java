@@ -0,0 +1,134 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.util.List;
+
+import org.adblockplus.libadblockplus.FilterEngine;
+import org.adblockplus.libadblockplus.FilterEngine.ContentType;
+
+/**
+ * Matches requests against the native filter engines of a
+ * {@link FilterEnginePool}.
+ */
+final class NativeFilterMatcher
+{
+  private final FilterEnginePool pool;
+
+  NativeFilterMatcher(final FilterEnginePool pool)
+  {
+    this.pool = pool;
+  }
+
+  boolean matches(final String url, final ContentType contentType, final String[] referrerChain)
+  {
+    // Passed as UTF-8 in a direct buffer, saves converting every URL in JNI
+    final UrlBuffer urls = UrlBuffer.get().fill(url, referrerChain);
+    final byte match;
+    final FilterEnginePool.Instance instance = this.pool.acquire();
+    try
+    {
+      match = instance.getFilterEngine().getMatchVerdict(urls.getBuffer(), urls.getEnds(), urls.getCount(),
+          contentType);
+    }
+    finally
+    {
+      this.pool.release(instance);
+    }
+
+    return isBlockingVerdict(match, referrerChain);
+  }
+
+  /**
+   * Batch version of {@link #matches}, for requests sharing the same referrer
+   * chain, in a single native call.
+   */
+  boolean[] matchesAll(final String[] urls, final ContentType[] contentTypes, final String[] referrerChain)
+  {
+    final byte[] matches;
+    final FilterEnginePool.Instance instance = this.pool.acquire();
+    try
+    {
+      matches = instance.getFilterEngine().matchesAll(urls, contentTypes, referrerChain);
+    }
+    finally
+    {
+      this.pool.release(instance);
+    }
+
+    final boolean[] verdicts = new boolean[matches.length];
+    for (int i = 0; i < matches.length; i++)
+    {
+      verdicts[i] = isBlockingVerdict(matches[i], referrerChain);
+    }
+    return verdicts;
+  }
+
+  static boolean isBlockingVerdict(final byte match, final String[] referrerChain)
+  {
+    // hack: if there is no referrer, block only if filter is domain-specific
+    // (to re-enable in-app ads blocking, proposed on 12.11.2012 Monday meeting)
+    // (documentUrls contains the referrers on Android)
+    if (referrerChain.length == 0 && (match & FilterEngine.MATCH_FLAG_DOMAIN_ANCHORED) != 0)
+    {
+      return false;
+    }
+
+    final int type = match & FilterEngine.MATCH_TYPE_MASK;
+    return type != FilterEngine.MATCH_NONE && type != FilterEngine.MATCH_EXCEPTION;
+  }
+
+  boolean isDocumentWhitelisted(final String url, final String[] referrerChain)
+  {
+    final FilterEnginePool.Instance instance = this.pool.acquire();
+    try
+    {
+      return instance.getFilterEngine().isDocumentWhitelisted(url, referrerChain);
+    }
+    finally
+    {
+      this.pool.release(instance);
+    }
+  }
+
+  boolean isElemhideWhitelisted(final String url, final String[] referrerChain)
+  {
+    final FilterEnginePool.Instance instance = this.pool.acquire();
+    try
+    {
+      return instance.getFilterEngine().isElemhideWhitelisted(url, referrerChain);
+    }
+    finally
+    {
+      this.pool.release(instance);
+    }
+  }
+
+  List<String> getElementHidingSelectors(final String domain)
+  {
+    final FilterEnginePool.Instance instance = this.pool.acquire();
+    try
+    {
+      return instance.getFilterEngine().getElementHidingSelectors(domain);
+    }
+    finally
+    {
+      this.pool.release(instance);
+    }
+  }
+}
@@ -68,6 +68,11 @@ public class Preferences extends SummarizedPreferences
 
   private RefreshableListPreference subscriptionList;
   private String subscriptionSummary;
+  /**
+   * Whether the parts of the UI that need the engine were set up since the
+   * last {@link #onResume()}.
+   */
+  private boolean engineUiReady = false;
 
   private ServiceBinder serviceBinder = null;
 
@@ -120,9 +125,56 @@ public class Preferences extends SummarizedPreferences
     super.onStart();
     final AdblockPlus application = AdblockPlus.getApplication();
     application.startEngine();
+    subscriptionList = (RefreshableListPreference) findPreference(getString(R.string.pref_subscription));
+  }
+
+  @Override
+  public void onResume()
+  {
+    super.onResume();
+    final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+
+    final AdblockPlus application = AdblockPlus.getApplication();
+
+    // Time to start listening for events
+    registerReceiver(receiver, new IntentFilter(AdblockPlus.BROADCAST_SUBSCRIPTION_STATUS));
+    registerReceiver(receiver, new IntentFilter(AdblockPlus.BROADCAST_ENGINE_READY));
+    registerReceiver(receiver, new IntentFilter(ProxyService.BROADCAST_STATE_CHANGED));
+    registerReceiver(receiver, new IntentFilter(ProxyService.BROADCAST_PROXY_FAILED));
+
+    final boolean enabled = prefs.getBoolean(getString(R.string.pref_enabled), false);
+    final boolean proxyenabled = prefs.getBoolean(getString(R.string.pref_proxyenabled), true);
+    final boolean autoconfigured = prefs.getBoolean(getString(R.string.pref_proxyautoconfigured), false);
+
+    // This is weird but UI does not update on back button (when returning from advanced preferences)
+    ((SwitchPreference) findPreference(getString(R.string.pref_enabled))).setChecked(enabled);
+
+    if (enabled)
+      setFilteringEnabled(true);
+    if (enabled || (proxyenabled && !autoconfigured))
+      setProxyEnabled(true);
+
+    this.serviceBinder.bind();
+
+    // The engine starts in the background, the subscription list waits for it
+    engineUiReady = false;
+    subscriptionList.setEnabled(false);
+    if (application.isEngineReady())
+      onEngineReady();
+  }
+
+  /**
+   * Sets up the parts of the UI that need the engine, once it is ready.
+   */
+  private void onEngineReady()
+  {
+    if (engineUiReady)
+      return;
+    engineUiReady = true;
+
+    final AdblockPlus application = AdblockPlus.getApplication();
 
     // Initialize subscription list
-    subscriptionList = (RefreshableListPreference) findPreference(getString(R.string.pref_subscription));
     final Subscription[] subscriptions = application.getRecommendedSubscriptions();
     final String[] entries = new String[subscriptions.length];
     final String[] entryValues = new String[subscriptions.length];
@@ -139,22 +191,13 @@ public class Preferences extends SummarizedPreferences
     // Set Acceptable Ads FAQ link
     final HelpfulCheckBoxPreference acceptableAdsCheckBox =
         (HelpfulCheckBoxPreference) findPreference(getString(R.string.pref_acceptableads));
-    acceptableAdsCheckBox.setHelpUrl(AdblockPlus.getApplication().getAcceptableAdsUrl());
-  }
-
-  @Override
-  public void onResume()
-  {
-    super.onResume();
-    final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-
-    final AdblockPlus application = AdblockPlus.getApplication();
+    acceptableAdsCheckBox.setHelpUrl(application.getAcceptableAdsUrl());
 
     Subscription current = null;
-    final Subscription[] subscriptions = application.getListedSubscriptions();
-    if (subscriptions.length > 0)
+    final Subscription[] listedSubscriptions = application.getListedSubscriptions();
+    if (listedSubscriptions.length > 0)
     {
-      current = subscriptions[0];
+      current = listedSubscriptions[0];
     }
 
     final boolean firstRun = firstRunActionsPending && application.isFirstRun();
@@ -192,30 +235,19 @@ public class Preferences extends SummarizedPreferences
     else
       setPrefSummary(subscriptionList);
 
-    // Time to start listening for events
-    registerReceiver(receiver, new IntentFilter(AdblockPlus.BROADCAST_SUBSCRIPTION_STATUS));
-    registerReceiver(receiver, new IntentFilter(ProxyService.BROADCAST_STATE_CHANGED));
-    registerReceiver(receiver, new IntentFilter(ProxyService.BROADCAST_PROXY_FAILED));
-
     // Update service and UI state according to user settings
     if (current != null)
     {
       subscriptionList.setValue(current.url);
       application.updateSubscriptionStatus(current.url);
     }
-    final boolean enabled = prefs.getBoolean(getString(R.string.pref_enabled), false);
-    final boolean proxyenabled = prefs.getBoolean(getString(R.string.pref_proxyenabled), true);
-    final boolean autoconfigured = prefs.getBoolean(getString(R.string.pref_proxyautoconfigured), false);
-
-    // This is weird but UI does not update on back button (when returning from advanced preferences)
-    ((SwitchPreference) findPreference(getString(R.string.pref_enabled))).setChecked(enabled);
+    subscriptionList.setEnabled(true);
 
-    if (enabled || firstRun)
+    if (firstRun)
+    {
       setFilteringEnabled(true);
-    if (enabled || firstRun || (proxyenabled && !autoconfigured))
       setProxyEnabled(true);
-
-    this.serviceBinder.bind();
+    }
   }
 
   private void showNotificationDialog(final String title, String message, String url)
@@ -506,6 +538,10 @@ public class Preferences extends SummarizedPreferences
         new AlertDialog.Builder(Preferences.this).setTitle(R.string.error).setMessage(msg).setIcon(android.R.drawable.ic_dialog_alert).setPositiveButton(R.string.ok, null).create().show();
         setFilteringEnabled(false);
       }
+      if (action.equals(AdblockPlus.BROADCAST_ENGINE_READY))
+      {
+        onEngineReady();
+      }
       if (action.equals(AdblockPlus.BROADCAST_SUBSCRIPTION_STATUS))
       {
         // TODO Should check if url matches active subscription
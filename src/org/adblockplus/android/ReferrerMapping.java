@@ -17,48 +17,230 @@
 
 package org.adblockplus.android;
 
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
 
+/**
+ * Thread safe mapping of request URLs to their referrers, used to build the
+ * referrer chain of requests.
+ *
+ * URLs are keyed by a 64 bit hash and stored once, no matter how many
+ * requests they are the referrer of: an entry only links to the hash of its
+ * referrer, which has an entry of its own. Entries are spread over
+ * independently locked stripes, each evicting its oldest entries once it
+ * holds more than its share of the memory budget.
+ */
 public class ReferrerMapping
 {
-  private static class MappingCache extends LinkedHashMap<String, String>
+  private static final int STRIPE_COUNT = 16;
+  private static final long MAX_BYTES = 2 * 1024 * 1024;
+  // Rough size of an entry without the URL characters: Node, map entry, Long
+  private static final int ENTRY_OVERHEAD_BYTES = 96;
+  private static final long NO_PARENT = 0;
+
+  // We need to limit the chain length to ensure we don't block indefinitely
+  // if there's a referrer loop.
+  private static final int MAX_CHAIN_LENGTH = 10;
+
+  private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+  private final ThreadLocal<String[][]> chainArrays = new ThreadLocal<String[][]>()
   {
-    private static final long serialVersionUID = 1L;
-    private static final int MAX_SIZE = 5000;
+    @Override
+    protected String[][] initialValue()
+    {
+      // One array for every chain length, plus one to collect the chain in
+      final String[][] arrays = new String[MAX_CHAIN_LENGTH + 2][];
+      for (int i = 0; i <= MAX_CHAIN_LENGTH; i++)
+      {
+        arrays[i] = new String[i];
+      }
+      arrays[MAX_CHAIN_LENGTH + 1] = new String[MAX_CHAIN_LENGTH];
+      return arrays;
+    }
+  };
 
-    public MappingCache()
+  public ReferrerMapping()
+  {
+    for (int i = 0; i < this.stripes.length; i++)
     {
-      super(MAX_SIZE + 1, 0.75f, true);
+      this.stripes[i] = new Stripe(MAX_BYTES / STRIPE_COUNT);
     }
+  }
 
-    @Override
-    protected boolean removeEldestEntry(final Map.Entry<String, String> eldest)
+  public void add(final String url, final String referrer)
+  {
+    final long referrerHash = hash(referrer);
+    // Make sure the referrer itself is known (and recently used), so the chain
+    // can be followed through it
+    this.getStripe(referrerHash).touch(referrerHash, referrer);
+
+    final long hash = hash(url);
+    this.getStripe(hash).put(hash, url, referrerHash);
+  }
+
+  /**
+   * Returns the referrer chain of a request with the given referrer, starting
+   * with the top most document and ending with <code>url</code> itself.
+   *
+   * The returned array is reused by the next call on the same thread and must
+   * not be kept.
+   */
+  public String[] buildReferrerChain(final String url)
+  {
+    final String[][] arrays = this.chainArrays.get();
+    final String[] chain = arrays[MAX_CHAIN_LENGTH + 1];
+    int length = 0;
+    if (url != null)
     {
-      return size() > MAX_SIZE;
+      chain[length++] = url;
+      long parentHash = this.getParentHash(url);
+      while (length < MAX_CHAIN_LENGTH && parentHash != NO_PARENT)
+      {
+        final Node parent = this.getStripe(parentHash).get(parentHash);
+        if (parent == null)
+        {
+          break;
+        }
+        chain[length++] = parent.url;
+        parentHash = parent.parentHash;
+      }
     }
-  };
 
-  private final MappingCache mappingCache = new MappingCache();
+    // Reversed into the array of the right length
+    final String[] result = arrays[length];
+    for (int i = 0; i < length; i++)
+    {
+      result[i] = chain[length - 1 - i];
+      chain[length - 1 - i] = null;
+    }
+    return result;
+  }
+
+  private long getParentHash(final String url)
+  {
+    final long hash = hash(url);
+    final Node node = this.getStripe(hash).get(hash);
+    return node != null && node.url.equals(url) ? node.parentHash : NO_PARENT;
+  }
+
+  /**
+   * Returns the memory used by the mapping, as estimated for the budget.
+   */
+  public long getByteCount()
+  {
+    long bytes = 0;
+    for (final Stripe stripe : this.stripes)
+    {
+      bytes += stripe.getByteCount();
+    }
+    return bytes;
+  }
+
+  public int size()
+  {
+    int size = 0;
+    for (final Stripe stripe : this.stripes)
+    {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  private Stripe getStripe(final long hash)
+  {
+    return this.stripes[(int) (hash ^ (hash >>> 32)) & (STRIPE_COUNT - 1)];
+  }
 
-  public void add(String url, String referrer)
+  /**
+   * 64 bit FNV-1a hash of the URL characters, never {@link #NO_PARENT}.
+   */
+  private static long hash(final String url)
   {
-    mappingCache.put(url, referrer);
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < url.length(); i++)
+    {
+      hash ^= url.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash != NO_PARENT ? hash : 1;
   }
 
-  public List<String> buildReferrerChain(String url)
+  private static int estimateBytes(final String url)
   {
-    final List<String> referrerChain = new ArrayList<String>();
-    // We need to limit the chain length to ensure we don't block indefinitely
-    // if there's a referrer loop.
-    final int maxChainLength = 10;
-    for (int i = 0; i < maxChainLength && url != null; i++)
+    return ENTRY_OVERHEAD_BYTES + 2 * url.length();
+  }
+
+  private static final class Node
+  {
+    private final String url;
+    private final long parentHash;
+
+    Node(final String url, final long parentHash)
+    {
+      this.url = url;
+      this.parentHash = parentHash;
+    }
+  }
+
+  private static final class Stripe
+  {
+    // Insertion ordered, entries are re-inserted when updated
+    private final LinkedHashMap<Long, Node> nodes = new LinkedHashMap<Long, Node>();
+    private final long maxBytes;
+    private long bytes = 0;
+
+    Stripe(final long maxBytes)
+    {
+      this.maxBytes = maxBytes;
+    }
+
+    synchronized Node get(final long hash)
+    {
+      return this.nodes.get(Long.valueOf(hash));
+    }
+
+    synchronized void put(final long hash, final String url, final long parentHash)
+    {
+      this.replace(hash, new Node(url, parentHash));
+    }
+
+    /**
+     * Adds a URL without a referrer unless it is known already, moves it to
+     * the end of the eviction order otherwise.
+     */
+    synchronized void touch(final long hash, final String url)
+    {
+      final Node node = this.nodes.get(Long.valueOf(hash));
+      this.replace(hash, node != null ? node : new Node(url, NO_PARENT));
+    }
+
+    private void replace(final long hash, final Node node)
+    {
+      final Node previous = this.nodes.remove(Long.valueOf(hash));
+      if (previous != null)
+      {
+        this.bytes -= estimateBytes(previous.url);
+      }
+      this.nodes.put(Long.valueOf(hash), node);
+      this.bytes += estimateBytes(node.url);
+
+      final Iterator<Node> eldest = this.nodes.values().iterator();
+      while (this.bytes > this.maxBytes && this.nodes.size() > 1)
+      {
+        this.bytes -= estimateBytes(eldest.next().url);
+        eldest.remove();
+      }
+    }
+
+    synchronized long getByteCount()
+    {
+      return this.bytes;
+    }
+
+    synchronized int size()
     {
-      referrerChain.add(0, url);
-      url = mappingCache.get(url);
+      return this.nodes.size();
     }
-    return referrerChain;
   }
 }
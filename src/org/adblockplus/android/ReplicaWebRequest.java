@@ -0,0 +1,49 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.util.List;
+
+import org.adblockplus.libadblockplus.HeaderEntry;
+import org.adblockplus.libadblockplus.ServerResponse;
+
+import android.util.Log;
+
+/**
+ * Web request of replica filter engines, serves what the primary engine
+ * downloaded recently and only goes to the network otherwise.
+ */
+final class ReplicaWebRequest extends AndroidWebRequest
+{
+  ReplicaWebRequest(final boolean enableElemhide, final DownloadCache downloadCache)
+  {
+    super(enableElemhide, downloadCache);
+  }
+
+  @Override
+  public ServerResponse httpGET(final String urlStr, final List<HeaderEntry> headers)
+  {
+    final ServerResponse cached = this.getDownloadCache().get(urlStr);
+    if (cached != null)
+    {
+      Log.d(TAG, "Using the primary engine's download of: " + urlStr);
+      return cached;
+    }
+    return super.httpGET(urlStr, headers);
+  }
+}
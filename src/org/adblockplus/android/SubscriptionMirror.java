@@ -0,0 +1,168 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.adblockplus.libadblockplus.DisposeScope;
+import org.adblockplus.libadblockplus.FilterEngine;
+import org.adblockplus.libadblockplus.JsValue;
+import org.adblockplus.libadblockplus.Subscription;
+
+/**
+ * Java side copy of the listed subscriptions, kept up to date from filter
+ * change events, so that the UI can read them as often as it likes without
+ * calling into the JavaScript engine.
+ *
+ * Readers get an immutable snapshot without locking, every change replaces
+ * the snapshot.
+ */
+final class SubscriptionMirror
+{
+  /**
+   * Immutable state of a listed subscription.
+   */
+  static final class Entry
+  {
+    final String url;
+    final String title;
+    final String downloadStatus;
+    final long lastDownload;
+    final int filterCount;
+    final boolean updating;
+
+    Entry(final Subscription subscription)
+    {
+      final DisposeScope scope = new DisposeScope();
+      try
+      {
+        this.url = scope.add(subscription.getProperty("url")).toString();
+        this.title = scope.add(subscription.getProperty("title")).toString();
+        final JsValue downloadStatus = scope.add(subscription.getProperty("downloadStatus"));
+        this.downloadStatus = downloadStatus.isNull() || downloadStatus.isUndefined() ? "" : downloadStatus.toString();
+        this.lastDownload = scope.add(subscription.getProperty("lastDownload")).asLong();
+        final JsValue filters = scope.add(subscription.getProperty("filters"));
+        this.filterCount = filters.isArray() ? (int) scope.add(filters.getProperty("length")).asLong() : 0;
+        this.updating = subscription.isUpdating();
+      }
+      finally
+      {
+        scope.dispose();
+      }
+    }
+
+    org.adblockplus.android.Subscription toSubscription()
+    {
+      final org.adblockplus.android.Subscription subscription = new org.adblockplus.android.Subscription();
+      subscription.title = this.title;
+      subscription.url = this.url;
+      return subscription;
+    }
+  }
+
+  private volatile Map<String, Entry> entries = Collections.emptyMap();
+
+  Collection<Entry> getEntries()
+  {
+    return this.entries.values();
+  }
+
+  /**
+   * Returns the listed subscription with the given URL, <code>null</code> if
+   * it isn't listed.
+   */
+  Entry get(final String url)
+  {
+    return this.entries.get(url);
+  }
+
+  /**
+   * Replaces the copy with the subscriptions currently listed.
+   */
+  synchronized void reload(final FilterEngine filterEngine)
+  {
+    final List<Subscription> subscriptions = filterEngine.getListedSubscriptions();
+    final DisposeScope scope = new DisposeScope();
+    scope.addAll(subscriptions);
+    try
+    {
+      final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+      for (final Subscription subscription : subscriptions)
+      {
+        final Entry entry = new Entry(subscription);
+        entries.put(entry.url, entry);
+      }
+      this.entries = Collections.unmodifiableMap(entries);
+    }
+    finally
+    {
+      scope.dispose();
+    }
+  }
+
+  /**
+   * Applies a <code>subscription.*</code> filter change event.
+   *
+   * @return the updated state of the subscription, <code>null</code> if it
+   *         isn't listed (anymore)
+   */
+  synchronized Entry onSubscriptionChange(final String action, final JsValue jsValue)
+  {
+    final DisposeScope scope = new DisposeScope();
+    try
+    {
+      final Subscription subscription = scope.add(new Subscription(jsValue));
+      final String url = scope.add(subscription.getProperty("url")).toString();
+      if (action.equals("subscription.removed"))
+      {
+        this.replace(url, null);
+        return null;
+      }
+      if (!action.equals("subscription.added") && !this.entries.containsKey(url))
+      {
+        return null;
+      }
+
+      final Entry entry = new Entry(subscription);
+      this.replace(url, entry);
+      return entry;
+    }
+    finally
+    {
+      scope.dispose();
+    }
+  }
+
+  private void replace(final String url, final Entry entry)
+  {
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(this.entries);
+    if (entry != null)
+    {
+      entries.put(url, entry);
+    }
+    else if (entries.remove(url) == null)
+    {
+      return;
+    }
+    this.entries = Collections.unmodifiableMap(entries);
+  }
+}
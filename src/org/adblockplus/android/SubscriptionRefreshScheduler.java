@@ -0,0 +1,692 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.adblockplus.libadblockplus.FilterEngine;
+import org.adblockplus.libadblockplus.JsEngine;
+import org.adblockplus.libadblockplus.JsValue;
+import org.adblockplus.libadblockplus.Subscription;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Refreshes the listed subscriptions a few at a time, instead of asking the
+ * filter engine to update all of them at once. It replaces the engine's own
+ * synchronizer, which has to be turned off with
+ * {@link #disableAutomaticUpdates(JsEngine, FilterEngine)}.
+ *
+ * A refresh holds one of the slots until the engine reports the download as
+ * done, so the slot count bounds the number of concurrent refreshes
+ * (connections per host are limited by {@link AndroidWebRequest} in
+ * addition), refreshes beyond it are queued. Nothing ever blocks a worker
+ * thread while waiting. Automatic refreshes are spread out with some
+ * jitter. They wait while the user wants refreshes over Wi-Fi only and
+ * there is none, or while the proxy is busy. Failed refreshes are retried
+ * with exponential backoff.
+ */
+public final class SubscriptionRefreshScheduler implements AndroidWebRequest.DownloadObserver
+{
+  private static final String TAG = Utils.getTag(SubscriptionRefreshScheduler.class);
+
+  /**
+   * Values of the refresh preference.
+   */
+  private static final int REFRESH_ON_START = 1;
+  private static final int REFRESH_PERIODICALLY = 2;
+
+  private static final long STARTUP_DELAY_MILLIS = 30 * 1000;
+  private static final long REFRESH_INTERVAL_MILLIS = 24 * 60 * 60 * 1000;
+  private static final long MAX_JITTER_MILLIS = 2 * 60 * 1000;
+  private static final long DEFER_DELAY_MILLIS = 15 * 60 * 1000;
+  private static final long MIN_BACKOFF_MILLIS = 60 * 1000;
+  private static final long MAX_BACKOFF_MILLIS = 6 * 60 * 60 * 1000;
+  private static final long DOWNLOAD_TIMEOUT_MILLIS = 3 * 60 * 1000;
+  /**
+   * Proxied requests per second above which automatic refreshes wait,
+   * measured over at least {@link #BUSY_SAMPLE_MILLIS}, measurements are
+   * reused for {@link #MAX_LOAD_AGE_MILLIS}.
+   */
+  private static final int BUSY_REQUESTS_PER_SECOND = 10;
+  private static final long BUSY_SAMPLE_MILLIS = 2000;
+  private static final long MAX_LOAD_AGE_MILLIS = 30 * 1000;
+  private static final String STATUS_OK = "synchronize_ok";
+
+  private final Context context;
+  private final FilterEngine filterEngine;
+  private final SubscriptionMirror subscriptions;
+  private final ScheduledThreadPoolExecutor executor;
+  private final ConcurrentHashMap<String, State> states = new ConcurrentHashMap<String, State>();
+  private final Random random = new Random();
+  private final int slotCount;
+  /**
+   * Refreshes waiting for a slot, guarded by itself along with
+   * {@link #usedSlots}.
+   */
+  private final LinkedList<String> waiting = new LinkedList<String>();
+  private int usedSlots = 0;
+  private final LoadSample loadSample = new LoadSample();
+  private boolean started = false;
+
+  SubscriptionRefreshScheduler(final Context context, final FilterEngine filterEngine,
+      final SubscriptionMirror subscriptions, final int maxRefreshes)
+  {
+    this.context = context;
+    this.filterEngine = filterEngine;
+    this.subscriptions = subscriptions;
+    this.slotCount = Math.max(1, maxRefreshes);
+    // Nothing waits on the worker, so one is enough
+    this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+    {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(final Runnable r)
+      {
+        final Thread thread = new Thread(r, SubscriptionRefreshScheduler.class.getSimpleName() + "-"
+            + this.count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Turns off the filter engine's own periodic subscription updates, so
+   * that only the scheduler refreshes subscriptions. Explicit updates (see
+   * {@link Subscription#updateFilters()}) still work.
+   */
+  static void disableAutomaticUpdates(final JsEngine jsEngine, final FilterEngine filterEngine)
+  {
+    final JsValue value = jsEngine.newValue(false);
+    try
+    {
+      filterEngine.setPref("subscriptions_autoupdate", value);
+    }
+    finally
+    {
+      value.dispose();
+    }
+  }
+
+  private static String getKey(final String url)
+  {
+    final int idx = url.indexOf('?');
+    return idx != -1 ? url.substring(0, idx) : url;
+  }
+
+  private State getState(final String url)
+  {
+    final String key = getKey(url);
+    State state = this.states.get(key);
+    if (state == null)
+    {
+      final State newState = new State(key);
+      state = this.states.putIfAbsent(key, newState);
+      if (state == null)
+      {
+        state = newState;
+      }
+    }
+    return state;
+  }
+
+  private long randomDelay(final long maxMillis)
+  {
+    synchronized (this.random)
+    {
+      return (long) (this.random.nextDouble() * maxMillis);
+    }
+  }
+
+  /**
+   * Adds up to half of <code>millis</code>, but no more than
+   * {@link #MAX_JITTER_MILLIS}, so that refreshes don't all happen at once.
+   */
+  private long jitter(final long millis)
+  {
+    return millis + this.randomDelay(Math.min(millis / 2, MAX_JITTER_MILLIS));
+  }
+
+  /**
+   * Starts the automatic refreshes, as configured by the user.
+   */
+  synchronized void start()
+  {
+    if (this.started)
+    {
+      return;
+    }
+    this.started = true;
+    this.scheduleTick(this.jitter(STARTUP_DELAY_MILLIS), true);
+  }
+
+  private void scheduleTick(final long delay, final boolean first)
+  {
+    this.executor.schedule(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        // The preference is read every time, so that changes take effect
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        final int mode = Integer.valueOf(prefs.getString(context.getString(R.string.pref_refresh),
+            String.valueOf(context.getResources().getInteger(R.integer.def_refresh))));
+        if (mode == REFRESH_PERIODICALLY || (first && mode == REFRESH_ON_START))
+        {
+          refreshAll(false);
+        }
+        scheduleTick(jitter(REFRESH_INTERVAL_MILLIS), false);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  void shutdown()
+  {
+    this.executor.shutdownNow();
+  }
+
+  /**
+   * Refreshes all listed subscriptions.
+   *
+   * @param forced
+   *          whether the user asked for it, these refreshes start right away
+   *          and never wait for Wi-Fi or an idle proxy
+   */
+  void refreshAll(final boolean forced)
+  {
+    for (final SubscriptionMirror.Entry entry : this.subscriptions.getEntries())
+    {
+      this.schedule(entry.url, forced ? 0 : this.randomDelay(MAX_JITTER_MILLIS), forced);
+    }
+  }
+
+  private void schedule(final String url, final long delay, final boolean forced)
+  {
+    final State state = this.getState(url);
+    synchronized (state)
+    {
+      if (state.running || (state.future != null && !state.future.isDone() && !forced))
+      {
+        return;
+      }
+      if (state.future != null)
+      {
+        state.future.cancel(false);
+      }
+      state.nextRefresh = System.currentTimeMillis() + delay;
+      state.future = this.executor.schedule(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          refresh(url, forced);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void refresh(final String url, final boolean forced)
+  {
+    final State state = this.getState(url);
+    if (!forced)
+    {
+      final long delay = this.getDeferDelay();
+      if (delay > 0)
+      {
+        synchronized (state)
+        {
+          state.future = null;
+        }
+        Log.d(TAG, "Deferring refresh of " + url + " by " + delay + " ms");
+        this.schedule(url, delay, false);
+        return;
+      }
+    }
+
+    synchronized (state)
+    {
+      state.future = null;
+      state.running = true;
+    }
+    synchronized (this.waiting)
+    {
+      if (this.usedSlots >= this.slotCount)
+      {
+        this.waiting.add(url);
+        return;
+      }
+      this.usedSlots++;
+    }
+    this.startRefresh(url);
+  }
+
+  /**
+   * Asks the engine to update the subscription, in one of the slots. The
+   * refresh is completed by {@link #onSubscriptionChange} or, if the engine
+   * never reports back, after {@link #DOWNLOAD_TIMEOUT_MILLIS}.
+   */
+  private void startRefresh(final String url)
+  {
+    final State state = this.getState(url);
+    synchronized (state)
+    {
+      state.refreshing = true;
+      state.downloadStatus = null;
+      state.lastRefresh = System.currentTimeMillis();
+      state.nextRefresh = 0;
+      state.timeout = this.executor.schedule(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          Log.w(TAG, "Refresh of " + url + " timed out");
+          finishRefresh(url);
+        }
+      }, DOWNLOAD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    boolean updating = false;
+    try
+    {
+      final Subscription subscription = this.filterEngine.getSubscription(url);
+      if (subscription != null)
+      {
+        try
+        {
+          subscription.updateFilters();
+          updating = true;
+        }
+        finally
+        {
+          subscription.dispose();
+        }
+      }
+    }
+    catch (final RuntimeException e)
+    {
+      Log.e(TAG, "Failed to refresh " + url, e);
+    }
+
+    if (!updating)
+    {
+      this.finishRefresh(url);
+    }
+  }
+
+  /**
+   * Completes a refresh, successful if the engine reported so, frees its slot
+   * and schedules a retry if it failed.
+   */
+  private void finishRefresh(final String url)
+  {
+    final State state = this.getState(url);
+    final int failures;
+    synchronized (state)
+    {
+      if (!state.refreshing)
+      {
+        return;
+      }
+      state.refreshing = false;
+      state.running = false;
+      if (state.timeout != null)
+      {
+        state.timeout.cancel(false);
+        state.timeout = null;
+      }
+      if (STATUS_OK.equals(state.downloadStatus))
+      {
+        state.failures = 0;
+      }
+      else
+      {
+        state.failures++;
+      }
+      failures = state.failures;
+    }
+
+    final String next;
+    synchronized (this.waiting)
+    {
+      next = this.waiting.poll();
+      if (next == null)
+      {
+        this.usedSlots--;
+      }
+    }
+    if (next != null)
+    {
+      // The slot is handed over, not started here as this might be the
+      // engine's callback thread
+      this.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          startRefresh(next);
+        }
+      });
+    }
+
+    if (failures > 0 && this.subscriptions.get(url) != null)
+    {
+      final long backoff = Math.min(MIN_BACKOFF_MILLIS << Math.min(failures - 1, 16), MAX_BACKOFF_MILLIS);
+      Log.d(TAG, "Refresh of " + url + " failed " + failures + " times, retrying in " + backoff + " ms");
+      this.schedule(url, this.jitter(backoff), false);
+    }
+  }
+
+  private void execute(final Runnable runnable)
+  {
+    try
+    {
+      this.executor.execute(runnable);
+    }
+    catch (final RejectedExecutionException e)
+    {
+      // Shut down
+    }
+  }
+
+  /**
+   * Returns how long an automatic refresh has to wait, 0 if it can start
+   * now.
+   */
+  private long getDeferDelay()
+  {
+    final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this.context);
+    final boolean wifiOnly = prefs.getBoolean(this.context.getString(R.string.pref_wifirefresh),
+        this.context.getResources().getBoolean(R.bool.def_wifirefresh));
+    if (wifiOnly && !AdblockPlus.isWiFiConnected(this.context))
+    {
+      return this.jitter(DEFER_DELAY_MILLIS);
+    }
+
+    final long load = this.measureLoad();
+    if (load < 0)
+    {
+      // Measuring the load takes a while, check again once it's done
+      return BUSY_SAMPLE_MILLIS;
+    }
+    return load > BUSY_REQUESTS_PER_SECOND ? this.jitter(DEFER_DELAY_MILLIS) : 0;
+  }
+
+  /**
+   * Returns the proxied requests per second, or -1 if a measurement was just
+   * started and the caller has to check again after
+   * {@link #BUSY_SAMPLE_MILLIS}. Measures between calls instead of waiting.
+   */
+  private long measureLoad()
+  {
+    final AdblockPlus application = AdblockPlus.getApplication();
+    if (application == null)
+    {
+      return 0;
+    }
+
+    final long now = System.nanoTime() / 1000000;
+    final long requests = application.getRequestCount();
+    final LoadSample sample = this.loadSample;
+    synchronized (sample)
+    {
+      if (sample.measured && now - sample.measureTime < MAX_LOAD_AGE_MILLIS)
+      {
+        return sample.requestsPerSecond;
+      }
+
+      final long elapsed = now - sample.startTime;
+      if (sample.started && elapsed >= BUSY_SAMPLE_MILLIS && elapsed < MAX_LOAD_AGE_MILLIS)
+      {
+        sample.requestsPerSecond = (requests - sample.startRequests) * 1000 / elapsed;
+        sample.measured = true;
+        sample.measureTime = now;
+        sample.started = false;
+        return sample.requestsPerSecond;
+      }
+
+      if (!sample.started || elapsed >= MAX_LOAD_AGE_MILLIS)
+      {
+        sample.started = true;
+        sample.startTime = now;
+        sample.startRequests = requests;
+      }
+      return -1;
+    }
+  }
+
+  @Override
+  public void onDownload(final String url, final long nanos, final long bytes)
+  {
+    final State state = this.getState(url);
+    synchronized (state)
+    {
+      state.downloads++;
+      state.downloadNanos = nanos;
+      state.bytes = bytes;
+      state.downloadEnd = System.nanoTime();
+    }
+  }
+
+  /**
+   * Called for <code>subscription.*</code> events of listed subscriptions,
+   * completes refreshes and measures how long parsing the download took.
+   */
+  void onSubscriptionChange(final String action, final SubscriptionMirror.Entry entry)
+  {
+    if (!action.equals("subscription.downloadStatus") && !action.equals("subscription.lastDownload"))
+    {
+      return;
+    }
+
+    final State state = this.getState(entry.url);
+    synchronized (state)
+    {
+      if (state.downloadEnd != 0)
+      {
+        state.parseNanos = System.nanoTime() - state.downloadEnd;
+        state.downloadEnd = 0;
+      }
+      if (!action.equals("subscription.downloadStatus") || !state.refreshing)
+      {
+        return;
+      }
+      state.downloadStatus = entry.downloadStatus;
+    }
+
+    // Called on the engine's thread, which mustn't start the next refresh
+    this.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        finishRefresh(entry.url);
+      }
+    });
+  }
+
+  /**
+   * Returns the refresh statistics of all subscriptions downloaded or
+   * scheduled so far.
+   */
+  public List<Stats> getStats()
+  {
+    final List<Stats> stats = new ArrayList<Stats>(this.states.size());
+    for (final State state : this.states.values())
+    {
+      synchronized (state)
+      {
+        stats.add(new Stats(state));
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Refresh statistics of a single subscription.
+   */
+  public static final class Stats
+  {
+    private final String url;
+    private final long downloads;
+    private final long downloadNanos;
+    private final long bytes;
+    private final long parseNanos;
+    private final int failures;
+    private final long lastRefresh;
+    private final long nextRefresh;
+
+    private Stats(final State state)
+    {
+      this.url = state.url;
+      this.downloads = state.downloads;
+      this.downloadNanos = state.downloadNanos;
+      this.bytes = state.bytes;
+      this.parseNanos = state.parseNanos;
+      this.failures = state.failures;
+      this.lastRefresh = state.lastRefresh;
+      this.nextRefresh = state.nextRefresh;
+    }
+
+    /**
+     * Subscription URL, without query.
+     */
+    public String getUrl()
+    {
+      return this.url;
+    }
+
+    public long getDownloadCount()
+    {
+      return this.downloads;
+    }
+
+    /**
+     * Duration of the last download.
+     */
+    public long getDownloadNanos()
+    {
+      return this.downloadNanos;
+    }
+
+    /**
+     * Size of the last download, 0 if the list wasn't modified.
+     */
+    public long getByteCount()
+    {
+      return this.bytes;
+    }
+
+    /**
+     * Time from the end of the last download until the engine was done with
+     * it.
+     */
+    public long getParseNanos()
+    {
+      return this.parseNanos;
+    }
+
+    /**
+     * Number of refreshes that failed since the last successful one.
+     */
+    public int getFailureCount()
+    {
+      return this.failures;
+    }
+
+    /**
+     * Time the last refresh was started by the scheduler, 0 if never.
+     */
+    public long getLastRefresh()
+    {
+      return this.lastRefresh;
+    }
+
+    /**
+     * Time the next refresh is scheduled for, 0 if none is.
+     */
+    public long getNextRefresh()
+    {
+      return this.nextRefresh;
+    }
+
+    @Override
+    public String toString()
+    {
+      return this.url + ": " + this.downloads + " downloads, last " + this.bytes + " bytes in "
+          + this.downloadNanos / 1000000 + " ms, parsed in " + this.parseNanos / 1000000 + " ms, "
+          + this.failures + " failures";
+    }
+  }
+
+  private static final class State
+  {
+    private final String url;
+    private ScheduledFuture<?> future;
+    /**
+     * Whether a refresh is waiting for a slot or in progress.
+     */
+    private boolean running;
+    /**
+     * Whether a refresh is in progress, i.e. holds a slot.
+     */
+    private boolean refreshing;
+    private ScheduledFuture<?> timeout;
+    private String downloadStatus;
+    private int failures;
+    private long downloads;
+    private long downloadNanos;
+    private long bytes;
+    private long downloadEnd;
+    private long parseNanos;
+    private long lastRefresh;
+    private long nextRefresh;
+
+    private State(final String url)
+    {
+      this.url = url;
+    }
+  }
+
+  /**
+   * The current measurement of the proxy load, see {@link #measureLoad()}.
+   */
+  private static final class LoadSample
+  {
+    private boolean started;
+    private long startTime;
+    private long startRequests;
+    private boolean measured;
+    private long measureTime;
+    private long requestsPerSecond;
+  }
+}
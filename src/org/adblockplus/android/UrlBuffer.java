@@ -0,0 +1,154 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable, per thread direct buffer holding a request URL and its referrer
+ * chain as UTF-8, in the layout expected by
+ * {@link org.adblockplus.libadblockplus.FilterEngine#getMatchVerdict(ByteBuffer, int[], int,
+ * org.adblockplus.libadblockplus.FilterEngine.ContentType)}.
+ */
+final class UrlBuffer
+{
+  private static final int INITIAL_CAPACITY = 8 * 1024;
+
+  private static final ThreadLocal<UrlBuffer> BUFFERS = new ThreadLocal<UrlBuffer>()
+  {
+    @Override
+    protected UrlBuffer initialValue()
+    {
+      return new UrlBuffer();
+    }
+  };
+
+  private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+  private int[] ends = new int[16];
+  private int count = 0;
+
+  private UrlBuffer()
+  {
+    //
+  }
+
+  /**
+   * Returns the buffer of the current thread, holding whatever was put into
+   * it last.
+   */
+  static UrlBuffer get()
+  {
+    return BUFFERS.get();
+  }
+
+  /**
+   * Replaces the contents with the given URL, followed by the URLs of the
+   * referrer chain.
+   */
+  UrlBuffer fill(final String url, final String[] referrerChain)
+  {
+    this.count = 0;
+    int position = this.append(url, 0);
+    for (final String referrer : referrerChain)
+    {
+      position = this.append(referrer, position);
+    }
+    return this;
+  }
+
+  private int append(final String url, int position)
+  {
+    final int length = url.length();
+    // Three bytes are enough for every char (surrogate pairs take four bytes
+    // for two chars)
+    this.ensureCapacity(position + length * 3);
+    if (this.count == this.ends.length)
+    {
+      final int[] ends = new int[this.ends.length * 2];
+      System.arraycopy(this.ends, 0, ends, 0, this.count);
+      this.ends = ends;
+    }
+
+    final ByteBuffer buffer = this.buffer;
+    for (int i = 0; i < length; i++)
+    {
+      final char c = url.charAt(i);
+      if (c < 0x80)
+      {
+        buffer.put(position++, (byte) c);
+      }
+      else if (c < 0x800)
+      {
+        buffer.put(position++, (byte) (0xc0 | (c >> 6)));
+        buffer.put(position++, (byte) (0x80 | (c & 0x3f)));
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(url.charAt(i + 1)))
+      {
+        final int codePoint = Character.toCodePoint(c, url.charAt(++i));
+        buffer.put(position++, (byte) (0xf0 | (codePoint >> 18)));
+        buffer.put(position++, (byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+        buffer.put(position++, (byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+        buffer.put(position++, (byte) (0x80 | (codePoint & 0x3f)));
+      }
+      else
+      {
+        buffer.put(position++, (byte) (0xe0 | (c >> 12)));
+        buffer.put(position++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+        buffer.put(position++, (byte) (0x80 | (c & 0x3f)));
+      }
+    }
+    this.ends[this.count++] = position;
+    return position;
+  }
+
+  private void ensureCapacity(final int capacity)
+  {
+    if (capacity <= this.buffer.capacity())
+    {
+      return;
+    }
+
+    int newCapacity = this.buffer.capacity() * 2;
+    while (newCapacity < capacity)
+    {
+      newCapacity *= 2;
+    }
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(newCapacity);
+    final int used = this.count > 0 ? this.ends[this.count - 1] : 0;
+    final ByteBuffer contents = this.buffer.duplicate();
+    contents.position(0);
+    contents.limit(used);
+    buffer.put(contents);
+    this.buffer = buffer;
+  }
+
+  ByteBuffer getBuffer()
+  {
+    return this.buffer;
+  }
+
+  int[] getEnds()
+  {
+    return this.ends;
+  }
+
+  int getCount()
+  {
+    return this.count;
+  }
+}
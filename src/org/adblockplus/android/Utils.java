@@ -21,8 +21,6 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 
 import org.adblockplus.android.updater.UpdaterActivity;
-import org.adblockplus.libadblockplus.JsValue;
-import org.adblockplus.libadblockplus.Subscription;
 import org.apache.commons.lang.StringUtils;
 
 import android.app.Notification;
@@ -94,16 +92,15 @@ public final class Utils
     notificationManager.notify(AdblockPlus.UPDATE_NOTIFICATION_ID, notification);
   }
 
-  protected static void updateSubscriptionStatus(final Context context, final Subscription sub)
+  static void updateSubscriptionStatus(final Context context, final SubscriptionMirror.Entry sub)
   {
-    final JsValue jsDownloadStatus = sub.getProperty("downloadStatus");
-    final String downloadStatus = jsDownloadStatus.isNull() ? "" : jsDownloadStatus.toString();
-    final long lastDownload = sub.getProperty("lastDownload").asLong();
+    final String downloadStatus = sub.downloadStatus;
+    final long lastDownload = sub.lastDownload;
 
     String status = "synchronize_never";
     long time = 0;
 
-    if (sub.isUpdating())
+    if (sub.updating)
     {
       status = "synchronize_in_progress";
     }
@@ -118,7 +115,7 @@ public final class Utils
     }
 
     context.sendBroadcast(new Intent(AdblockPlus.BROADCAST_SUBSCRIPTION_STATUS)
-        .putExtra("url", sub.getProperty("url").toString())
+        .putExtra("url", sub.url)
         .putExtra("status", status)
         .putExtra("time", time * 1000L));
   }
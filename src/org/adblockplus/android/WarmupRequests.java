@@ -0,0 +1,171 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.adblockplus.libadblockplus.FilterEngine.ContentType;
+
+/**
+ * Keeps the most recent request URLs, so that they can be matched again
+ * right after the next engine start, to warm up the filter engine before
+ * real requests come in. Only <code>scheme://host/path</code> is kept, query
+ * strings and fragments are dropped before anything is written to disk.
+ * Requests are replayed without their referrers, straight to the filter
+ * engine: neither the match cache nor the statistics of the indexes see
+ * them.
+ *
+ * Recording is lock free, as it happens for every proxied request: each
+ * request claims a slot of a ring buffer and replaces whatever was there.
+ */
+final class WarmupRequests
+{
+  static final String FILE_NAME = "warmup.txt";
+  private static final int MAX_SIZE = 100;
+  private static final String[] NO_REFERRERS = new String[0];
+
+  private final AtomicReferenceArray<Request> requests = new AtomicReferenceArray<Request>(MAX_SIZE);
+  private final AtomicLong recorded = new AtomicLong();
+
+  /**
+   * Records a request, returns <code>true</code> every {@link #MAX_SIZE}
+   * requests, i.e. whenever it is worth saving them again.
+   */
+  boolean record(final String url, final ContentType contentType)
+  {
+    final long index = this.recorded.getAndIncrement();
+    final int slot = (int) (index % MAX_SIZE);
+    this.requests.set(slot, new Request(stripQuery(url), contentType));
+    return slot == MAX_SIZE - 1;
+  }
+
+  /**
+   * Returns the URL without its query string and fragment.
+   */
+  static String stripQuery(final String url)
+  {
+    int end = url.indexOf('?');
+    final int hash = url.indexOf('#');
+    if (hash >= 0 && (end < 0 || hash < end))
+    {
+      end = hash;
+    }
+    return end < 0 ? url : url.substring(0, end);
+  }
+
+  void save(final File file) throws IOException
+  {
+    // Oldest first, slots being recorded meanwhile are written either way
+    final StringBuilder lines = new StringBuilder();
+    final long recorded = this.recorded.get();
+    for (long i = Math.max(recorded - MAX_SIZE, 0); i < recorded; i++)
+    {
+      final Request request = this.requests.get((int) (i % MAX_SIZE));
+      if (request != null)
+      {
+        lines.append(request.contentType.name()).append(' ').append(request.url).append('\n');
+      }
+    }
+
+    final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    try
+    {
+      writer.write(lines.toString());
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  /**
+   * Matches the requests saved in the given file in a single batch (see
+   * {@link ABPEngine#matchesAll}), unless the current thread got interrupted
+   * while reading them.
+   *
+   * @return the number of requests replayed
+   */
+  static int replay(final File file, final ABPEngine engine) throws IOException
+  {
+    if (!file.exists())
+    {
+      return 0;
+    }
+
+    final String[] urls = new String[MAX_SIZE];
+    final ContentType[] contentTypes = new ContentType[MAX_SIZE];
+    int count = 0;
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try
+    {
+      String line;
+      while ((line = reader.readLine()) != null && count < MAX_SIZE)
+      {
+        final int space = line.indexOf(' ');
+        if (space < 0)
+        {
+          continue;
+        }
+
+        try
+        {
+          contentTypes[count] = ContentType.valueOf(line.substring(0, space));
+        }
+        catch (final IllegalArgumentException e)
+        {
+          continue;
+        }
+        urls[count] = stripQuery(line.substring(space + 1));
+        count++;
+      }
+    }
+    finally
+    {
+      reader.close();
+    }
+
+    if (count == 0 || Thread.currentThread().isInterrupted())
+    {
+      return 0;
+    }
+    engine.matchesAll(Arrays.copyOf(urls, count), Arrays.copyOf(contentTypes, count), NO_REFERRERS);
+    return count;
+  }
+
+  private static final class Request
+  {
+    private final String url;
+    private final ContentType contentType;
+
+    private Request(final String url, final ContentType contentType)
+    {
+      this.url = url;
+      this.contentType = contentType;
+    }
+  }
+}
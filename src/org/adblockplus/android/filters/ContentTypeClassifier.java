@@ -0,0 +1,218 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android.filters;
+
+import org.adblockplus.libadblockplus.FilterEngine.ContentType;
+
+/**
+ * Guesses the content type of a proxied request from its <code>Accept</code>
+ * header and the extension of its URL path, in a single pass over each and
+ * without allocating.
+ */
+public final class ContentTypeClassifier
+{
+  /*
+   * Media ranges of the Accept header that tell the content type, in order of
+   * precedence (a header listing both text/css and image/* is a stylesheet
+   * request).
+   */
+  private static final String[] ACCEPT_RANGES =
+  {
+    "text/css", "image/*", "text/html", "video/*", "audio/*", "application/json"
+  };
+  private static final ContentType[] ACCEPT_TYPES =
+  {
+    ContentType.STYLESHEET, ContentType.IMAGE, ContentType.SUBDOCUMENT, ContentType.MEDIA, ContentType.MEDIA,
+    ContentType.XMLHTTPREQUEST
+  };
+
+  /*
+   * Known (lower case) path extensions, sorted for binary search.
+   */
+  private static final String[] EXTENSIONS =
+  {
+    "aac", "bmp", "css", "eot", "flac", "gif", "htm", "html", "ico", "jpeg", "jpg", "js", "json", "m4a", "m4v",
+    "mjs", "mp3", "mp4", "oga", "ogg", "ogv", "otf", "png", "svg", "swf", "ttf", "wav", "webm", "webp", "woff",
+    "woff2"
+  };
+  private static final ContentType[] EXTENSION_TYPES =
+  {
+    ContentType.MEDIA, ContentType.IMAGE, ContentType.STYLESHEET, ContentType.FONT, ContentType.MEDIA,
+    ContentType.IMAGE, ContentType.SUBDOCUMENT, ContentType.SUBDOCUMENT, ContentType.IMAGE, ContentType.IMAGE,
+    ContentType.IMAGE, ContentType.SCRIPT, ContentType.XMLHTTPREQUEST, ContentType.MEDIA, ContentType.MEDIA,
+    ContentType.SCRIPT, ContentType.MEDIA, ContentType.MEDIA, ContentType.MEDIA, ContentType.MEDIA,
+    ContentType.MEDIA, ContentType.FONT, ContentType.IMAGE, ContentType.IMAGE, ContentType.OBJECT,
+    ContentType.FONT, ContentType.MEDIA, ContentType.MEDIA, ContentType.IMAGE, ContentType.FONT,
+    ContentType.FONT
+  };
+
+  private ContentTypeClassifier()
+  {
+    //
+  }
+
+  /**
+   * Returns the content type of a request, the <code>Accept</code> header
+   * (may be <code>null</code>) takes precedence over the URL.
+   */
+  public static ContentType classify(final String url, final String accept)
+  {
+    ContentType contentType = accept != null ? fromAccept(accept) : null;
+    if (contentType == null)
+    {
+      contentType = fromExtension(url);
+    }
+    return contentType != null ? contentType : ContentType.OTHER;
+  }
+
+  /**
+   * Returns the content type implied by the media ranges of an
+   * <code>Accept</code> header, or <code>null</code> if there is none.
+   */
+  public static ContentType fromAccept(final String accept)
+  {
+    int best = ACCEPT_RANGES.length;
+    final int length = accept.length();
+    int start = 0;
+    while (start < length && best > 0)
+    {
+      int end = accept.indexOf(',', start);
+      if (end < 0)
+      {
+        end = length;
+      }
+
+      // Media type and subtype, without parameters (e.g. ";q=0.8")
+      int rangeEnd = accept.indexOf(';', start);
+      if (rangeEnd < 0 || rangeEnd > end)
+      {
+        rangeEnd = end;
+      }
+      int rangeStart = start;
+      while (rangeStart < rangeEnd && accept.charAt(rangeStart) == ' ')
+      {
+        rangeStart++;
+      }
+      while (rangeEnd > rangeStart && accept.charAt(rangeEnd - 1) == ' ')
+      {
+        rangeEnd--;
+      }
+
+      for (int i = 0; i < best; i++)
+      {
+        final String range = ACCEPT_RANGES[i];
+        if (range.length() == rangeEnd - rangeStart && accept.regionMatches(true, rangeStart, range, 0, range.length()))
+        {
+          best = i;
+          break;
+        }
+      }
+      start = end + 1;
+    }
+    return best < ACCEPT_RANGES.length ? ACCEPT_TYPES[best] : null;
+  }
+
+  /**
+   * Returns the content type implied by the extension of the URL path, or
+   * <code>null</code> if the extension isn't known. The query and fragment
+   * are ignored.
+   */
+  public static ContentType fromExtension(final String url)
+  {
+    int end = url.length();
+    final int query = url.indexOf('?');
+    if (query >= 0)
+    {
+      end = query;
+    }
+    final int fragment = url.indexOf('#');
+    if (fragment >= 0 && fragment < end)
+    {
+      end = fragment;
+    }
+
+    // Don't mistake the top level domain of a URL without path for an extension
+    final int scheme = url.indexOf("://");
+    final int pathStart = scheme >= 0 ? scheme + 3 : 0;
+
+    int dot = -1;
+    for (int i = end - 1; i >= pathStart; i--)
+    {
+      final char c = url.charAt(i);
+      if (c == '.')
+      {
+        dot = i;
+        break;
+      }
+      if (c == '/')
+      {
+        break;
+      }
+    }
+    if (dot < 0 || url.lastIndexOf('/', dot) < pathStart)
+    {
+      return null;
+    }
+
+    final int index = findExtension(url, dot + 1, end);
+    return index >= 0 ? EXTENSION_TYPES[index] : null;
+  }
+
+  private static int findExtension(final String url, final int start, final int end)
+  {
+    int low = 0;
+    int high = EXTENSIONS.length - 1;
+    while (low <= high)
+    {
+      final int middle = (low + high) >>> 1;
+      final int comparison = compare(EXTENSIONS[middle], url, start, end);
+      if (comparison < 0)
+      {
+        low = middle + 1;
+      }
+      else if (comparison > 0)
+      {
+        high = middle - 1;
+      }
+      else
+      {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Compares a lower case extension with a region of a URL, ignoring the case
+   * of the URL.
+   */
+  private static int compare(final String extension, final String url, final int start, final int end)
+  {
+    final int length = end - start;
+    final int common = Math.min(extension.length(), length);
+    for (int i = 0; i < common; i++)
+    {
+      final int difference = extension.charAt(i) - FilterText.toLowerAscii(url.charAt(start + i));
+      if (difference != 0)
+      {
+        return difference;
+      }
+    }
+    return extension.length() - length;
+  }
+}
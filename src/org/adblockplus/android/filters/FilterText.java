@@ -0,0 +1,412 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android.filters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.adblockplus.libadblockplus.FilterEngine.ContentType;
+
+/**
+ * Helpers for taking apart the text of Adblock Plus request filters, mirroring
+ * what the JavaScript core does when it parses and indexes them.
+ */
+public final class FilterText
+{
+  private static final Pattern RE_ANCHORED_HOST = Pattern.compile("^\\|\\|([a-z0-9_-]+(?:\\.[a-z0-9_-]+)*)([\\^/:]|$)");
+  private static final Pattern RE_OPTIONS = Pattern.compile("\\$(~?[\\w-]+(?:=[^,\\s]+)?(?:,~?[\\w-]+(?:=[^,\\s]+)?)*)$");
+
+  public static final String EXCEPTION_MARKER = "@@";
+
+  /**
+   * Keywords have to be at least this long, like in the JavaScript core.
+   */
+  public static final int MIN_KEYWORD_LENGTH = 3;
+  /**
+   * Tokens (almost) every URL contains, useless as keywords.
+   */
+  private static final Set<String> COMMON_TOKENS = new HashSet<String>(Arrays.asList(
+      "http", "https", "wss", "ftp", "www", "com", "net", "org", "html", "htm", "php"));
+
+  /**
+   * Content types request filters apply to if they don't specify any.
+   */
+  public static final int DEFAULT_CONTENT_TYPES = contentTypeMask(ContentType.values()) & ~contentTypeMask(ContentType.DOCUMENT);
+
+  /**
+   * Returned by {@link #getContentTypeMask(String)} for options other than
+   * content types.
+   */
+  public static final int UNSUPPORTED_OPTIONS = -1;
+
+  private FilterText()
+  {
+    //
+  }
+
+  public static boolean isException(final String text)
+  {
+    return text.startsWith(EXCEPTION_MARKER);
+  }
+
+  /**
+   * Returns the pattern part of a request filter, i.e. the text without the
+   * exception marker and without options.
+   */
+  public static String getPattern(final String text)
+  {
+    String pattern = isException(text) ? text.substring(EXCEPTION_MARKER.length()) : text;
+    final Matcher matcher = RE_OPTIONS.matcher(pattern);
+    if (matcher.find())
+    {
+      pattern = pattern.substring(0, matcher.start());
+    }
+    return pattern;
+  }
+
+  /**
+   * Returns the options of a request filter (without the leading
+   * <code>$</code>) or <code>null</code> if it has none.
+   */
+  public static String getOptions(final String text)
+  {
+    final Matcher matcher = RE_OPTIONS.matcher(text);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  public static boolean hasOption(final String options, final String name)
+  {
+    if (options == null)
+    {
+      return false;
+    }
+    for (final String option : options.split(","))
+    {
+      if (option.trim().equalsIgnoreCase(name))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static boolean isRegexPattern(final String pattern)
+  {
+    return pattern.length() >= 2 && pattern.charAt(0) == '/' && pattern.charAt(pattern.length() - 1) == '/';
+  }
+
+  /**
+   * Characters that make up keywords, expects lower case input.
+   */
+  public static boolean isKeywordChar(final char c)
+  {
+    return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '%';
+  }
+
+  public static char toLowerAscii(final char c)
+  {
+    return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  /**
+   * Checks whether (almost) every URL contains the given token, e.g. the
+   * scheme.
+   */
+  public static boolean isCommonToken(final String token)
+  {
+    return COMMON_TOKENS.contains(token);
+  }
+
+  /**
+   * Checks whether a literal (see {@link #findLongestLiteral}) is no more
+   * than a common token with separators, e.g. <code>https://</code>.
+   */
+  public static boolean isCommonLiteral(final String literal)
+  {
+    int start = 0;
+    int end = literal.length();
+    while (start < end && !isKeywordChar(literal.charAt(start)))
+    {
+      start++;
+    }
+    while (end > start && !isKeywordChar(literal.charAt(end - 1)))
+    {
+      end--;
+    }
+    return end - start < MIN_KEYWORD_LENGTH || isCommonToken(literal.substring(start, end));
+  }
+
+  /**
+   * Returns the keyword of a (lower case, non-regex) pattern or
+   * <code>null</code> if there is none.
+   *
+   * A keyword candidate is a run of at least {@link #MIN_KEYWORD_LENGTH}
+   * keyword characters that is delimited by non-wildcard separators on both
+   * sides, so every URL matching the pattern is guaranteed to contain it as a
+   * complete token. Common tokens (see {@link #isCommonToken}) are no
+   * candidates. The longest candidate wins, but candidates after the host of
+   * a domain anchored pattern are preferred: all requests to a site share
+   * its host tokens (e.g. <code>google</code> for
+   * <code>||google.com/pagead/</code>).
+   */
+  public static String findKeyword(final String pattern)
+  {
+    final int hostEnd = getAnchoredHostEnd(pattern);
+    String best = null;
+    boolean bestInPath = false;
+    int i = 1;
+    while (i < pattern.length())
+    {
+      final char before = pattern.charAt(i - 1);
+      if (!isKeywordChar(pattern.charAt(i)) || isKeywordChar(before) || before == '*')
+      {
+        i++;
+        continue;
+      }
+
+      final int start = i;
+      while (i < pattern.length() && isKeywordChar(pattern.charAt(i)))
+      {
+        i++;
+      }
+      if (i == pattern.length() || pattern.charAt(i) == '*' || i - start < MIN_KEYWORD_LENGTH)
+      {
+        continue;
+      }
+
+      final boolean inPath = start >= hostEnd;
+      if (best == null || (inPath && !bestInPath) || (inPath == bestInPath && i - start > best.length()))
+      {
+        final String candidate = pattern.substring(start, i);
+        if (!isCommonToken(candidate))
+        {
+          best = candidate;
+          bestInPath = inPath;
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Returns where the host of a domain anchored pattern ends, 0 if the
+   * pattern isn't domain anchored.
+   */
+  private static int getAnchoredHostEnd(final String pattern)
+  {
+    if (!pattern.startsWith("||"))
+    {
+      return 0;
+    }
+    int end = 2;
+    while (end < pattern.length() && "/^:?*".indexOf(pattern.charAt(end)) < 0)
+    {
+      end++;
+    }
+    return end;
+  }
+
+  /**
+   * Returns the longest literal part of a (lower case, non-regex) pattern,
+   * i.e. the longest substring without wildcards, separators or anchors.
+   */
+  public static String findLongestLiteral(final String pattern)
+  {
+    String longest = "";
+    for (final String literal : pattern.split("[*^|]"))
+    {
+      if (literal.length() > longest.length())
+      {
+        longest = literal;
+      }
+    }
+    return longest;
+  }
+
+  /**
+   * Returns the (lower case) domains a request filter with the given options
+   * is restricted to by its <code>domain</code> option, ignoring excluded
+   * domains, or <code>null</code> if it applies on all domains but
+   * excluded ones.
+   */
+  public static String[] getIncludedDomains(final String options)
+  {
+    if (options == null)
+    {
+      return null;
+    }
+
+    for (final String option : options.split(","))
+    {
+      final String trimmed = option.trim();
+      if (!trimmed.regionMatches(true, 0, "domain=", 0, 7))
+      {
+        continue;
+      }
+
+      final ArrayList<String> included = new ArrayList<String>();
+      for (final String domain : trimmed.substring(7).split("\\|"))
+      {
+        if (domain.length() > 0 && !domain.startsWith("~"))
+        {
+          included.add(domain.toLowerCase(Locale.ENGLISH));
+        }
+      }
+      return included.isEmpty() ? null : included.toArray(new String[included.size()]);
+    }
+    return null;
+  }
+
+  public static int contentTypeMask(final ContentType contentType)
+  {
+    return 1 << contentType.ordinal();
+  }
+
+  public static int contentTypeMask(final ContentType... contentTypes)
+  {
+    int mask = 0;
+    for (final ContentType contentType : contentTypes)
+    {
+      mask |= contentTypeMask(contentType);
+    }
+    return mask;
+  }
+
+  /**
+   * Returns the host of a plain domain anchored pattern, e.g.
+   * <code>ads.example.com</code> for <code>||ads.example.com^</code>, or
+   * <code>null</code> if the (lower case) pattern is anything else.
+   */
+  public static String getAnchoredHost(final String pattern)
+  {
+    final Matcher matcher = RE_ANCHORED_HOST.matcher(pattern);
+    return matcher.find() && matcher.group(2).equals("^") && matcher.end() == pattern.length() ? matcher.group(1) : null;
+  }
+
+  /**
+   * Returns the content types a request filter with the given options applies
+   * to, or {@link #UNSUPPORTED_OPTIONS} if there are options that are not
+   * content types.
+   */
+  public static int getContentTypeMask(final String options)
+  {
+    if (options == null)
+    {
+      return DEFAULT_CONTENT_TYPES;
+    }
+
+    int included = 0;
+    int excluded = 0;
+    for (String option : options.split(","))
+    {
+      option = option.trim().toLowerCase(Locale.ENGLISH);
+      final boolean inverse = option.startsWith("~");
+      if (inverse)
+      {
+        option = option.substring(1);
+      }
+
+      final ContentType contentType = parseContentType(option);
+      if (contentType == null)
+      {
+        return UNSUPPORTED_OPTIONS;
+      }
+
+      if (inverse)
+      {
+        excluded |= contentTypeMask(contentType);
+      }
+      else
+      {
+        included |= contentTypeMask(contentType);
+      }
+    }
+    return (included != 0 ? included : DEFAULT_CONTENT_TYPES) & ~excluded;
+  }
+
+  /**
+   * Maps a (lower case) content type option to the content type, or
+   * <code>null</code> if it is none.
+   */
+  static ContentType parseContentType(final String option)
+  {
+    if (option.equals("background"))
+    {
+      return ContentType.IMAGE;
+    }
+    if (option.equals("xbl") || option.equals("ping") || option.equals("dtd"))
+    {
+      return ContentType.OTHER;
+    }
+    for (final ContentType contentType : ContentType.values())
+    {
+      if (contentType.name().replace('_', '-').equalsIgnoreCase(option))
+      {
+        return contentType;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the lower case host name of a URL, without user info, port and
+   * trailing dots, or an empty string if it has none.
+   */
+  public static String getHost(final String url)
+  {
+    final int schemeEnd = url.indexOf("://");
+    if (schemeEnd < 0)
+    {
+      return "";
+    }
+
+    int start = schemeEnd + 3;
+    int end = start;
+    while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0)
+    {
+      end++;
+    }
+
+    final int at = url.lastIndexOf('@', end - 1);
+    if (at >= start)
+    {
+      start = at + 1;
+    }
+    if (start < end && url.charAt(start) == '[')
+    {
+      final int bracket = url.indexOf(']', start);
+      return bracket >= 0 && bracket < end ? url.substring(start, bracket + 1).toLowerCase(Locale.ENGLISH) : "";
+    }
+
+    final int colon = url.indexOf(':', start);
+    if (colon >= 0 && colon < end)
+    {
+      end = colon;
+    }
+    while (end > start && url.charAt(end - 1) == '.')
+    {
+      end--;
+    }
+    return url.substring(start, end).toLowerCase(Locale.ENGLISH);
+  }
+}
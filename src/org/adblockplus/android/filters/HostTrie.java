@@ -0,0 +1,344 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android.filters;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable trie of host names, keyed by their labels in reverse order
+ * (<code>ads.example.com</code> is stored as <code>com &gt; example &gt;
+ * ads</code>), so that a single walk over a host finds all entries for the
+ * host itself and its parent domains.
+ *
+ * Every entry carries a bit mask (usually of content types, see
+ * {@link FilterText#contentTypeMask}). Nodes are stored in plain arrays, the
+ * children of a node are stored next to each other, sorted by label, and are
+ * looked up by binary search.
+ */
+public final class HostTrie
+{
+  private static final int ROOT = 0;
+
+  private final char[] labels;
+  private final int[] labelStart;
+  private final int[] labelLength;
+  private final int[] firstChild;
+  private final int[] childCount;
+  private final int[] masks;
+  private final int entryCount;
+
+  private HostTrie(final Builder builder)
+  {
+    final List<Builder.Node> nodes = new ArrayList<Builder.Node>();
+    nodes.add(builder.root);
+    final int[] firstChild = new int[builder.nodeCount];
+    // Breadth first, so that the children of every node end up in one block
+    for (int i = 0; i < nodes.size(); i++)
+    {
+      firstChild[i] = nodes.size();
+      nodes.addAll(nodes.get(i).children.values());
+    }
+
+    final StringBuilder labels = new StringBuilder();
+    final Map<String, Integer> labelOffsets = new HashMap<String, Integer>();
+    this.labelStart = new int[nodes.size()];
+    this.labelLength = new int[nodes.size()];
+    this.childCount = new int[nodes.size()];
+    this.masks = new int[nodes.size()];
+    for (int i = 0; i < nodes.size(); i++)
+    {
+      final Builder.Node node = nodes.get(i);
+      Integer offset = labelOffsets.get(node.label);
+      if (offset == null)
+      {
+        offset = Integer.valueOf(labels.length());
+        labelOffsets.put(node.label, offset);
+        labels.append(node.label);
+      }
+      this.labelStart[i] = offset.intValue();
+      this.labelLength[i] = node.label.length();
+      this.childCount[i] = node.children.size();
+      this.masks[i] = node.mask;
+    }
+
+    this.labels = new char[labels.length()];
+    labels.getChars(0, labels.length(), this.labels, 0);
+    this.firstChild = firstChild;
+    this.entryCount = builder.entryCount;
+  }
+
+  private HostTrie(final char[] labels, final int[] labelStart, final int[] labelLength, final int[] firstChild,
+      final int[] childCount, final int[] masks, final int entryCount)
+  {
+    this.labels = labels;
+    this.labelStart = labelStart;
+    this.labelLength = labelLength;
+    this.firstChild = firstChild;
+    this.childCount = childCount;
+    this.masks = masks;
+    this.entryCount = entryCount;
+  }
+
+  /**
+   * Writes the trie in the format read by {@link #readFrom(ByteBuffer)}.
+   */
+  public void writeTo(final DataOutput out) throws IOException
+  {
+    SnapshotArrays.writeChars(out, this.labels);
+    SnapshotArrays.writeInts(out, this.labelStart);
+    SnapshotArrays.writeInts(out, this.labelLength);
+    SnapshotArrays.writeInts(out, this.firstChild);
+    SnapshotArrays.writeInts(out, this.childCount);
+    SnapshotArrays.writeInts(out, this.masks);
+    out.writeInt(this.entryCount);
+  }
+
+  /**
+   * Reads a trie written by {@link #writeTo(DataOutput)}.
+   *
+   * @throws IOException if the data is corrupt
+   */
+  public static HostTrie readFrom(final ByteBuffer in) throws IOException
+  {
+    try
+    {
+      final char[] labels = SnapshotArrays.readChars(in);
+      final int[] labelStart = SnapshotArrays.readInts(in);
+      final int[] labelLength = SnapshotArrays.readInts(in);
+      final int[] firstChild = SnapshotArrays.readInts(in);
+      final int[] childCount = SnapshotArrays.readInts(in);
+      final int[] masks = SnapshotArrays.readInts(in);
+      final int entryCount = in.getInt();
+
+      final int nodeCount = masks.length;
+      if (nodeCount == 0 || labelStart.length != nodeCount || labelLength.length != nodeCount
+          || firstChild.length != nodeCount || childCount.length != nodeCount)
+      {
+        throw new IOException("Inconsistent host trie");
+      }
+      for (int i = 0; i < nodeCount; i++)
+      {
+        if (labelStart[i] < 0 || labelLength[i] < 0 || labelStart[i] + labelLength[i] > labels.length
+            || firstChild[i] < 0 || childCount[i] < 0 || firstChild[i] + childCount[i] > nodeCount)
+        {
+          throw new IOException("Inconsistent host trie");
+        }
+      }
+      return new HostTrie(labels, labelStart, labelLength, firstChild, childCount, masks, entryCount);
+    }
+    catch (final BufferUnderflowException e)
+    {
+      throw new IOException("Truncated host trie");
+    }
+  }
+
+  /**
+   * Returns the combined mask of all entries for the host of the given URL
+   * and its parent domains, <code>0</code> if there are none or the URL has
+   * no plain host name.
+   */
+  public int getMaskForUrl(final String url)
+  {
+    final int schemeEnd = url.indexOf("://");
+    if (schemeEnd < 0)
+    {
+      return 0;
+    }
+
+    final int hostStart = schemeEnd + 3;
+    int hostEnd = hostStart;
+    while (hostEnd < url.length())
+    {
+      final char c = url.charAt(hostEnd);
+      if (c == '/' || c == '?' || c == '#' || c == ':')
+      {
+        break;
+      }
+      if (c == '@')
+      {
+        // User info, not worth the trouble
+        return 0;
+      }
+      hostEnd++;
+    }
+    return this.getMask(url, hostStart, hostEnd);
+  }
+
+  /**
+   * Returns the combined mask of all entries for the given host and its
+   * parent domains, <code>0</code> if there are none.
+   */
+  public int getMask(final String host)
+  {
+    return this.getMask(host, 0, host.length());
+  }
+
+  private int getMask(final String host, final int hostStart, final int hostEnd)
+  {
+    int mask = 0;
+    int node = ROOT;
+    int labelEnd = hostEnd;
+    while (labelEnd > hostStart)
+    {
+      int labelStart = labelEnd;
+      while (labelStart > hostStart && host.charAt(labelStart - 1) != '.')
+      {
+        labelStart--;
+      }
+
+      node = this.findChild(node, host, labelStart, labelEnd);
+      if (node < 0)
+      {
+        break;
+      }
+      mask |= this.masks[node];
+      labelEnd = labelStart - 1;
+    }
+    return mask;
+  }
+
+  private int findChild(final int node, final String host, final int start, final int end)
+  {
+    int low = this.firstChild[node];
+    int high = low + this.childCount[node] - 1;
+    while (low <= high)
+    {
+      final int middle = (low + high) >>> 1;
+      final int cmp = this.compareLabel(middle, host, start, end);
+      if (cmp < 0)
+      {
+        low = middle + 1;
+      }
+      else if (cmp > 0)
+      {
+        high = middle - 1;
+      }
+      else
+      {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Compares the label of a node to a part of a host, ignoring the case of the
+   * latter. Consistent with {@link String#compareTo} on the lower case labels
+   * the children were sorted by.
+   */
+  private int compareLabel(final int node, final String host, final int start, final int end)
+  {
+    final int offset = this.labelStart[node];
+    final int length = this.labelLength[node];
+    final int hostLength = end - start;
+    final int n = Math.min(length, hostLength);
+    for (int i = 0; i < n; i++)
+    {
+      char c = host.charAt(start + i);
+      if (c >= 'A' && c <= 'Z')
+      {
+        c += 'a' - 'A';
+      }
+      final char l = this.labels[offset + i];
+      if (l != c)
+      {
+        return l - c;
+      }
+    }
+    return length - hostLength;
+  }
+
+  /**
+   * Returns the number of distinct hosts in the trie.
+   */
+  public int getEntryCount()
+  {
+    return this.entryCount;
+  }
+
+  public int getNodeCount()
+  {
+    return this.masks.length;
+  }
+
+  public static final class Builder
+  {
+    private final Node root = new Node("");
+    private int nodeCount = 1;
+    private int entryCount = 0;
+
+    /**
+     * Adds a (lower case) host, the masks of hosts added more than once are
+     * combined.
+     */
+    public Builder add(final String host, final int mask)
+    {
+      Node node = this.root;
+      int labelEnd = host.length();
+      while (labelEnd > 0)
+      {
+        final int labelStart = host.lastIndexOf('.', labelEnd - 1) + 1;
+        final String label = host.substring(labelStart, labelEnd);
+        Node child = node.children.get(label);
+        if (child == null)
+        {
+          child = new Node(label);
+          node.children.put(label, child);
+          this.nodeCount++;
+        }
+        node = child;
+        labelEnd = labelStart - 1;
+      }
+
+      if (node != this.root)
+      {
+        if (node.mask == 0)
+        {
+          this.entryCount++;
+        }
+        node.mask |= mask;
+      }
+      return this;
+    }
+
+    public HostTrie build()
+    {
+      return new HostTrie(this);
+    }
+
+    private static final class Node
+    {
+      private final String label;
+      private final TreeMap<String, Node> children = new TreeMap<String, Node>();
+      private int mask;
+
+      private Node(final String label)
+      {
+        this.label = label;
+      }
+    }
+  }
+}
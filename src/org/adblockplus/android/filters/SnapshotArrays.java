@@ -0,0 +1,96 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android.filters;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reading and writing of the arrays the indexes consist of, for snapshots of
+ * the indexes. Arrays are written with {@link DataOutput} (big endian,
+ * prefixed by their length) and read back in bulk from a (usually memory
+ * mapped) {@link ByteBuffer}.
+ */
+final class SnapshotArrays
+{
+  private SnapshotArrays()
+  {
+    //
+  }
+
+  static void writeInts(final DataOutput out, final int[] values) throws IOException
+  {
+    out.writeInt(values.length);
+    for (final int value : values)
+    {
+      out.writeInt(value);
+    }
+  }
+
+  static int[] readInts(final ByteBuffer in)
+  {
+    final int[] values = new int[readLength(in, 4)];
+    in.asIntBuffer().get(values);
+    in.position(in.position() + values.length * 4);
+    return values;
+  }
+
+  static void writeChars(final DataOutput out, final char[] values) throws IOException
+  {
+    out.writeInt(values.length);
+    for (final char value : values)
+    {
+      out.writeChar(value);
+    }
+  }
+
+  static char[] readChars(final ByteBuffer in)
+  {
+    final char[] values = new char[readLength(in, 2)];
+    in.asCharBuffer().get(values);
+    in.position(in.position() + values.length * 2);
+    return values;
+  }
+
+  static void writeString(final DataOutput out, final String value) throws IOException
+  {
+    out.writeInt(value.length());
+    out.writeChars(value);
+  }
+
+  static String readString(final ByteBuffer in)
+  {
+    return new String(readChars(in));
+  }
+
+  /**
+   * Reads an array length, making sure that the buffer is large enough for
+   * the array, so that corrupt snapshots don't cause huge allocations.
+   */
+  private static int readLength(final ByteBuffer in, final int elementSize)
+  {
+    final int length = in.getInt();
+    if (length < 0 || length > in.remaining() / elementSize)
+    {
+      throw new BufferUnderflowException();
+    }
+    return length;
+  }
+}
@@ -0,0 +1,450 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android.filters;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Immutable prefilter over a set of request filters.
+ *
+ * {@link #mayMatch(String)} returning <code>false</code> guarantees that
+ * none of the filters the prefilter was built from can match the URL, a
+ * return value of <code>true</code> might be a false positive.
+ *
+ * Every filter is represented by one keyword that any matching URL has to
+ * contain as a token. Keywords are stored as hashes in an open addressing
+ * table, so hash collisions only add false positives. Filters without a
+ * keyword are checked by their longest literal part or, for regular
+ * expression filters, by the expression itself. Filters that have neither a
+ * keyword nor a useful literal (e.g. <code>|https://$script,domain=...</code>)
+ * but are restricted to some domains are checked by the domain of the
+ * document instead.
+ */
+public final class TokenPrefilter
+{
+  private final int[] keywordHashes;
+  private final int keywordCount;
+  private final int[] domainHashes;
+  private final int domainCount;
+  private final String[] literals;
+  private final Pattern[] regexps;
+  private final boolean matchesEverything;
+
+  private TokenPrefilter(final Builder builder)
+  {
+    this.keywordHashes = newTable(builder.keywordHashes.size());
+    this.keywordCount = insertAll(this.keywordHashes, builder.keywordHashes);
+    this.domainHashes = newTable(builder.domainHashes.size());
+    this.domainCount = insertAll(this.domainHashes, builder.domainHashes);
+
+    this.literals = builder.literals.toArray(new String[builder.literals.size()]);
+    this.regexps = builder.regexps.toArray(new Pattern[builder.regexps.size()]);
+    this.matchesEverything = builder.matchesEverything;
+  }
+
+  private TokenPrefilter(final int[] keywordHashes, final int keywordCount, final int[] domainHashes,
+      final int domainCount, final String[] literals, final Pattern[] regexps, final boolean matchesEverything)
+  {
+    this.keywordHashes = keywordHashes;
+    this.keywordCount = keywordCount;
+    this.domainHashes = domainHashes;
+    this.domainCount = domainCount;
+    this.literals = literals;
+    this.regexps = regexps;
+    this.matchesEverything = matchesEverything;
+  }
+
+  /**
+   * Writes the prefilter in the format read by
+   * {@link #readFrom(ByteBuffer)}, the hash tables are written as is.
+   */
+  public void writeTo(final DataOutput out) throws IOException
+  {
+    SnapshotArrays.writeInts(out, this.keywordHashes);
+    out.writeInt(this.keywordCount);
+    SnapshotArrays.writeInts(out, this.domainHashes);
+    out.writeInt(this.domainCount);
+    out.writeInt(this.literals.length);
+    for (final String literal : this.literals)
+    {
+      SnapshotArrays.writeString(out, literal);
+    }
+    out.writeInt(this.regexps.length);
+    for (final Pattern regexp : this.regexps)
+    {
+      SnapshotArrays.writeString(out, regexp.pattern());
+      out.writeInt(regexp.flags());
+    }
+    out.writeBoolean(this.matchesEverything);
+  }
+
+  /**
+   * Reads a prefilter written by {@link #writeTo(DataOutput)}.
+   *
+   * @throws IOException if the data is corrupt
+   */
+  public static TokenPrefilter readFrom(final ByteBuffer in) throws IOException
+  {
+    try
+    {
+      final int[] keywordHashes = readTable(in);
+      final int keywordCount = in.getInt();
+      final int[] domainHashes = readTable(in);
+      final int domainCount = in.getInt();
+
+      final String[] literals = new String[readCount(in)];
+      for (int i = 0; i < literals.length; i++)
+      {
+        literals[i] = SnapshotArrays.readString(in);
+      }
+      final Pattern[] regexps = new Pattern[readCount(in)];
+      for (int i = 0; i < regexps.length; i++)
+      {
+        final String source = SnapshotArrays.readString(in);
+        regexps[i] = Pattern.compile(source, in.getInt());
+      }
+      final boolean matchesEverything = in.get() != 0;
+      return new TokenPrefilter(keywordHashes, keywordCount, domainHashes, domainCount, literals, regexps,
+          matchesEverything);
+    }
+    catch (final BufferUnderflowException e)
+    {
+      throw new IOException("Truncated prefilter");
+    }
+    catch (final IllegalArgumentException e)
+    {
+      throw new IOException("Invalid prefilter expression");
+    }
+  }
+
+  private static int[] readTable(final ByteBuffer in) throws IOException
+  {
+    final int[] table = SnapshotArrays.readInts(in);
+    if (table.length == 0 || (table.length & (table.length - 1)) != 0)
+    {
+      throw new IOException("Inconsistent prefilter");
+    }
+    return table;
+  }
+
+  private static int readCount(final ByteBuffer in) throws IOException
+  {
+    final int count = in.getInt();
+    // Every element takes at least four bytes
+    if (count < 0 || count > in.remaining() / 4)
+    {
+      throw new IOException("Inconsistent prefilter");
+    }
+    return count;
+  }
+
+  /**
+   * Returns an empty open addressing table, at most half full with the given
+   * number of hashes.
+   */
+  private static int[] newTable(final int size)
+  {
+    int capacity = 16;
+    while (capacity < size * 2)
+    {
+      capacity <<= 1;
+    }
+    return new int[capacity];
+  }
+
+  /**
+   * Inserts the hashes into the table, returns the number of distinct ones.
+   */
+  private static int insertAll(final int[] table, final List<Integer> hashes)
+  {
+    final int mask = table.length - 1;
+    int count = 0;
+    for (final Integer boxed : hashes)
+    {
+      final int hash = boxed.intValue();
+      int slot = hash & mask;
+      while (table[slot] != 0 && table[slot] != hash)
+      {
+        slot = (slot + 1) & mask;
+      }
+      if (table[slot] == 0)
+      {
+        table[slot] = hash;
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static boolean containsHash(final int[] table, final int hash)
+  {
+    final int mask = table.length - 1;
+    int slot = hash & mask;
+    int probe;
+    while ((probe = table[slot]) != 0)
+    {
+      if (probe == hash)
+      {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether any of the filters might match the URL on a document of
+   * unknown domain.
+   */
+  public boolean mayMatch(final String url)
+  {
+    return this.mayMatch(url, null);
+  }
+
+  /**
+   * Checks whether any of the filters might match the URL on a document with
+   * the given (lower case) host, an empty string for requests without a
+   * document, <code>null</code> if unknown. Doesn't allocate for the keyword
+   * and domain lookups.
+   */
+  public boolean mayMatch(final String url, final String documentHost)
+  {
+    if (this.matchesEverything)
+    {
+      return true;
+    }
+
+    if (this.domainCount > 0 && (documentHost == null || this.containsDomain(documentHost)))
+    {
+      return true;
+    }
+
+    final int length = url.length();
+    int i = 0;
+    while (i < length)
+    {
+      char c = FilterText.toLowerAscii(url.charAt(i));
+      if (!FilterText.isKeywordChar(c))
+      {
+        i++;
+        continue;
+      }
+
+      final int start = i;
+      int hash = 0;
+      do
+      {
+        hash = hash * 31 + c;
+        i++;
+      }
+      while (i < length && FilterText.isKeywordChar(c = FilterText.toLowerAscii(url.charAt(i))));
+
+      if (i - start >= FilterText.MIN_KEYWORD_LENGTH && containsHash(this.keywordHashes, finishHash(hash)))
+      {
+        return true;
+      }
+    }
+
+    for (final String literal : this.literals)
+    {
+      if (containsIgnoreCase(url, literal))
+      {
+        return true;
+      }
+    }
+
+    for (final Pattern regexp : this.regexps)
+    {
+      if (regexp.matcher(url).find())
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Checks whether the host or one of its parent domains is among the
+   * domains of the domain restricted filters.
+   */
+  private boolean containsDomain(final String host)
+  {
+    int start = 0;
+    while (start < host.length())
+    {
+      int hash = 0;
+      for (int i = start; i < host.length(); i++)
+      {
+        hash = hash * 31 + host.charAt(i);
+      }
+      if (containsHash(this.domainHashes, finishHash(hash)))
+      {
+        return true;
+      }
+
+      final int dot = host.indexOf('.', start);
+      if (dot < 0)
+      {
+        break;
+      }
+      start = dot + 1;
+    }
+    return false;
+  }
+
+  private static boolean containsIgnoreCase(final String haystack, final String needle)
+  {
+    final int last = haystack.length() - needle.length();
+    for (int i = 0; i <= last; i++)
+    {
+      if (haystack.regionMatches(true, i, needle, 0, needle.length()))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static int hashKeyword(final String keyword)
+  {
+    int hash = 0;
+    for (int i = 0; i < keyword.length(); i++)
+    {
+      hash = hash * 31 + keyword.charAt(i);
+    }
+    return finishHash(hash);
+  }
+
+  private static int finishHash(int hash)
+  {
+    // Murmur3 finalizer, spreads the bits for the open addressing table
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    // 0 marks empty slots
+    return hash != 0 ? hash : 1;
+  }
+
+  public int getKeywordCount()
+  {
+    return this.keywordCount;
+  }
+
+  /**
+   * Returns the number of distinct domains of filters checked by the domain
+   * of the document.
+   */
+  public int getDomainCount()
+  {
+    return this.domainCount;
+  }
+
+  public int getUnindexedCount()
+  {
+    return this.literals.length + this.regexps.length;
+  }
+
+  public boolean matchesEverything()
+  {
+    return this.matchesEverything;
+  }
+
+  public static final class Builder
+  {
+    private final List<Integer> keywordHashes = new ArrayList<Integer>();
+    private final List<Integer> domainHashes = new ArrayList<Integer>();
+    private final LinkedHashSet<String> literals = new LinkedHashSet<String>();
+    private final List<Pattern> regexps = new ArrayList<Pattern>();
+    private boolean matchesEverything = false;
+
+    /**
+     * Adds a request filter, the exception marker is ignored.
+     */
+    public Builder add(final String filterText)
+    {
+      final String pattern = FilterText.getPattern(filterText);
+
+      if (FilterText.isRegexPattern(pattern))
+      {
+        final boolean matchCase = FilterText.hasOption(FilterText.getOptions(filterText), "match-case");
+        try
+        {
+          this.regexps.add(Pattern.compile(pattern.substring(1, pattern.length() - 1),
+              matchCase ? 0 : Pattern.CASE_INSENSITIVE));
+        }
+        catch (final PatternSyntaxException e)
+        {
+          // We can't tell what this one matches, so it might match anything
+          this.matchesEverything = true;
+        }
+        return this;
+      }
+
+      final String lowerCasePattern = pattern.toLowerCase(Locale.ENGLISH);
+      final String keyword = FilterText.findKeyword(lowerCasePattern);
+      if (keyword != null)
+      {
+        this.keywordHashes.add(Integer.valueOf(hashKeyword(keyword)));
+        return this;
+      }
+
+      final String literal = FilterText.findLongestLiteral(lowerCasePattern);
+      if (FilterText.isCommonLiteral(literal))
+      {
+        // Checking a literal almost every URL contains is pointless, filters
+        // restricted to some domains only apply on documents there though
+        final String[] domains = FilterText.getIncludedDomains(FilterText.getOptions(filterText));
+        if (domains != null)
+        {
+          for (final String domain : domains)
+          {
+            this.domainHashes.add(Integer.valueOf(hashKeyword(domain)));
+          }
+          return this;
+        }
+      }
+
+      if (literal.length() > 0)
+      {
+        this.literals.add(literal);
+      }
+      else
+      {
+        this.matchesEverything = true;
+      }
+      return this;
+    }
+
+    public TokenPrefilter build()
+    {
+      return new TokenPrefilter(this);
+    }
+  }
+}
@@ -37,7 +37,6 @@ import java.util.zip.InflaterInputStream;
 
 import org.adblockplus.ChunkedOutputStream;
 import org.adblockplus.android.AdblockPlus;
-import org.apache.commons.lang.StringUtils;
 import org.literateprograms.BoyerMoore;
 
 import sunlabs.brazil.server.Request;
@@ -86,6 +85,8 @@ public class RequestHandler extends BaseRequestHandler
   private AdblockPlus application;
   private String via;
   static final Pattern RE_HTTP = Pattern.compile("^https?:");
+  private static final Pattern RE_CHARSET = Pattern.compile("charset=\"?([^;\"]+)", Pattern.CASE_INSENSITIVE);
+  private static final Charset UTF_8 = Charset.forName("utf-8");
 
   private static final AtomicLong BLOCKED_REQUESTS = new AtomicLong();
   private static final AtomicLong UNBLOCKED_REQUESTS = new AtomicLong();
@@ -217,9 +218,23 @@ public class RequestHandler extends BaseRequestHandler
       // Detect if we need to add ElemHide filters
       final String type = request.responseHeaders.get("Content-Type");
 
-      String[] selectors = null;
+      byte[] elemhidePayload = null;
       if (type != null && type.toLowerCase().startsWith("text/html"))
       {
+        Charset charset = UTF_8;
+        final Matcher charsetMatcher = RE_CHARSET.matcher(type);
+        if (charsetMatcher.find())
+        {
+          try
+          {
+            charset = Charset.forName(charsetMatcher.group(1).trim());
+          }
+          catch (final IllegalArgumentException e)
+          {
+            Log.e(prefix, "Unsupported site charset, falling back to " + charset.name(), e);
+          }
+        }
+
         String reqHost = "";
 
         try
@@ -231,10 +246,10 @@ public class RequestHandler extends BaseRequestHandler
           // We are transparent, it's not our deal if it's malformed.
         }
 
-        selectors = application.getSelectorsForDomain(reqHost, referrer);
+        elemhidePayload = application.getElemhidePayloadForDomain(reqHost, referrer, charset);
       }
       // If no filters are applicable just pass through the response
-      if (selectors == null || target.getResponseCode() != 200)
+      if (elemhidePayload == null || target.getResponseCode() != 200)
       {
         final int contentLength = target.getContentLength();
         if (contentLength == 0)
@@ -279,7 +294,7 @@ public class RequestHandler extends BaseRequestHandler
             // Unsupported encoding, proxy content as-is
             in = his;
             out = request.out;
-            selectors = null;
+            elemhidePayload = null;
           }
         }
         else
@@ -296,31 +311,11 @@ public class RequestHandler extends BaseRequestHandler
           size = Integer.MAX_VALUE;
         }
 
-        String charsetName = "utf-8";
-        final String contentType = request.responseHeaders.get("Content-Type");
-        if (contentType != null)
-        {
-          final Matcher matcher = Pattern.compile("charset=([^;]*)").matcher(contentType);
-          if (matcher.matches())
-          {
-            try
-            {
-              final String extractedCharsetName = matcher.group(0);
-              Charset.forName(extractedCharsetName);
-              charsetName = extractedCharsetName;
-            }
-            catch (final IllegalArgumentException e)
-            {
-              Log.e(prefix, "Unsupported site charset, falling back to " + charsetName, e);
-            }
-          }
-        }
-
         request.sendHeaders(-1, null, -1);
 
         final byte[] buf = new byte[Math.min(4096, size)];
 
-        boolean sent = selectors == null;
+        boolean sent = elemhidePayload == null;
         final BoyerMoore matcher = new BoyerMoore("<html".getBytes());
 
         while (size > 0)
@@ -344,9 +339,7 @@ public class RequestHandler extends BaseRequestHandler
                 // Add filters right before match
                 final int m = matches.get(0);
                 out.write(buf, 0, m);
-                out.write("<style type=\"text/css\">\n".getBytes());
-                out.write(StringUtils.join(selectors, ",\r\n").getBytes(charsetName));
-                out.write("{ display: none !important }</style>\n".getBytes());
+                out.write(elemhidePayload);
                 out.write(buf, m, count - m);
                 sent = true;
                 continue;
@@ -23,6 +23,8 @@ import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 
+import org.adblockplus.android.AdblockPlus;
+
 import sunlabs.brazil.server.Request;
 import sunlabs.brazil.server.Server;
 import sunlabs.brazil.util.MatchString;
@@ -62,6 +64,18 @@ import sunlabs.brazil.util.MatchString;
 
 public class SSLConnectionHandler extends BaseRequestHandler
 {
+  private AdblockPlus application;
+
+  @Override
+  public boolean init(final Server server, final String prefix)
+  {
+    super.init(server, prefix);
+
+    application = AdblockPlus.getApplication();
+
+    return true;
+  }
+
   @Override
   public boolean respond(final Request request) throws IOException
   {
@@ -70,6 +84,15 @@ public class SSLConnectionHandler extends BaseRequestHandler
 
     request.log(Server.LOG_LOG, prefix, "SSL connection to " + request.url);
 
+    final int colon = request.url.indexOf(':');
+    final String targetHost = colon >= 0 ? request.url.substring(0, colon) : request.url;
+    if (application.matchesHost(targetHost))
+    {
+      request.log(Server.LOG_LOG, prefix, "SSL connection blocked: " + request.url);
+      request.sendError(403, "Blocked by Adblock Plus");
+      return true;
+    }
+
     String host = null;
     int port = 0;
 
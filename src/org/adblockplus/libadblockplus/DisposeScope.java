@@ -0,0 +1,88 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.libadblockplus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Collects handles obtained on a hot path, to release all of them at once
+ * when they aren't needed anymore, instead of leaving them to the garbage
+ * collector. JavaScript values are released in a single native call.
+ *
+ * <pre>
+ * final DisposeScope scope = new DisposeScope();
+ * try
+ * {
+ *   final Filter filter = scope.add(filterEngine.getFilter(text));
+ *   ...
+ * }
+ * finally
+ * {
+ *   scope.dispose();
+ * }
+ * </pre>
+ */
+public final class DisposeScope implements Disposable
+{
+  private final ArrayList<Disposer> disposers = new ArrayList<Disposer>();
+  private final ArrayList<Disposable> others = new ArrayList<Disposable>();
+
+  public <T extends Disposable> T add(final T disposable)
+  {
+    if (disposable instanceof JsValue)
+    {
+      this.disposers.add(((JsValue) disposable).getDisposer());
+    }
+    else if (disposable != null)
+    {
+      this.others.add(disposable);
+    }
+    return disposable;
+  }
+
+  public void addAll(final Collection<? extends Disposable> disposables)
+  {
+    this.disposers.ensureCapacity(this.disposers.size() + disposables.size());
+    for (final Disposable disposable : disposables)
+    {
+      this.add(disposable);
+    }
+  }
+
+  /**
+   * Disposes everything added so far, the scope can be reused afterwards.
+   */
+  @Override
+  public void dispose()
+  {
+    try
+    {
+      Disposer.disposeAllExplicitly(this.disposers);
+      for (final Disposable disposable : this.others)
+      {
+        disposable.dispose();
+      }
+    }
+    finally
+    {
+      this.disposers.clear();
+      this.others.clear();
+    }
+  }
+}
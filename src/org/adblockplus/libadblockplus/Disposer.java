@@ -19,14 +19,31 @@ package org.adblockplus.libadblockplus;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class Disposer extends WeakReference<Disposable>
 {
+  private static final String PACKAGE_PREFIX = Disposer.class.getPackage().getName() + ".";
+  private static final int MAX_BATCH_SIZE = 256;
+
   static final ReferenceQueue<Disposable> referenceQueue = new ReferenceQueue<Disposable>();
-  private static final HashSet<Disposer> disposerSet = new HashSet<Disposer>();
+  // Keeps the disposers reachable until they're disposed, a concurrent map
+  // so that creating and disposing handles on several threads doesn't
+  // contend on a single lock
+  private static final ConcurrentHashMap<Disposer, Boolean> disposers = new ConcurrentHashMap<Disposer, Boolean>();
+  private static final ConcurrentHashMap<Class<?>, AtomicInteger> liveCounts = new ConcurrentHashMap<Class<?>, AtomicInteger>();
+  private static final AtomicLong disposedByGc = new AtomicLong();
+  private static final AtomicLong disposedExplicitly = new AtomicLong();
+  private static final AtomicLong disposalNanos = new AtomicLong();
   private final Disposable disposable;
-  private volatile boolean disposed = false;
+  private final AtomicInteger liveCount;
+  private boolean disposed = false;
 
   static
   {
@@ -40,32 +57,176 @@ public final class Disposer extends WeakReference<Disposable>
   {
     super(referent, referenceQueue);
     this.disposable = disposable;
+    this.liveCount = getLiveCount(referent.getClass());
+    this.liveCount.incrementAndGet();
+
+    disposers.put(this, Boolean.TRUE);
+  }
+
+  /**
+   * Returns the counter for the class of this package the given class is or
+   * extends, so that e.g. all log systems are counted together.
+   */
+  private static AtomicInteger getLiveCount(final Class<?> clazz)
+  {
+    AtomicInteger count = liveCounts.get(clazz);
+    if (count == null)
+    {
+      Class<?> type = clazz;
+      while (!type.getName().startsWith(PACKAGE_PREFIX) && type.getSuperclass() != null)
+      {
+        type = type.getSuperclass();
+      }
+      count = type != clazz ? getLiveCount(type) : new AtomicInteger();
+      final AtomicInteger previous = liveCounts.putIfAbsent(clazz, count);
+      if (previous != null)
+      {
+        count = previous;
+      }
+    }
+    return count;
+  }
+
+  public void dispose()
+  {
+    if (this.claim())
+    {
+      final long start = System.nanoTime();
+      disposeClaimed(this);
+      disposalNanos.addAndGet(System.nanoTime() - start);
+      disposedExplicitly.incrementAndGet();
+    }
+  }
 
-    synchronized (disposerSet)
+  /**
+   * Marks this disposer as disposed, returns <code>false</code> if it
+   * already was.
+   */
+  private synchronized boolean claim()
+  {
+    if (this.disposed)
     {
-      disposerSet.add(this);
+      return false;
     }
+    this.disposed = true;
+    return true;
   }
 
-  public synchronized void dispose()
+  private static void disposeClaimed(final Disposer disposer)
   {
-    if (!this.disposed)
+    try
+    {
+      disposer.disposable.dispose();
+    }
+    catch (final Throwable t)
+    {
+      // catch to update the state on all circumstances
+    }
+    disposer.release();
+  }
+
+  private void release()
+  {
+    disposers.remove(this);
+    this.liveCount.decrementAndGet();
+  }
+
+  /**
+   * Disposes all given disposers that aren't disposed yet, the native values
+   * of JavaScript values in a single native call.
+   *
+   * @return the number of disposers that weren't disposed before
+   */
+  static int disposeAll(final List<Disposer> disposers)
+  {
+    final long[] ptrs = new long[disposers.size()];
+    final ArrayList<Disposer> batched = new ArrayList<Disposer>(disposers.size());
+    int count = 0;
+    for (final Disposer disposer : disposers)
+    {
+      if (!disposer.claim())
+      {
+        continue;
+      }
+
+      count++;
+      if (disposer.disposable instanceof JsValue.DisposeWrapper)
+      {
+        ptrs[batched.size()] = ((JsValue.DisposeWrapper) disposer.disposable).ptr;
+        batched.add(disposer);
+      }
+      else
+      {
+        disposeClaimed(disposer);
+      }
+    }
+
+    if (!batched.isEmpty())
     {
       try
       {
-        this.disposable.dispose();
+        JsValue.disposeAll(ptrs, batched.size());
       }
       catch (final Throwable t)
       {
-        // catch to set state to 'disposed' on all circumstances
+        // catch to update the state on all circumstances
       }
+      for (final Disposer disposer : batched)
+      {
+        disposer.release();
+      }
+    }
+    return count;
+  }
+
+  static void disposeAllExplicitly(final List<Disposer> disposers)
+  {
+    final long start = System.nanoTime();
+    final int count = disposeAll(disposers);
+    disposalNanos.addAndGet(System.nanoTime() - start);
+    disposedExplicitly.addAndGet(count);
+  }
 
-      this.disposed = true;
-      synchronized (disposerSet)
+  /**
+   * Returns the number of handles not disposed yet, by the class of this
+   * package they are or extend, e.g. <code>Filter</code> or
+   * <code>LogSystem</code>.
+   */
+  public static Map<String, Integer> getLiveHandleCounts()
+  {
+    final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+    for (final Map.Entry<Class<?>, AtomicInteger> entry : liveCounts.entrySet())
+    {
+      final Class<?> type = entry.getKey();
+      if (type.getName().startsWith(PACKAGE_PREFIX))
       {
-        disposerSet.remove(this);
+        counts.put(type.getSimpleName(), entry.getValue().get());
       }
     }
+    return counts;
+  }
+
+  /**
+   * Returns the number of handles disposed after their owners got garbage
+   * collected, i.e. that nobody disposed in time.
+   */
+  public static long getDisposedByGcCount()
+  {
+    return disposedByGc.get();
+  }
+
+  public static long getDisposedExplicitlyCount()
+  {
+    return disposedExplicitly.get();
+  }
+
+  /**
+   * Returns the average time it took to free the native side of a handle.
+   */
+  public static long getAverageDisposalNanos()
+  {
+    final long count = disposedByGc.get() + disposedExplicitly.get();
+    return count > 0 ? disposalNanos.get() / count : 0;
   }
 
   private static final class Cleaner implements Runnable
@@ -78,16 +239,32 @@ public final class Disposer extends WeakReference<Disposable>
     @Override
     public void run()
     {
+      final ArrayList<Disposer> batch = new ArrayList<Disposer>(MAX_BATCH_SIZE);
       for (;;)
       {
         try
         {
-          ((Disposer) Disposer.referenceQueue.remove()).dispose();
+          // Wait for one, then take whatever else got collected meanwhile
+          batch.add((Disposer) Disposer.referenceQueue.remove());
+          Disposer disposer;
+          while (batch.size() < MAX_BATCH_SIZE && (disposer = (Disposer) Disposer.referenceQueue.poll()) != null)
+          {
+            batch.add(disposer);
+          }
+
+          final long start = System.nanoTime();
+          final int count = disposeAll(batch);
+          disposalNanos.addAndGet(System.nanoTime() - start);
+          disposedByGc.addAndGet(count);
         }
         catch (final Throwable t)
         {
           // ignored
         }
+        finally
+        {
+          batch.clear();
+        }
       }
     }
   }
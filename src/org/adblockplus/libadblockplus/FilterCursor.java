@@ -0,0 +1,141 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.libadblockplus;
+
+/**
+ * Walks the listed filters (see {@link FilterEngine#getListedFilterCursor})
+ * or the enabled filters of all enabled subscriptions (see
+ * {@link FilterEngine#getEnabledFilterCursor}) in chunks of texts and types,
+ * without creating a {@link Filter} for each of them. Filters are fetched
+ * from the JavaScript engine one chunk at a time, and only one chunk is held
+ * on the Java side at a time, its arrays are reused for the next one.
+ *
+ * <pre>
+ * final FilterCursor cursor = filterEngine.getListedFilterCursor(512);
+ * try
+ * {
+ *   while (cursor.next())
+ *   {
+ *     for (int i = 0; i &lt; cursor.getCount(); i++)
+ *     {
+ *       ... cursor.getText(i), cursor.getType(i) ...
+ *     }
+ *   }
+ * }
+ * finally
+ * {
+ *   cursor.dispose();
+ * }
+ * </pre>
+ */
+public final class FilterCursor implements Disposable
+{
+  private static final Filter.Type[] TYPES = Filter.Type.values();
+
+  private final Disposer disposer;
+  protected final long ptr;
+  private final String[] texts;
+  private final byte[] types;
+  private int count = 0;
+
+  static
+  {
+    System.loadLibrary("adblockplus-jni");
+    registerNatives();
+  }
+
+  FilterCursor(final FilterEngine filterEngine, final int chunkSize, final boolean listedOnly)
+  {
+    if (chunkSize < 1)
+    {
+      throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+    }
+    this.ptr = ctor(filterEngine.jsEngine.ptr, listedOnly);
+    this.disposer = new Disposer(this, new DisposeWrapper(this.ptr));
+    this.texts = new String[chunkSize];
+    this.types = new byte[chunkSize];
+  }
+
+  /**
+   * Moves on to the next chunk, returns <code>false</code> if there are no
+   * filters left.
+   */
+  public boolean next()
+  {
+    this.count = next(this.ptr, this.texts, this.types);
+    return this.count > 0;
+  }
+
+  /**
+   * Returns the number of filters in the current chunk.
+   */
+  public int getCount()
+  {
+    return this.count;
+  }
+
+  public String getText(final int index)
+  {
+    this.checkIndex(index);
+    return this.texts[index];
+  }
+
+  public Filter.Type getType(final int index)
+  {
+    this.checkIndex(index);
+    return TYPES[this.types[index]];
+  }
+
+  private void checkIndex(final int index)
+  {
+    if (index < 0 || index >= this.count)
+    {
+      throw new IndexOutOfBoundsException("Index " + index + " of chunk with " + this.count + " filters");
+    }
+  }
+
+  @Override
+  public void dispose()
+  {
+    this.disposer.dispose();
+  }
+
+  private final static class DisposeWrapper implements Disposable
+  {
+    private final long ptr;
+
+    public DisposeWrapper(final long ptr)
+    {
+      this.ptr = ptr;
+    }
+
+    @Override
+    public void dispose()
+    {
+      dtor(this.ptr);
+    }
+  }
+
+  private final static native void registerNatives();
+
+  private final static native long ctor(long jsEnginePtr, boolean listedOnly);
+
+  private final static native int next(long ptr, String[] texts, byte[] types);
+
+  private final static native void dtor(long ptr);
+}
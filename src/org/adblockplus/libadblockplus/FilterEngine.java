@@ -17,12 +17,14 @@
 
 package org.adblockplus.libadblockplus;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public final class FilterEngine implements Disposable
 {
   private final Disposer disposer;
   protected final long ptr;
+  final JsEngine jsEngine;
 
   static
   {
@@ -30,6 +32,20 @@ public final class FilterEngine implements Disposable
     registerNatives();
   }
 
+  /**
+   * Verdicts returned by {@link #getMatchVerdict} and {@link #matchesAll},
+   * the lower bits hold the type of the matching filter,
+   * {@link #MATCH_FLAG_DOMAIN_ANCHORED} is set if its text contains a domain
+   * anchor (<code>||</code>). The flag is only determined for requests
+   * without document URLs, the filter text isn't fetched otherwise.
+   */
+  public static final byte MATCH_NONE = 0;
+  public static final byte MATCH_BLOCKING = 1;
+  public static final byte MATCH_EXCEPTION = 2;
+  public static final byte MATCH_OTHER = 3;
+  public static final byte MATCH_TYPE_MASK = 0x0f;
+  public static final byte MATCH_FLAG_DOMAIN_ANCHORED = 0x10;
+
   public static enum ContentType
   {
     OTHER, SCRIPT, IMAGE, STYLESHEET, OBJECT, SUBDOCUMENT, DOCUMENT, XMLHTTPREQUEST,
@@ -38,6 +54,7 @@ public final class FilterEngine implements Disposable
 
   public FilterEngine(final JsEngine jsEngine)
   {
+    this.jsEngine = jsEngine;
     this.ptr = ctor(jsEngine.ptr);
     this.disposer = new Disposer(this, new DisposeWrapper(this.ptr));
   }
@@ -57,6 +74,28 @@ public final class FilterEngine implements Disposable
     return getListedFilters(this.ptr);
   }
 
+  /**
+   * Returns a cursor over the texts and types of the listed filters, handing
+   * them out <code>chunkSize</code> at a time. Unlike
+   * {@link #getListedFilters()}, this doesn't create a {@link Filter} for
+   * every listed filter, neither on the Java nor on the native side.
+   */
+  public FilterCursor getListedFilterCursor(final int chunkSize)
+  {
+    return new FilterCursor(this, chunkSize, true);
+  }
+
+  /**
+   * Returns a cursor over the texts and types of the enabled filters of all
+   * enabled subscriptions, i.e. of the filters requests are matched against,
+   * handing them out <code>chunkSize</code> at a time. Unlike the listed
+   * filters, these include the filters of downloaded subscriptions.
+   */
+  public FilterCursor getEnabledFilterCursor(final int chunkSize)
+  {
+    return new FilterCursor(this, chunkSize, false);
+  }
+
   public Subscription getSubscription(final String url)
   {
     return getSubscription(this.ptr, url);
@@ -137,6 +176,47 @@ public final class FilterEngine implements Disposable
     return matches(this.ptr, url, contentType, documentUrls);
   }
 
+  /**
+   * Same as {@link #matches(String, ContentType, String[])}, but with the URL
+   * and the document URLs passed as UTF-8 encoded, consecutive ranges of a
+   * direct buffer, so that the native side can read them without converting
+   * Java strings. The first range is the URL, range <code>i</code> ends at
+   * <code>urlEnds[i]</code> and starts where the previous one ended.
+   *
+   * Returns a <code>MATCH_*</code> verdict rather than the filter, which
+   * saves creating a Java object and looking up its properties.
+   *
+   * @param urlCount
+   *          the number of ranges, i.e. the number of document URLs + 1
+   */
+  public byte getMatchVerdict(final ByteBuffer urls, final int[] urlEnds, final int urlCount, final ContentType contentType)
+  {
+    if (!urls.isDirect())
+    {
+      throw new IllegalArgumentException("URLs have to be passed in a direct buffer");
+    }
+    if (urlCount < 1 || urlCount > urlEnds.length)
+    {
+      throw new IllegalArgumentException("Invalid URL count " + urlCount);
+    }
+    return getMatchVerdict(this.ptr, urls, urlEnds, urlCount, contentType);
+  }
+
+  /**
+   * Matches several URLs sharing the same document URLs in a single native
+   * call, <code>urls[i]</code> is matched with <code>contentTypes[i]</code>.
+   *
+   * @return one <code>MATCH_*</code> verdict per URL
+   */
+  public byte[] matchesAll(final String[] urls, final ContentType[] contentTypes, final String[] documentUrls)
+  {
+    if (urls.length != contentTypes.length)
+    {
+      throw new IllegalArgumentException("Got " + urls.length + " URLs but " + contentTypes.length + " content types");
+    }
+    return matchesAll(this.ptr, urls, contentTypes, documentUrls);
+  }
+
   public boolean isDocumentWhitelisted(String url, String[] documentUrls)
   {
     return isDocumentWhitelisted(this.ptr, url, documentUrls);
@@ -219,6 +299,10 @@ public final class FilterEngine implements Disposable
 
   private final static native Filter matches(long ptr, String url, ContentType contentType, String[] documentUrls);
 
+  private final static native byte getMatchVerdict(long ptr, ByteBuffer urls, int[] urlEnds, int urlCount, ContentType contentType);
+
+  private final static native byte[] matchesAll(long ptr, String[] urls, ContentType[] contentTypes, String[] documentUrls);
+
   private final static native boolean isDocumentWhitelisted(long ptr, String url, String[] documentUrls);
 
   private final static native boolean isElemhideWhitelisted(long ptr, String url, String[] documentUrls);
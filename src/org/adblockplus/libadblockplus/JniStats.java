@@ -0,0 +1,115 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.libadblockplus;
+
+/**
+ * Counters for the native methods and callbacks whose boundary crossings
+ * matter, to see where the time goes. For every method, the number of calls,
+ * the time spent in native code and the part of it spent on the other side of
+ * the boundary (in libadblockplus for native methods, in Java for callbacks)
+ * are counted. The remainder is overhead of the bindings: converting
+ * arguments and results, creating Java objects, attaching threads.
+ *
+ * Only the methods called for every proxied request (matching, whitelisting,
+ * element hiding) and the callbacks called for every download or log message
+ * are counted, see {@link Method}. The other native methods (setting up
+ * engines, subscriptions, filters, JavaScript values) run a few times per
+ * filter change at most and aren't instrumented.
+ */
+public final class JniStats
+{
+  private static final int COUNTERS_PER_METHOD = 3;
+
+  private final long[] counters;
+
+  static
+  {
+    System.loadLibrary("adblockplus-jni");
+    registerNatives();
+  }
+
+  /**
+   * Keep in sync with <code>JniStatsMethod</code> in <code>JniStats.h</code>.
+   */
+  public static enum Method
+  {
+    MATCHES, MATCHES_MANY, MATCHES_DIRECT, MATCHES_ALL, IS_DOCUMENT_WHITELISTED, IS_ELEMHIDE_WHITELISTED,
+    GET_ELEMENT_HIDING_SELECTORS, WEB_REQUEST_GET, LOG_CALLBACK
+  }
+
+  private JniStats(final long[] counters)
+  {
+    this.counters = counters;
+  }
+
+  /**
+   * Returns the current values of all counters.
+   */
+  public static JniStats snapshot()
+  {
+    return new JniStats(getCounters());
+  }
+
+  public static void resetCounters()
+  {
+    reset();
+  }
+
+  public long getCallCount(final Method method)
+  {
+    return this.counters[method.ordinal() * COUNTERS_PER_METHOD];
+  }
+
+  public long getTotalNanos(final Method method)
+  {
+    return this.counters[method.ordinal() * COUNTERS_PER_METHOD + 1];
+  }
+
+  public long getCalleeNanos(final Method method)
+  {
+    return this.counters[method.ordinal() * COUNTERS_PER_METHOD + 2];
+  }
+
+  public long getOverheadNanos(final Method method)
+  {
+    return this.getTotalNanos(method) - this.getCalleeNanos(method);
+  }
+
+  @Override
+  public String toString()
+  {
+    final StringBuilder sb = new StringBuilder();
+    for (final Method method : Method.values())
+    {
+      final long calls = this.getCallCount(method);
+      if (calls > 0)
+      {
+        sb.append(method).append(": ").append(calls).append(" calls, ")
+            .append(this.getOverheadNanos(method) / calls).append(" ns overhead of ")
+            .append(this.getTotalNanos(method) / calls).append(" ns per call\n");
+      }
+    }
+    return sb.toString();
+  }
+
+  private final static native void registerNatives();
+
+  private final static native long[] getCounters();
+
+  private final static native void reset();
+}
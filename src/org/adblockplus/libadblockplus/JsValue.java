@@ -42,6 +42,19 @@ public class JsValue implements Disposable
     this.disposer.dispose();
   }
 
+  Disposer getDisposer()
+  {
+    return this.disposer;
+  }
+
+  /**
+   * Frees the native side of several values in one native call.
+   */
+  static void disposeAll(final long[] ptrs, final int count)
+  {
+    dtorAll(ptrs, count);
+  }
+
   public boolean isUndefined()
   {
     return isUndefined(this.ptr);
@@ -113,9 +126,9 @@ public class JsValue implements Disposable
     return asString(this.ptr);
   }
 
-  private final static class DisposeWrapper implements Disposable
+  final static class DisposeWrapper implements Disposable
   {
-    private final long ptr;
+    final long ptr;
 
     public DisposeWrapper(final long ptr)
     {
@@ -158,4 +171,6 @@ public class JsValue implements Disposable
   private final static native List<JsValue> asList(long ptr);
 
   private final static native void dtor(long ptr);
+
+  private final static native void dtorAll(long[] ptrs, int count);
 }
@@ -61,9 +61,8 @@ public final class ServerResponse
   private long status = NsStatus.OK.getStatusCode();
   private int responseStatus = 400;
   private String[] headers = null;
-  // TODO: This (and the whole downloading) is a waste of memory, change String
-  // to something more suitable
   private String response = null;
+  private String responseFile = null;
 
   public NsStatus getStatus()
   {
@@ -95,6 +94,27 @@ public final class ServerResponse
     this.response = response;
   }
 
+  /**
+   * Returns the path of the file holding the response body, if it was
+   * spooled to a file instead of being set with {@link #setResponse(String)}.
+   */
+  public String getResponseFile()
+  {
+    return this.responseFile;
+  }
+
+  /**
+   * Sets the path of a file holding the response body. It is read natively
+   * when the response is handed to the filter engine, so that large bodies
+   * never have to be held in the Java heap. Takes effect only if no
+   * response was set with {@link #setResponse(String)}. The file has to be
+   * kept until {@link WebRequest#responseFileRead(String)} is called.
+   */
+  public void setResponseFile(final String responseFile)
+  {
+    this.responseFile = responseFile;
+  }
+
   public List<HeaderEntry> getResponseHeaders()
   {
     final ArrayList<HeaderEntry> ret = new ArrayList<HeaderEntry>();
@@ -38,6 +38,17 @@ public abstract class WebRequest implements Disposable
 
   public abstract ServerResponse httpGET(String url, List<HeaderEntry> headers);
 
+  /**
+   * Called once the response file of a response returned by
+   * {@link #httpGET(String, List)} (see
+   * {@link ServerResponse#setResponseFile(String)}) has been read, or
+   * failed to be read. The file isn't needed any more from then on.
+   */
+  protected void responseFileRead(final String responseFile)
+  {
+    //
+  }
+
   @Override
   public void dispose()
   {
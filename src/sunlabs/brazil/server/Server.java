@@ -243,11 +243,19 @@ package sunlabs.brazil.server;
 import sunlabs.brazil.properties.PropertiesList;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Yet another HTTP/1.1 server.
@@ -258,10 +266,8 @@ import java.util.Properties;
  * supplied, then the {@link FileHandler} is used.
  * A {@link ChainHandler} is provided to allow multiple handlers in one server.
  * <p>
- * Limitations:
- * <ul>
- * <li>Starts a new thread for each connection.  This may be expensive.  
- * </ul>
+ * Connections are handled by a pool of worker threads, see
+ * {@link #minThreads}, {@link #maxThreads} and {@link #acceptQueue}.
  *
  * @author	Stephen Uhler (stephen.uhler@sun.com)
  * @author	Colin Stevens (colin.stevens@sun.com)
@@ -273,7 +279,7 @@ public class Server
 {
     /**
      * The listening socket.  Every time a new socket is accepted,
-     * a new thread is created to read the HTTP requests from it.  
+     * a worker thread is given the job to read the HTTP requests from it.
      */
     public ServerSocket listen;
 
@@ -361,11 +367,31 @@ public class Server
     public int maxRequests = 25;
 
     /**
-     * The max number of threads allowed for the entire VM
-     * (default is 250).
+     * The number of worker threads kept around while idle
+     * (default is 4).
+     */
+    public int minThreads = 4;
+
+    /**
+     * The max number of worker threads, i.e. of connections handled at
+     * once (default is 250).
      */
     public int maxThreads = 250;
 
+    /**
+     * The max number of accepted connections waiting for a worker thread
+     * once all <code>maxThreads</code> are busy.  Further connections are
+     * answered with <code>503 Service Unavailable</code> right away
+     * (default is 50).
+     */
+    public int acceptQueue = 50;
+
+    /**
+     * Time in seconds idle worker threads beyond <code>minThreads</code>
+     * are kept around (default is 60).
+     */
+    public int threadKeepAlive = 60;
+
     /**
      * Maximum amout of POST data allowed per request (in bytes)
      * (default = 2Meg).
@@ -408,6 +434,11 @@ public class Server
 
     ThreadGroup group;
 
+    WorkerPool workers;
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong queuedNanos = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
     /**
      * Create a server using the provided listener socket.  
      * <p>
@@ -543,6 +574,7 @@ public class Server
 	    }
 
 	    listen.setSoTimeout(0);
+	    workers = createWorkers();
 	    while (true) {
 		/*
 		 * Blocks until we have a connection on the socket.
@@ -564,25 +596,17 @@ public class Server
 		    continue;
 		}
 
-		// A pseudo-busy loop!!!
-
-		boolean warn=false;
-		while (Thread.activeCount() > maxThreads) {
-		    if (!warn) {
-			log(LOG_WARNING, sock, 
-				"Too many threads: " + maxThreads);
-		    }
-		    Thread.yield();
-		    warn = true;
-		}
-
-		new Thread(group, new Connection(this, sock),
-			threadName + "-" + acceptCount).start();
+		workers.execute(new QueuedConnection(new Connection(this, sock),
+			threadName + "-" + acceptCount, sock));
 		acceptCount++;
 	    }
 	} catch (IOException e) {
 	     System.err.println("Server failed to start: " + e);
 	} finally {
+	    if (workers != null) {
+		log(LOG_LOG, null, "workers: " + getWorkerStats());
+		workers.shutdownNow();
+	    }
 	    try {
 		listen.close();
 
@@ -601,6 +625,236 @@ public class Server
 	}
     }
 
+    /**
+     * Creates the pool of worker threads.  Up to <code>maxThreads</code>
+     * threads are started before connections are queued, idle ones are
+     * reused.
+     */
+    WorkerPool
+    createWorkers()
+    {
+	final ConnectionQueue queue = new ConnectionQueue(Math.max(1, acceptQueue));
+	final int max = Math.max(1, maxThreads);
+	final WorkerPool executor = new WorkerPool(
+		Math.min(Math.max(0, minThreads), max), max,
+		threadKeepAlive, TimeUnit.SECONDS, queue,
+		new ThreadFactory() {
+		    public Thread newThread(Runnable r) {
+			return new Thread(group, r, "worker");
+		    }
+		},
+		new RejectedExecutionHandler() {
+		    public void rejectedExecution(Runnable r,
+			    ThreadPoolExecutor executor) {
+			// The pool reached its limit after the queue refused
+			if (!executor.isShutdown() && queue.force(r)) {
+			    return;
+			}
+			((WorkerPool) executor).submitted.decrementAndGet();
+			reject((QueuedConnection) r);
+		    }
+		});
+	queue.executor = executor;
+	return executor;
+    }
+
+    /**
+     * Answers a connection that can't be handled with a
+     * <code>503 Service Unavailable</code> and closes it.
+     */
+    void
+    reject(QueuedConnection connection)
+    {
+	rejectedCount.incrementAndGet();
+	log(LOG_WARNING, connection.name, "Too many connections, workers: " +
+		getWorkerStats());
+	try {
+	    OutputStream out = connection.sock.getOutputStream();
+	    out.write(("HTTP/1.1 503 Service Unavailable\r\n" +
+		    "Connection: close\r\n" +
+		    "Content-Length: 0\r\n\r\n").getBytes("ISO-8859-1"));
+	    out.flush();
+	} catch (IOException e) {
+	} finally {
+	    try {
+		connection.sock.close();
+	    } catch (IOException e) {}
+	}
+    }
+
+    /**
+     * Returns the number of accepted connections waiting for a worker.
+     */
+    public int
+    getQueueDepth()
+    {
+	ThreadPoolExecutor executor = workers;
+	return executor != null ? executor.getQueue().size() : 0;
+    }
+
+    /**
+     * Returns the (approximate) number of workers handling a connection.
+     */
+    public int
+    getActiveWorkers()
+    {
+	ThreadPoolExecutor executor = workers;
+	return executor != null ? executor.getActiveCount() : 0;
+    }
+
+    /**
+     * Returns the number of worker threads, busy or idle.
+     */
+    public int
+    getWorkerCount()
+    {
+	ThreadPoolExecutor executor = workers;
+	return executor != null ? executor.getPoolSize() : 0;
+    }
+
+    /**
+     * Returns the number of connections answered with a 503 so far.
+     */
+    public long
+    getRejectedCount()
+    {
+	return rejectedCount.get();
+    }
+
+    /**
+     * Returns the average time connections waited for a worker, in
+     * milliseconds.
+     */
+    public double
+    getAverageQueuedMillis()
+    {
+	long count = queuedCount.get();
+	return count > 0 ? queuedNanos.get() / 1e6 / count : 0;
+    }
+
+    /**
+     * Returns a summary of the worker statistics for the log.
+     */
+    public String
+    getWorkerStats()
+    {
+	return getActiveWorkers() + " of " + getWorkerCount() + " busy, " +
+		getQueueDepth() + " queued, " +
+		String.format("%.1f", getAverageQueuedMillis()) +
+		" ms average wait, " + getRejectedCount() + " rejected";
+    }
+
+    /**
+     * A connection waiting for a worker, measures the time it waited.
+     */
+    class QueuedConnection implements Runnable
+    {
+	final Connection connection;
+	final String name;
+	final Socket sock;
+	final long queued = System.nanoTime();
+
+	QueuedConnection(Connection connection, String name, Socket sock)
+	{
+	    this.connection = connection;
+	    this.name = name;
+	    this.sock = sock;
+	}
+
+	public void
+	run()
+	{
+	    queuedNanos.addAndGet(System.nanoTime() - queued);
+	    queuedCount.incrementAndGet();
+
+	    // Log messages name the connection, as with a thread per connection
+	    Thread thread = Thread.currentThread();
+	    thread.setName(name);
+	    try {
+		connection.run();
+	    } finally {
+		thread.setName("worker");
+		// Clear the interrupt flag before the thread is reused
+		Thread.interrupted();
+	    }
+	}
+    }
+
+    /**
+     * Worker pool that counts the connections submitted to it and not done
+     * yet, queued or running.  Unlike <code>getActiveCount</code>, the
+     * count already includes connections handed to a worker that hasn't
+     * picked them up yet.
+     */
+    static class WorkerPool
+	extends ThreadPoolExecutor
+    {
+	final AtomicInteger submitted = new AtomicInteger();
+
+	WorkerPool(int corePoolSize, int maximumPoolSize, long keepAliveTime,
+		TimeUnit unit, ConnectionQueue queue, ThreadFactory threadFactory,
+		RejectedExecutionHandler handler)
+	{
+	    super(corePoolSize, maximumPoolSize, keepAliveTime, unit, queue,
+		    threadFactory, handler);
+	}
+
+	public void
+	execute(Runnable r)
+	{
+	    submitted.incrementAndGet();
+	    super.execute(r);
+	}
+
+	protected void
+	afterExecute(Runnable r, Throwable t)
+	{
+	    submitted.decrementAndGet();
+	}
+    }
+
+    /**
+     * Queue of accepted connections, only takes connections if there are
+     * idle workers or no more workers can be started.  Otherwise the pool
+     * would only start workers beyond its core size once the queue is full.
+     * Idle workers are told by the connections submitted to the pool (see
+     * {@link WorkerPool}), as with Tomcat's <code>TaskQueue</code>: the
+     * active count lags behind until a worker picks its connection up, so
+     * a burst of connections would all be queued for the same idle worker.
+     */
+    static class ConnectionQueue
+	extends ArrayBlockingQueue<Runnable>
+    {
+	private static final long serialVersionUID = 1L;
+
+	WorkerPool executor;
+
+	ConnectionQueue(int capacity)
+	{
+	    super(capacity);
+	}
+
+	public boolean
+	offer(Runnable r)
+	{
+	    // The connection itself is counted already
+	    if (executor.submitted.get() <= executor.getPoolSize() ||
+		    executor.getPoolSize() >= executor.getMaximumPoolSize()) {
+		return super.offer(r);
+	    }
+	    return false;
+	}
+
+	/**
+	 * Queues a connection the pool couldn't start a worker for.
+	 */
+	boolean
+	force(Runnable r)
+	{
+	    return super.offer(r);
+	}
+    }
+
     /**
      * Stop the server, and kill all pending requests
      */
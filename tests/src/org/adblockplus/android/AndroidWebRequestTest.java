@@ -0,0 +1,420 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.adblockplus.libadblockplus.HeaderEntry;
+import org.adblockplus.libadblockplus.ServerResponse;
+import org.adblockplus.libadblockplus.ServerResponse.NsStatus;
+
+import android.test.InstrumentationTestCase;
+
+/**
+ * Runs {@link AndroidWebRequest} against a local stand-in for the
+ * subscription servers.
+ */
+public class AndroidWebRequestTest extends InstrumentationTestCase
+{
+  private static final String LIST = "[Adblock Plus 2.0]\n! Version: 201601010000\n||ads.example.com^\n";
+  private static final String ETAG = "\"201601010000\"";
+  private static final List<HeaderEntry> NO_HEADERS = Collections.emptyList();
+
+  private File spoolDir;
+  private StandInServer server;
+  private AndroidWebRequest webRequest;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    this.spoolDir = new File(this.getInstrumentation().getTargetContext().getCacheDir(), "webrequest");
+    deleteRecursively(this.spoolDir);
+    this.server = new StandInServer();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    if (this.webRequest != null)
+    {
+      this.webRequest.dispose();
+    }
+    this.server.close();
+    deleteRecursively(this.spoolDir);
+    super.tearDown();
+  }
+
+  private static void deleteRecursively(final File file)
+  {
+    final File[] children = file.listFiles();
+    if (children != null)
+    {
+      for (final File child : children)
+      {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static List<HeaderEntry> headers(final String... namesAndValues)
+  {
+    final List<HeaderEntry> headers = new ArrayList<HeaderEntry>();
+    for (int i = 0; i + 1 < namesAndValues.length; i += 2)
+    {
+      headers.add(HeaderEntry.of(namesAndValues[i], namesAndValues[i + 1]));
+    }
+    return headers;
+  }
+
+  private static String getHeader(final ServerResponse response, final String name)
+  {
+    for (final HeaderEntry header : response.getResponseHeaders())
+    {
+      if (name.equalsIgnoreCase(header.getKey()))
+      {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the body of the response, reading it from its response file and
+   * releasing that, like the filter engine does.
+   */
+  private String getBody(final ServerResponse response) throws IOException
+  {
+    if (response.getResponseFile() == null)
+    {
+      return response.getResponse();
+    }
+
+    final InputStream in = new FileInputStream(response.getResponseFile());
+    try
+    {
+      return new String(readFully(in), "UTF-8");
+    }
+    finally
+    {
+      in.close();
+      this.webRequest.responseFileRead(response.getResponseFile());
+    }
+  }
+
+  private static byte[] readFully(final InputStream in) throws IOException
+  {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1)
+    {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  public void testForwardsAndReturnsHeaders() throws IOException
+  {
+    this.webRequest = new AndroidWebRequest(true);
+    this.server.respond("/list", new Response(200, LIST.getBytes("UTF-8"), "ETag", ETAG,
+        "Last-Modified", "Fri, 01 Jan 2016 00:00:00 GMT"));
+
+    final ServerResponse response = this.webRequest.httpGET(this.server.getUrl("/list"),
+        headers("Accept", "text/plain", "X-Client", "test"));
+
+    assertEquals(NsStatus.OK, response.getStatus());
+    assertEquals(200, response.getResponseStatus());
+    assertEquals(LIST, this.getBody(response));
+    assertEquals(ETAG, getHeader(response, "ETag"));
+    assertEquals("Fri, 01 Jan 2016 00:00:00 GMT", getHeader(response, "Last-Modified"));
+    // Describes the transfer, not the body handed to the engine
+    assertNull(getHeader(response, "Content-Length"));
+
+    final Map<String, String> request = this.server.getRequests().get(0);
+    assertEquals("text/plain", request.get("accept"));
+    assertEquals("test", request.get("x-client"));
+    assertTrue(request.get("accept-encoding").contains("gzip"));
+  }
+
+  public void testGzip() throws IOException
+  {
+    this.webRequest = new AndroidWebRequest(true);
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final GZIPOutputStream out = new GZIPOutputStream(body);
+    out.write(LIST.getBytes("UTF-8"));
+    out.close();
+    this.server.respond("/list", new Response(200, body.toByteArray(), "Content-Encoding", "gzip"));
+
+    final ServerResponse response = this.webRequest.httpGET(this.server.getUrl("/list"), NO_HEADERS);
+
+    assertEquals(NsStatus.OK, response.getStatus());
+    assertEquals(LIST, this.getBody(response));
+    assertNull(getHeader(response, "Content-Encoding"));
+  }
+
+  public void testDeflate() throws IOException
+  {
+    this.webRequest = new AndroidWebRequest(true, this.spoolDir);
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final DeflaterOutputStream out = new DeflaterOutputStream(body);
+    out.write(LIST.getBytes("UTF-8"));
+    out.close();
+    this.server.respond("/list", new Response(200, body.toByteArray(), "Content-Encoding", "deflate"));
+
+    final ServerResponse response = this.webRequest.httpGET(this.server.getUrl("/list"), NO_HEADERS);
+
+    assertEquals(NsStatus.OK, response.getStatus());
+    assertNotNull(response.getResponseFile());
+    assertEquals(LIST, this.getBody(response));
+  }
+
+  public void testNotModified() throws IOException
+  {
+    this.webRequest = new AndroidWebRequest(true, this.spoolDir);
+    this.server.respond("/list", new Response(200, LIST.getBytes("UTF-8"), "ETag", ETAG));
+    final ServerResponse first = this.webRequest.httpGET(this.server.getUrl("/list"), NO_HEADERS);
+    assertEquals(LIST, this.getBody(first));
+
+    this.server.respond("/list", new Response(304, new byte[0], "ETag", ETAG, "X-Served", "second"));
+    final ServerResponse second = this.webRequest.httpGET(this.server.getUrl("/list"), NO_HEADERS);
+
+    assertEquals(ETAG, this.server.getRequests().get(1).get("if-none-match"));
+    // The stored list is handed out again, with the current headers
+    assertEquals(NsStatus.OK, second.getStatus());
+    assertEquals(200, second.getResponseStatus());
+    assertEquals(LIST, this.getBody(second));
+    assertEquals("second", getHeader(second, "X-Served"));
+  }
+
+  public void testCallersOwnConditionalRequest() throws IOException
+  {
+    this.webRequest = new AndroidWebRequest(true, this.spoolDir);
+    this.server.respond("/list", new Response(200, LIST.getBytes("UTF-8"), "ETag", ETAG));
+    this.getBody(this.webRequest.httpGET(this.server.getUrl("/list"), NO_HEADERS));
+
+    this.server.respond("/list", new Response(304, new byte[0], "ETag", ETAG));
+    final ServerResponse response = this.webRequest.httpGET(this.server.getUrl("/list"),
+        headers("If-None-Match", ETAG));
+
+    assertEquals(NsStatus.OK, response.getStatus());
+    assertEquals(304, response.getResponseStatus());
+    assertNull(response.getResponseFile());
+  }
+
+  public void testDiffUpdate() throws IOException
+  {
+    this.webRequest = new AndroidWebRequest(true, this.spoolDir);
+    final String list = LIST + "! Diff-URL: " + this.server.getUrl("/diff") + "\n||removed.example.com^\n";
+    this.server.respond("/list", new Response(200, list.getBytes("UTF-8")));
+    this.getBody(this.webRequest.httpGET(this.server.getUrl("/list"), NO_HEADERS));
+
+    this.server.respond("/diff?base=201601010000", new Response(200, ("[Adblock Plus Diff 1.0]\n"
+        + "! Base: 201601010000\n"
+        + "! Version: 201601020000\n"
+        + "-||removed.example.com^\n"
+        + "+||added.example.com^\n").getBytes("UTF-8")));
+    final ServerResponse response = this.webRequest.httpGET(this.server.getUrl("/list"), NO_HEADERS);
+
+    assertEquals(NsStatus.OK, response.getStatus());
+    assertEquals(200, response.getResponseStatus());
+    assertEquals(list.replace("201601010000", "201601020000").replace("||removed.example.com^\n", "")
+        + "||added.example.com^\n", this.getBody(response));
+    assertEquals(2, this.server.getRequests().size());
+    assertEquals("/diff?base=201601010000", this.server.getRequests().get(1).get(StandInServer.PATH));
+  }
+
+  public void testDiffBaseMismatch() throws IOException
+  {
+    this.webRequest = new AndroidWebRequest(true, this.spoolDir);
+    final String list = LIST + "! Diff-URL: " + this.server.getUrl("/diff") + "\n";
+    this.server.respond("/list", new Response(200, list.getBytes("UTF-8")));
+    this.getBody(this.webRequest.httpGET(this.server.getUrl("/list"), NO_HEADERS));
+
+    this.server.respond("/diff?base=201601010000", new Response(200, ("[Adblock Plus Diff 1.0]\n"
+        + "! Base: 201512310000\n"
+        + "! Version: 201601020000\n"
+        + "+||added.example.com^\n").getBytes("UTF-8")));
+    final String updated = list.replace("201601010000", "201601030000");
+    this.server.respond("/list", new Response(200, updated.getBytes("UTF-8")));
+    final ServerResponse response = this.webRequest.httpGET(this.server.getUrl("/list"), NO_HEADERS);
+
+    // Falls back to downloading the list in full
+    assertEquals(NsStatus.OK, response.getStatus());
+    assertEquals(updated, this.getBody(response));
+    assertEquals(3, this.server.getRequests().size());
+    assertEquals("/list", this.server.getRequests().get(2).get(StandInServer.PATH));
+  }
+
+  public void testFailure() throws IOException
+  {
+    this.webRequest = new AndroidWebRequest(true, this.spoolDir);
+    this.server.respond("/list", new Response(404, "Not found".getBytes("UTF-8")));
+
+    final ServerResponse response = this.webRequest.httpGET(this.server.getUrl("/list"), NO_HEADERS);
+
+    assertEquals(NsStatus.ERROR_FAILURE, response.getStatus());
+    assertEquals(404, response.getResponseStatus());
+  }
+
+  private static final class Response
+  {
+    private final int status;
+    private final byte[] body;
+    private final String[] headers;
+
+    private Response(final int status, final byte[] body, final String... headers)
+    {
+      this.status = status;
+      this.body = body;
+      this.headers = headers;
+    }
+  }
+
+  /**
+   * Serves canned responses by path (including the query), one request per
+   * connection, and records the requests.
+   */
+  private static final class StandInServer implements Runnable
+  {
+    /**
+     * Key of the request path in the recorded requests, header names are
+     * lower case.
+     */
+    static final String PATH = ":path";
+
+    private final ServerSocket socket;
+    private final Thread thread;
+    private final Map<String, Response> responses = new HashMap<String, Response>();
+    private final List<Map<String, String>> requests = new ArrayList<Map<String, String>>();
+
+    StandInServer() throws IOException
+    {
+      this.socket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+      this.thread = new Thread(this, "StandInServer");
+      this.thread.setDaemon(true);
+      this.thread.start();
+    }
+
+    String getUrl(final String path)
+    {
+      return "http://127.0.0.1:" + this.socket.getLocalPort() + path;
+    }
+
+    synchronized void respond(final String path, final Response response)
+    {
+      this.responses.put(path, response);
+    }
+
+    synchronized List<Map<String, String>> getRequests()
+    {
+      return new ArrayList<Map<String, String>>(this.requests);
+    }
+
+    void close() throws IOException
+    {
+      this.socket.close();
+    }
+
+    @Override
+    public void run()
+    {
+      while (!this.socket.isClosed())
+      {
+        try
+        {
+          final Socket connection = this.socket.accept();
+          try
+          {
+            this.serve(connection);
+          }
+          finally
+          {
+            connection.close();
+          }
+        }
+        catch (final IOException e)
+        {
+          // Closed
+        }
+      }
+    }
+
+    private void serve(final Socket connection) throws IOException
+    {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "ISO-8859-1"));
+      final String requestLine = reader.readLine();
+      if (requestLine == null)
+      {
+        return;
+      }
+      final Map<String, String> request = new HashMap<String, String>();
+      request.put(PATH, requestLine.split(" ")[1]);
+      String line;
+      while ((line = reader.readLine()) != null && line.length() > 0)
+      {
+        final int colon = line.indexOf(':');
+        request.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line.substring(colon + 1).trim());
+      }
+
+      Response response;
+      synchronized (this)
+      {
+        this.requests.add(request);
+        response = this.responses.get(request.get(PATH));
+      }
+      if (response == null)
+      {
+        response = new Response(404, new byte[0]);
+      }
+
+      final StringBuilder head = new StringBuilder();
+      head.append("HTTP/1.1 ").append(response.status).append(" Stand-in\r\n");
+      for (int i = 0; i + 1 < response.headers.length; i += 2)
+      {
+        head.append(response.headers[i]).append(": ").append(response.headers[i + 1]).append("\r\n");
+      }
+      head.append("Content-Length: ").append(response.body.length).append("\r\n");
+      head.append("Connection: close\r\n\r\n");
+
+      final OutputStream out = connection.getOutputStream();
+      out.write(head.toString().getBytes("ISO-8859-1"));
+      out.write(response.body);
+      out.flush();
+    }
+  }
+}
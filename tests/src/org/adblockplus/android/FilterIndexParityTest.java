@@ -0,0 +1,162 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.adblockplus.android.filters.FilterText;
+import org.adblockplus.libadblockplus.FilterEngine.ContentType;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Checks the Java side filter indexes against the filter engine on EasyList:
+ * whatever the blocked hosts trie blocks, the filter engine has to block, and
+ * whatever the prefilter rules out, it mustn't block.
+ *
+ * Downloads EasyList, so it needs a network connection.
+ */
+public class FilterIndexParityTest extends InstrumentationTestCase
+{
+  private static final String EASYLIST_URL = "https://easylist-downloads.adblockplus.org/easylist.txt";
+  private static final String REQUESTS_FILE = "parity_requests.txt";
+  private static final long TIMEOUT_MILLIS = 120000;
+  private static final int MIN_KEYWORD_COUNT = 10000;
+
+  private File basePath;
+  private ABPEngine engine;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    final Context context = this.getInstrumentation().getTargetContext();
+    this.basePath = new File(context.getCacheDir(), "parity");
+    deleteRecursively(this.basePath);
+    this.basePath.mkdirs();
+    this.engine = ABPEngine.create(context, ABPEngine.generateAppInfo(context), this.basePath.getAbsolutePath());
+    this.engine.setSubscription(EASYLIST_URL);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    this.engine.dispose();
+    deleteRecursively(this.basePath);
+    super.tearDown();
+  }
+
+  public void testIndexesAgreeWithFilterEngine() throws Exception
+  {
+    final FilterIndexes indexes = this.awaitIndexes();
+    final String[] noReferrers = new String[0];
+
+    int blockedHosts = 0;
+    int skipped = 0;
+    for (final String[] request : this.readRequests())
+    {
+      final ContentType contentType = ContentType.valueOf(request[0]);
+      final String url = request[1];
+      final String[] referrerChain = request.length > 2 ? new String[] { request[2] } : noReferrers;
+      final String documentHost = referrerChain.length > 0 ? FilterText.getHost(referrerChain[0]) : "";
+
+      final boolean verdict = NativeFilterMatcher.isBlockingVerdict(
+          this.engine.getFilterEngine().matchesAll(new String[] { url }, new ContentType[] { contentType },
+              referrerChain)[0], referrerChain);
+
+      if (ABPEngine.isBlockedHost(indexes, url, contentType, referrerChain))
+      {
+        assertTrue("Blocked hosts trie blocks " + url + " but the filter engine doesn't", verdict);
+        blockedHosts++;
+      }
+      if (!indexes.getPrefilter().mayMatch(url, documentHost))
+      {
+        assertFalse("Prefilter rules out " + url + " but the filter engine blocks it", verdict);
+        skipped++;
+      }
+    }
+
+    // Otherwise the assertions above were never made
+    assertTrue("Blocked hosts trie blocked nothing", blockedHosts > 0);
+    assertTrue("Prefilter ruled out nothing", skipped > 0);
+  }
+
+  /**
+   * Waits until EasyList is loaded and the indexes are rebuilt from it.
+   */
+  private FilterIndexes awaitIndexes() throws InterruptedException
+  {
+    final FilterIndexUpdater updater = this.engine.getFilterIndexUpdater();
+    final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (System.currentTimeMillis() < deadline)
+    {
+      final FilterIndexes indexes = updater.getIndexes();
+      if (indexes != null && updater.isCurrent(indexes)
+          && indexes.getPrefilter().getKeywordCount() >= MIN_KEYWORD_COUNT)
+      {
+        return indexes;
+      }
+      Thread.sleep(500);
+    }
+    fail("EasyList wasn't loaded and indexed within " + TIMEOUT_MILLIS + " ms");
+    return null;
+  }
+
+  private List<String[]> readRequests() throws IOException
+  {
+    final List<String[]> requests = new ArrayList<String[]>();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(
+        this.getInstrumentation().getContext().getAssets().open(REQUESTS_FILE), "UTF-8"));
+    try
+    {
+      String line;
+      while ((line = reader.readLine()) != null)
+      {
+        line = line.trim();
+        if (line.length() > 0 && !line.startsWith("#"))
+        {
+          requests.add(line.split(" "));
+        }
+      }
+    }
+    finally
+    {
+      reader.close();
+    }
+    return requests;
+  }
+
+  private static void deleteRecursively(final File file)
+  {
+    final File[] children = file.listFiles();
+    if (children != null)
+    {
+      for (final File child : children)
+      {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.test.InstrumentationTestCase;
+
+public class ListDiffTest extends InstrumentationTestCase
+{
+  private static final String LIST =
+      "[Adblock Plus 2.0]\n"
+      + "! Version: 201601010000\n"
+      + "! Diff-URL: https://example.com/diff?list=easylist\n"
+      + "||kept.example.com^\n"
+      + "||removed.example.com^\n"
+      + "||duplicate.example.com^\n"
+      + "example.com##.ad\n"
+      + "||duplicate.example.com^\n";
+
+  private File dir;
+  private File base;
+  private File out;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    this.dir = new File(this.getInstrumentation().getTargetContext().getCacheDir(), "listdiff");
+    this.dir.mkdirs();
+    this.base = new File(this.dir, "base.txt");
+    this.out = new File(this.dir, "out.txt");
+    write(this.base, LIST);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    this.base.delete();
+    this.out.delete();
+    this.dir.delete();
+    super.tearDown();
+  }
+
+  private static void write(final File file, final String text) throws IOException
+  {
+    final OutputStream out = new FileOutputStream(file);
+    try
+    {
+      out.write(text.getBytes("UTF-8"));
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  private static String read(final File file) throws IOException
+  {
+    final InputStream in = new FileInputStream(file);
+    try
+    {
+      final byte[] bytes = new byte[(int) file.length()];
+      int read = 0;
+      while (read < bytes.length)
+      {
+        read += in.read(bytes, read, bytes.length - read);
+      }
+      return new String(bytes, "UTF-8");
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private void apply(final String diff, final boolean stripElemhide) throws IOException
+  {
+    ListDiff.apply(this.base, "201601010000", new ByteArrayInputStream(diff.getBytes("UTF-8")), stripElemhide,
+        this.out);
+  }
+
+  public void testReadHeader() throws IOException
+  {
+    final ListDiff.Header header = ListDiff.readHeader(this.base);
+    assertNotNull(header);
+    assertEquals("201601010000", header.version);
+    assertEquals("https://example.com/diff?list=easylist", header.diffUrl);
+    assertEquals("https://example.com/diff?list=easylist&base=201601010000", ListDiff.getRequestUrl(header));
+  }
+
+  public void testReadHeaderWithoutDiffUrl() throws IOException
+  {
+    write(this.base, "[Adblock Plus 2.0]\n! Version: 201601010000\n||example.com^\n");
+    assertNull(ListDiff.readHeader(this.base));
+  }
+
+  public void testApply() throws IOException
+  {
+    this.apply("[Adblock Plus Diff 1.0]\n"
+        + "! Base: 201601010000\n"
+        + "! Version: 201601020000\n"
+        + "-||removed.example.com^\n"
+        + "+||added.example.com^\n", false);
+
+    assertEquals("[Adblock Plus 2.0]\n"
+        + "! Version: 201601020000\n"
+        + "! Diff-URL: https://example.com/diff?list=easylist\n"
+        + "||kept.example.com^\n"
+        + "||duplicate.example.com^\n"
+        + "example.com##.ad\n"
+        + "||duplicate.example.com^\n"
+        + "||added.example.com^\n", read(this.out));
+  }
+
+  public void testBaseMismatch() throws IOException
+  {
+    try
+    {
+      this.apply("[Adblock Plus Diff 1.0]\n"
+          + "! Base: 201512310000\n"
+          + "! Version: 201601020000\n"
+          + "+||added.example.com^\n", false);
+      fail("Applied a diff based on another version");
+    }
+    catch (final IOException e)
+    {
+      // Expected, the list has to be downloaded in full
+    }
+  }
+
+  public void testMissingVersion() throws IOException
+  {
+    try
+    {
+      this.apply("[Adblock Plus Diff 1.0]\n"
+          + "! Base: 201601010000\n"
+          + "+||added.example.com^\n", false);
+      fail("Applied a diff without version");
+    }
+    catch (final IOException e)
+    {
+      // Expected
+    }
+  }
+
+  public void testNotADiff() throws IOException
+  {
+    try
+    {
+      this.apply("[Adblock Plus 2.0]\n"
+          + "! Base: 201601010000\n"
+          + "! Version: 201601020000\n", false);
+      fail("Applied a list as diff");
+    }
+    catch (final IOException e)
+    {
+      // Expected
+    }
+  }
+
+  public void testDuplicateLines() throws IOException
+  {
+    // Each removal only removes one occurrence of a line
+    this.apply("[Adblock Plus Diff 1.0]\n"
+        + "! Base: 201601010000\n"
+        + "! Version: 201601020000\n"
+        + "-||duplicate.example.com^\n", false);
+    assertEquals("[Adblock Plus 2.0]\n"
+        + "! Version: 201601020000\n"
+        + "! Diff-URL: https://example.com/diff?list=easylist\n"
+        + "||kept.example.com^\n"
+        + "||removed.example.com^\n"
+        + "example.com##.ad\n"
+        + "||duplicate.example.com^\n", read(this.out));
+
+    this.apply("[Adblock Plus Diff 1.0]\n"
+        + "! Base: 201601010000\n"
+        + "! Version: 201601020000\n"
+        + "-||duplicate.example.com^\n"
+        + "-||duplicate.example.com^\n"
+        + "+||kept.example.com^\n", false);
+    assertEquals("[Adblock Plus 2.0]\n"
+        + "! Version: 201601020000\n"
+        + "! Diff-URL: https://example.com/diff?list=easylist\n"
+        + "||kept.example.com^\n"
+        + "||removed.example.com^\n"
+        + "example.com##.ad\n"
+        + "||kept.example.com^\n", read(this.out));
+  }
+
+  public void testStripElemhide() throws IOException
+  {
+    final String diff = "[Adblock Plus Diff 1.0]\n"
+        + "! Base: 201601010000\n"
+        + "! Version: 201601020000\n"
+        + "+example.com##.banner\n"
+        + "+||added.example.com^\n"
+        + "+example.com#@#.ad\n";
+
+    this.apply(diff, true);
+    assertEquals(LIST.replace("201601010000", "201601020000") + "||added.example.com^\n", read(this.out));
+
+    this.apply(diff, false);
+    assertEquals(LIST.replace("201601010000", "201601020000")
+        + "example.com##.banner\n"
+        + "||added.example.com^\n"
+        + "example.com#@#.ad\n", read(this.out));
+  }
+}
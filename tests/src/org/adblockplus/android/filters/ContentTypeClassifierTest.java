@@ -0,0 +1,206 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.android.filters;
+
+import java.util.regex.Pattern;
+
+import org.adblockplus.libadblockplus.FilterEngine.ContentType;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+public class ContentTypeClassifierTest extends TestCase
+{
+  private static final String TAG = ContentTypeClassifierTest.class.getSimpleName();
+
+  /*
+   * URL, Accept header (null if none sent) and the expected content type.
+   */
+  private static final Object[][] CASES =
+  {
+    // Extensions
+    { "http://example.com/script.js", null, ContentType.SCRIPT },
+    { "http://example.com/module.MJS", null, ContentType.SCRIPT },
+    { "http://example.com/style.css", null, ContentType.STYLESHEET },
+    { "http://example.com/a.gif", null, ContentType.IMAGE },
+    { "http://example.com/a.JPEG", null, ContentType.IMAGE },
+    { "http://example.com/a.webp", null, ContentType.IMAGE },
+    { "http://example.com/font.woff2", null, ContentType.FONT },
+    { "http://example.com/font.ttf", null, ContentType.FONT },
+    { "http://example.com/frame.htm", null, ContentType.SUBDOCUMENT },
+    { "http://example.com/frame.html", null, ContentType.SUBDOCUMENT },
+    { "http://example.com/data.json", null, ContentType.XMLHTTPREQUEST },
+    { "http://example.com/movie.swf", null, ContentType.OBJECT },
+    { "http://example.com/clip.mp4", null, ContentType.MEDIA },
+    { "http://example.com/song.mp3", null, ContentType.MEDIA },
+    { "http://example.com/song.ogg", null, ContentType.MEDIA },
+    { "http://example.com/clip.webm", null, ContentType.MEDIA },
+
+    // Query and fragment are ignored, the regular expressions didn't
+    { "http://example.com/script.js?v=1.css", null, ContentType.SCRIPT },
+    { "http://example.com/a.png#top.js", null, ContentType.IMAGE },
+    { "http://example.com/data.json?callback=x", null, ContentType.XMLHTTPREQUEST },
+
+    // No extension, or not one of the path's last segment
+    { "http://example.com", null, ContentType.OTHER },
+    { "http://example.com/", null, ContentType.OTHER },
+    { "http://example.js/", null, ContentType.OTHER },
+    { "http://example.com/dir.js/file", null, ContentType.OTHER },
+    { "http://example.com/file.jsx", null, ContentType.OTHER },
+    { "http://example.com/file.", null, ContentType.OTHER },
+    { "http://example.com/track?url=a.js", null, ContentType.OTHER },
+
+    // The Accept header takes precedence over the extension
+    { "http://example.com/a.js", "text/css,*/*;q=0.1", ContentType.STYLESHEET },
+    { "http://example.com/a", "image/webp,image/*,*/*;q=0.8", ContentType.IMAGE },
+    { "http://example.com/a", "text/html,application/xhtml+xml,*/*;q=0.8", ContentType.SUBDOCUMENT },
+    { "http://example.com/a", "video/webm,video/*;q=0.9,*/*;q=0.5", ContentType.MEDIA },
+    { "http://example.com/a", "audio/*", ContentType.MEDIA },
+    { "http://example.com/a", "application/json, text/javascript, */*; q=0.01", ContentType.XMLHTTPREQUEST },
+
+    // Precedence between media ranges, not their order in the header
+    { "http://example.com/a", "image/*, text/css", ContentType.STYLESHEET },
+    { "http://example.com/a", "text/html, image/*", ContentType.IMAGE },
+
+    // Media ranges only match exactly (ignoring case and parameters)
+    { "http://example.com/a", "TEXT/CSS", ContentType.STYLESHEET },
+    { "http://example.com/a", " text/css ;q=0.5", ContentType.STYLESHEET },
+    { "http://example.com/a", "text/css2", ContentType.OTHER },
+    { "http://example.com/a", "text/htmlx", ContentType.OTHER },
+    { "http://example.com/a", "image/png", ContentType.OTHER },
+    { "http://example.com/a", "application/jsonp", ContentType.OTHER },
+    { "http://example.com/a", "xtext/html", ContentType.OTHER },
+
+    // Accept headers without a known media range fall back to the extension
+    { "http://example.com/a.js", "*/*", ContentType.SCRIPT },
+    { "http://example.com/a.gif", "", ContentType.IMAGE },
+  };
+
+  private static final int BENCHMARK_ROUNDS = 20000;
+
+  public void testClassify()
+  {
+    for (final Object[] testCase : CASES)
+    {
+      final String url = (String) testCase[0];
+      final String accept = (String) testCase[1];
+      assertEquals(url + " (Accept: " + accept + ")", testCase[2], ContentTypeClassifier.classify(url, accept));
+    }
+  }
+
+  /**
+   * Where the regular expressions classified a request by its extension, the
+   * classifier has to agree. They only looked for the media ranges as
+   * substrings of the Accept header, so they differ there on purpose.
+   */
+  public void testAgreesWithRegularExpressions()
+  {
+    for (final Object[] testCase : CASES)
+    {
+      final String url = (String) testCase[0];
+      final String accept = (String) testCase[1];
+      final ContentType legacy = RegexClassifier.classify(url, accept);
+      if (accept == null && legacy != ContentType.OTHER && url.indexOf('?') < 0 && url.indexOf('#') < 0)
+      {
+        assertEquals(url + " (Accept: " + accept + ")", legacy, ContentTypeClassifier.classify(url, accept));
+      }
+    }
+  }
+
+  /**
+   * Microbenchmark against the regular expressions, only logs the results as
+   * timings on a device are too noisy to assert on.
+   */
+  public void testBenchmark()
+  {
+    // Warm up both
+    long legacyNanos = benchmark(true);
+    long classifierNanos = benchmark(false);
+
+    legacyNanos = benchmark(true);
+    classifierNanos = benchmark(false);
+    final int calls = BENCHMARK_ROUNDS * CASES.length;
+    Log.i(TAG, String.format("Regular expressions: %d ns per request, classifier: %d ns per request",
+        legacyNanos / calls, classifierNanos / calls));
+  }
+
+  private static long benchmark(final boolean legacy)
+  {
+    int checksum = 0;
+    final long start = System.nanoTime();
+    for (int round = 0; round < BENCHMARK_ROUNDS; round++)
+    {
+      for (final Object[] testCase : CASES)
+      {
+        final String url = (String) testCase[0];
+        final String accept = (String) testCase[1];
+        final ContentType contentType = legacy
+            ? RegexClassifier.classify(url, accept) : ContentTypeClassifier.classify(url, accept);
+        checksum += contentType.ordinal();
+      }
+    }
+    final long elapsed = System.nanoTime() - start;
+    // Keeps the calls from being optimized away
+    assertTrue(checksum >= 0);
+    return elapsed;
+  }
+
+  /**
+   * The classification the proxy did before ContentTypeClassifier.
+   */
+  private static final class RegexClassifier
+  {
+    private static final Pattern RE_JS = Pattern.compile("\\.js$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern RE_CSS = Pattern.compile("\\.css$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern RE_IMAGE = Pattern.compile("\\.(?:gif|png|jpe?g|bmp|ico)$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern RE_FONT = Pattern.compile("\\.(?:ttf|woff)$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern RE_HTML = Pattern.compile("\\.html?$", Pattern.CASE_INSENSITIVE);
+
+    static ContentType classify(final String url, final String accept)
+    {
+      ContentType contentType = null;
+
+      if (accept != null)
+      {
+        if (accept.contains("text/css"))
+          contentType = ContentType.STYLESHEET;
+        else if (accept.contains("image/*"))
+          contentType = ContentType.IMAGE;
+        else if (accept.contains("text/html"))
+          contentType = ContentType.SUBDOCUMENT;
+      }
+
+      if (contentType == null)
+      {
+        if (RE_JS.matcher(url).find())
+          contentType = ContentType.SCRIPT;
+        else if (RE_CSS.matcher(url).find())
+          contentType = ContentType.STYLESHEET;
+        else if (RE_IMAGE.matcher(url).find())
+          contentType = ContentType.IMAGE;
+        else if (RE_FONT.matcher(url).find())
+          contentType = ContentType.FONT;
+        else if (RE_HTML.matcher(url).find())
+          contentType = ContentType.SUBDOCUMENT;
+      }
+      if (contentType == null)
+        contentType = ContentType.OTHER;
+      return contentType;
+    }
+  }
+}